@@ -1,36 +1,171 @@
 package se.kth.anderslm.microbituart;
 
-import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 
-class BTDeviceArrayAdapter extends ArrayAdapter<BluetoothDevice> {
+/**
+ * The list of scanned devices, sorted by rssi (strongest first).
+ * Row views are recycled by the RecyclerView and hold their child views in a ViewHolder.
+ * New scan results are diffed against the current list (DeviceListDiff): inserted rows
+ * and rows whose rssi or name changed are bound, moved rows (the order by rssi changed)
+ * keep their views, removed rows are dropped. No other row is rebound.
+ */
+class BTDeviceArrayAdapter extends RecyclerView.Adapter<BTDeviceArrayAdapter.ViewHolder> {
 
-    BTDeviceArrayAdapter(Context context, List<BluetoothDevice> deviceList) {
-        super(context, R.layout.device_item_layout, deviceList);
+    interface OnDeviceClickListener {
+        void onDeviceClick(int position);
     }
 
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView nameView;
+        final TextView infoView;
+
+        ViewHolder(View rowView) {
+            super(rowView);
+            nameView = rowView.findViewById(R.id.deviceName);
+            infoView = rowView.findViewById(R.id.deviceInfo);
+        }
+    }
+
+    private static final Comparator<ScanEntry> BY_RSSI = new Comparator<ScanEntry>() {
+        @Override
+        public int compare(ScanEntry e1, ScanEntry e2) {
+            return e2.getRssi() - e1.getRssi();
+        }
+    };
+
+    private final LayoutInflater mInflater;
+    private final OnDeviceClickListener mClickListener;
+    private final ArrayList<ScanEntry> mEntries = new ArrayList<>();
+    // stable row ids by device address
+    private final HashMap<String, Long> mIds = new HashMap<>();
+
+    // statistics
+    private long mBindCount = 0;
+    private long mUpdateCount = 0;
+    private long mRowUpdates = 0; // inserted, removed, moved and changed rows
+
+    private final DeviceListDiff.Callback mNotifier = new DeviceListDiff.Callback() {
+        @Override
+        public void onRemoved(int position) {
+            mRowUpdates++;
+            notifyItemRemoved(position);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mRowUpdates++;
+            notifyItemMoved(fromPosition, toPosition);
+        }
+
+        @Override
+        public void onInserted(int position) {
+            mRowUpdates++;
+            notifyItemInserted(position);
+        }
+
+        @Override
+        public void onChanged(int position) {
+            mRowUpdates++;
+            notifyItemChanged(position);
+        }
+    };
+
+    BTDeviceArrayAdapter(Context context, OnDeviceClickListener clickListener) {
+        mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        mClickListener = clickListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Replace the content with entries, notifying the rows that differ.
+     */
+    void update(List<ScanEntry> entries) {
+        ArrayList<ScanEntry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, BY_RSSI);
+        ArrayList<ScanEntry> previous = new ArrayList<>(mEntries);
+        mEntries.clear();
+        mEntries.addAll(sorted);
+        mUpdateCount++;
+        DeviceListDiff.dispatch(previous, sorted, mNotifier);
+    }
+
+    void clear() {
+        int count = mEntries.size();
+        mEntries.clear();
+        notifyItemRangeRemoved(0, count);
+    }
+
+    boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    ScanEntry getItem(int position) {
+        return mEntries.get(position);
+    }
+
+    long getBindCount() {
+        return mBindCount;
+    }
+
+    long getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    long getRowUpdates() {
+        return mRowUpdates;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mEntries.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String address = mEntries.get(position).getAddress();
+        Long id = mIds.get(address);
+        if (id == null) {
+            id = (long) mIds.size();
+            mIds.put(address, id);
+        }
+        return id;
+    }
+
+    @NonNull
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        LayoutInflater inflater = (LayoutInflater) getContext()
-                .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        View rowView = inflater.inflate(R.layout.device_item_layout, parent,
-                false);
-
-        TextView nameView = rowView.findViewById(R.id.deviceName);
-        TextView infoView = rowView.findViewById(R.id.deviceInfo);
-        BluetoothDevice device = this.getItem(position);
-        String name = device.getName();
-        nameView.setText(name == null ? "Unknown" : name);
-        infoView.setText(device.getBluetoothClass() + ", " + device.getAddress());
-
-        return rowView;
-    }
-}
\ No newline at end of file
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View rowView = mInflater.inflate(R.layout.device_item_layout, parent, false);
+        final ViewHolder holder = new ViewHolder(rowView);
+        rowView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    mClickListener.onDeviceClick(position);
+                }
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        ScanEntry entry = mEntries.get(position);
+        String name = entry.getName();
+        holder.nameView.setText(name == null ? "Unknown" : name);
+        holder.infoView.setText(entry.getAddress() + ", " + entry.getRssi() + " dBm");
+        mBindCount++;
+    }
+}
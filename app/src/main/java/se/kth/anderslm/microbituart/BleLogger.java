@@ -15,6 +15,9 @@ class BleLogger {
     }
 
     static void logServices(List<BluetoothGattService> services) {
+        if (!Metrics.LOG) {
+            return;
+        }
         for (BluetoothGattService service : services) {
             String uuid = service.getUuid().toString();
             Log.i("service", uuid);
@@ -22,6 +25,9 @@ class BleLogger {
     }
 
     static void logCharacteristicsForService(BluetoothGattService service) {
+        if (!Metrics.LOG) {
+            return;
+        }
         List<BluetoothGattCharacteristic> characteristics =
                 service.getCharacteristics();
         for (BluetoothGattCharacteristic charac : characteristics) {
@@ -36,8 +42,7 @@ class BleLogger {
         }
     }
 
-    // debug
-    static private boolean hasProperty(BluetoothGattCharacteristic chara, int property) {
+    static boolean hasProperty(BluetoothGattCharacteristic chara, int property) {
         int prop = chara.getProperties() & property;
         return prop == property;
     }
@@ -0,0 +1,442 @@
+package se.kth.anderslm.microbituart;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Bulk transfer of a file or firmware blob to one Micro:bit, with a sliding window.
+ * The blob is split into chunks that fit one write, and up to WINDOW chunks are in
+ * flight. Packets to the Micro:bit use the SensorCodec frame layout, length prefixed
+ * and with a CRC-8 over everything after the length:
+ * <pre>
+ *     start: length | 0x10 | id | size (u32 LE) | chunk size (u8) | crc32 (u32 LE) | crc
+ *     data:  length | 0x11 | id | sequence (u16 LE) | payload | crc
+ * </pre>
+ * The Micro:bit answers the start packet, and data packets, with text lines on the
+ * UART TX characteristic, which are taken out of the frame stream (see onFrame):
+ * <pre>
+ *     "!ack id next [sequence ...]"   cumulative: all chunks before next received,
+ *                                      then the chunks received beyond next
+ *     "!done id ok" or "!done id crc" all chunks received, blob CRC-32 checked
+ * </pre>
+ * Chunks not acknowledged within the retransmit timeout are sent again; a hole
+ * reported by a selective ack is sent again at once (fast retransmit). Acks of
+ * retransmitted chunks give no round trip sample (Karn's rule). When the link is
+ * lost the transfer pauses, and on reconnect the start packet is sent again: the
+ * Micro:bit answers with an ack for what it already has, and the transfer resumes from
+ * there. The start packet is repeated every timeout until it is answered.
+ * <p>
+ * Text data format only. Runs on the handler thread, the BLE thread; start and cancel
+ * may be called from any thread. Round trips and timeouts are measured with
+ * SystemClock, the clock the retransmit timer runs on, not System.nanoTime.
+ */
+class BulkTransfer {
+
+    static final int TYPE_START = 0x10;
+    static final int TYPE_DATA = 0x11;
+
+    // max chunks in flight, times the max chunk size below the UartWriter capacity
+    static final int WINDOW = 16;
+    // length, type, id, sequence and crc
+    private static final int DATA_OVERHEAD = 6;
+    private static final int MAX_CHUNK = 240;
+    // chunks per transfer, u16 sequence numbers
+    private static final int MAX_CHUNKS = 0xffff;
+    // retransmit timeout, 2 x smoothed round trip, bounded to 200..5000 ms
+    private static final long MIN_RTO = 200;
+    private static final long MAX_RTO = 5000;
+    // fail when nothing is acknowledged for this long while connected, 15000 ms
+    private static final long STALL_TIMEOUT = 15000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    interface Listener {
+        /**
+         * Progress, on the BLE thread, at most once per acknowledgement.
+         *
+         * @param bytesPerSecond acknowledged payload since the start, excluding pauses
+         */
+        void onProgress(BulkTransfer transfer, long ackedBytes, long totalBytes,
+                        double bytesPerSecond);
+
+        /**
+         * The transfer is done, on the BLE thread.
+         *
+         * @param error null if the Micro:bit has the blob and its CRC matched
+         */
+        void onComplete(BulkTransfer transfer, String error);
+    }
+
+    private final GattSession mSession;
+    private final Handler mHandler;
+
+    // the transfer, on the handler thread
+    private byte[] mData = null;
+    private Listener mListener = null;
+    private int mId = 0;
+    private int mChunkSize;
+    private int mChunkCount;
+    private boolean[] mAcked;
+    private long[] mSentNanos; // 0 if not sent since the last (re)start
+    private boolean[] mRetransmitted; // an ack for it is ambiguous, no round trip sample
+    private int mNext = 0; // all chunks before are acknowledged
+    private int mHighest = 0; // chunks from here on have never been sent
+    private boolean mConnected = false;
+    private boolean mStartAcked = false; // since the last (re)start
+    private long mSrttNanos = 0;
+    private long mLastProgressNanos;
+    private long mActiveNanos; // time connected, for the throughput
+    private long mActiveSinceNanos;
+    private final byte[] mPacket = new byte[MAX_CHUNK + DATA_OVERHEAD];
+
+    // statistics, read from any thread
+    private volatile long mAckedBytes = 0;
+    private volatile long mTotalBytes = 0;
+    private volatile double mBytesPerSecond = 0;
+    private volatile long mRetransmitCount = 0;
+    private volatile boolean mActive = false;
+
+    /**
+     * @param handler the BLE thread, used for the retransmit timer
+     */
+    BulkTransfer(GattSession session, Handler handler) {
+        mSession = session;
+        mHandler = handler;
+    }
+
+    /**
+     * Send data to the Micro:bit, replacing a transfer in progress.
+     */
+    void start(final byte[] data, final Listener listener) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mData != null) {
+                    finish("replaced");
+                }
+                begin(data, listener);
+            }
+        });
+    }
+
+    void cancel() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mData != null) {
+                    finish("cancelled");
+                }
+            }
+        });
+    }
+
+    boolean isActive() {
+        return mActive;
+    }
+
+    long getAckedBytes() {
+        return mAckedBytes;
+    }
+
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    long getRetransmitCount() {
+        return mRetransmitCount;
+    }
+
+    /**
+     * The session is ready, e.g. after a reconnect: resume.
+     */
+    void onReady() {
+        mConnected = true;
+        if (mData == null) {
+            return;
+        }
+        mActiveSinceNanos = SystemClock.elapsedRealtimeNanos();
+        mLastProgressNanos = mActiveSinceNanos;
+        // the Micro:bit answers the start packet with what it already has
+        for (int i = mNext; i < mHighest; i++) {
+            mSentNanos[i] = 0;
+        }
+        mHighest = mNext;
+        mStartAcked = false;
+        sendStart();
+        mHandler.removeCallbacks(mTimer);
+        mHandler.postDelayed(mTimer, rto());
+    }
+
+    /**
+     * The link is lost: pause until ready again.
+     */
+    void onDisconnected() {
+        if (mConnected && mData != null) {
+            mActiveNanos += SystemClock.elapsedRealtimeNanos() - mActiveSinceNanos;
+        }
+        mConnected = false;
+        mHandler.removeCallbacks(mTimer);
+    }
+
+    /**
+     * Called for each frame received, on the BLE thread.
+     *
+     * @return true if the frame was an acknowledgement, and consumed
+     */
+    boolean onFrame(byte[] buffer, int offset, int length) {
+        if (length < 6 || buffer[offset] != '!') {
+            return false;
+        }
+        String line = new String(buffer, offset, length, UTF8).trim();
+        String[] fields = line.split(" +");
+        if (fields.length < 3 || !(fields[0].equals("!ack") || fields[0].equals("!done"))) {
+            return false;
+        }
+        if (mData == null) {
+            return true; // late, for a finished transfer
+        }
+        try {
+            if (Integer.parseInt(fields[1]) != mId) {
+                return true; // for an earlier transfer
+            }
+            mStartAcked = true;
+            if (fields[0].equals("!done")) {
+                onDone(fields[2]);
+            } else {
+                int[] selective = new int[fields.length - 3];
+                for (int i = 3; i < fields.length; i++) {
+                    selective[i - 3] = Integer.parseInt(fields[i]);
+                }
+                onAck(Integer.parseInt(fields[2]), selective);
+            }
+        } catch (NumberFormatException e) {
+            if (Metrics.LOG) {
+                Log.i("BulkTransfer", "bad ack: " + line);
+            }
+        }
+        return true;
+    }
+
+    private void begin(byte[] data, Listener listener) {
+        mData = data;
+        mListener = listener;
+        mId = (mId + 1) & 0xff;
+        mChunkSize = Math.max(1, Math.min(MAX_CHUNK,
+                mSession.getLinkStats().getMaxPayload() - DATA_OVERHEAD));
+        mChunkCount = (data.length + mChunkSize - 1) / mChunkSize;
+        if (mChunkCount > MAX_CHUNKS) {
+            mData = null;
+            listener.onComplete(this, "too large, max " + MAX_CHUNKS * mChunkSize + " bytes");
+            return;
+        }
+        mAcked = new boolean[mChunkCount];
+        mSentNanos = new long[mChunkCount];
+        mRetransmitted = new boolean[mChunkCount];
+        mNext = 0;
+        mHighest = 0;
+        mSrttNanos = 0;
+        mActiveNanos = 0;
+        mAckedBytes = 0;
+        mTotalBytes = data.length;
+        mBytesPerSecond = 0;
+        mRetransmitCount = 0;
+        mActive = true;
+        if (Metrics.LOG) {
+            Log.i("BulkTransfer", mSession.getAddress() + ": #" + mId + ", " + data.length
+                    + " bytes in " + mChunkCount + " chunks of " + mChunkSize);
+        }
+        if (mSession.getState() == GattSession.State.READY) {
+            onReady();
+        }
+    }
+
+    private void sendStart() {
+        CRC32 crc32 = new CRC32();
+        crc32.update(mData, 0, mData.length);
+        byte[] packet = new byte[13];
+        packet[0] = 12;
+        packet[1] = TYPE_START;
+        packet[2] = (byte) mId;
+        putInt(packet, 3, mData.length);
+        packet[7] = (byte) mChunkSize;
+        putInt(packet, 8, (int) crc32.getValue());
+        packet[12] = SensorCodec.crc(packet, 1, 11);
+        mSession.offer(packet);
+    }
+
+    private void onAck(int next, int[] selective) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        next = Math.min(next, mChunkCount);
+        boolean progress = false;
+        // the newest chunk acknowledged by this ack, the one whose arrival it answers
+        int newest = -1;
+        if (next > mNext) {
+            for (int i = mNext; i < next; i++) {
+                if (markAcked(i)) {
+                    newest = i;
+                }
+            }
+            mNext = next;
+            progress = true;
+        }
+        mHighest = Math.max(mHighest, mNext);
+        boolean hole = false;
+        for (int sequence : selective) {
+            if (sequence >= mNext && sequence < mChunkCount && markAcked(sequence)) {
+                newest = Math.max(newest, sequence);
+                hole = true;
+                progress = true;
+            }
+        }
+        // round trip from that chunk, if sent once (Karn's rule: the ack of a retransmitted
+        // chunk may be for either copy); a chunk acknowledged earlier, selectively, and now
+        // cumulatively, gives none, it waited for the hole before it to be filled
+        if (newest >= 0 && mSentNanos[newest] != 0 && !mRetransmitted[newest]) {
+            long sample = now - mSentNanos[newest];
+            mSrttNanos = mSrttNanos == 0 ? sample : (7 * mSrttNanos + sample) / 8;
+        }
+        if (hole && mNext < mHighest && !mAcked[mNext]
+                && now - mSentNanos[mNext] > mSrttNanos) {
+            // the Micro:bit has chunks beyond next, next itself was lost
+            retransmit(mNext, now);
+        }
+        if (progress) {
+            mLastProgressNanos = now;
+            reportProgress(now);
+        }
+        fill(now);
+    }
+
+    private void onDone(String result) {
+        if (result.equals("ok")) {
+            mAckedBytes = mTotalBytes;
+            reportProgress(SystemClock.elapsedRealtimeNanos());
+            finish(null);
+        } else {
+            finish("crc mismatch on the Micro:bit");
+        }
+    }
+
+    // send new chunks while the window allows
+    private void fill(long now) {
+        if (!mConnected) {
+            return;
+        }
+        while (mHighest < mChunkCount && mHighest - mNext < WINDOW) {
+            if (!mAcked[mHighest] && !sendChunk(mHighest, now)) {
+                return; // the writer is full, the timer tries again
+            }
+            mHighest++;
+        }
+    }
+
+    private void retransmit(int sequence, long now) {
+        if (sendChunk(sequence, now)) {
+            mRetransmitted[sequence] = true;
+            mRetransmitCount++;
+            Metrics.BULK_RETRANSMITS.increment();
+        }
+    }
+
+    private boolean sendChunk(int sequence, long now) {
+        int offset = sequence * mChunkSize;
+        int length = Math.min(mChunkSize, mData.length - offset);
+        byte[] packet = mPacket;
+        packet[0] = (byte) (length + DATA_OVERHEAD - 1);
+        packet[1] = TYPE_DATA;
+        packet[2] = (byte) mId;
+        packet[3] = (byte) sequence;
+        packet[4] = (byte) (sequence >> 8);
+        System.arraycopy(mData, offset, packet, 5, length);
+        packet[5 + length] = SensorCodec.crc(packet, 1, 4 + length);
+        // the writer keeps the array, so it is copied
+        if (!mSession.offer(Arrays.copyOf(packet, length + DATA_OVERHEAD))) {
+            return false;
+        }
+        mSentNanos[sequence] = now;
+        return true;
+    }
+
+    private long rto() {
+        long rto = 2 * mSrttNanos / 1000000L;
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+    }
+
+    // retransmit timeout and stall detection
+    private final Runnable mTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (mData == null || !mConnected) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (now - mLastProgressNanos > STALL_TIMEOUT * 1000000L) {
+                finish("no progress for " + STALL_TIMEOUT / 1000 + " s");
+                return;
+            }
+            long rtoNanos = rto() * 1000000L;
+            for (int i = mNext; i < mHighest; i++) {
+                // the timer runs every rto, a chunk sent at the previous run is due
+                if (!mAcked[i] && now - mSentNanos[i] >= rtoNanos) {
+                    retransmit(i, now);
+                }
+            }
+            if (!mStartAcked) {
+                // e.g. the start packet was lost, the Micro:bit drops the chunks until
+                // it has one
+                sendStart();
+            }
+            fill(now);
+            mHandler.postDelayed(this, rto());
+        }
+    };
+
+    // @return false if already acknowledged
+    private boolean markAcked(int sequence) {
+        if (mAcked[sequence]) {
+            return false;
+        }
+        mAcked[sequence] = true;
+        mAckedBytes += Math.min(mChunkSize, mData.length - sequence * mChunkSize);
+        return true;
+    }
+
+    private void reportProgress(long now) {
+        long active = mActiveNanos + (mConnected ? now - mActiveSinceNanos : 0);
+        mBytesPerSecond = active > 0 ? mAckedBytes * 1e9 / active : 0;
+        mListener.onProgress(this, mAckedBytes, mTotalBytes, mBytesPerSecond);
+    }
+
+    private void finish(String error) {
+        Listener listener = mListener;
+        mHandler.removeCallbacks(mTimer);
+        mData = null;
+        mListener = null;
+        mAcked = null;
+        mSentNanos = null;
+        mRetransmitted = null;
+        mActive = false;
+        if (Metrics.LOG) {
+            Log.i("BulkTransfer", mSession.getAddress() + ": #" + mId + " "
+                    + (error == null ? "done" : error) + ", " + mRetransmitCount
+                    + " retransmits");
+        }
+        listener.onComplete(this, error);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,219 @@
+package se.kth.anderslm.microbituart;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Round-trip probes and clock alignment for one Micro:bit, NTP style. In ping mode a
+ * "ping" call (see UartRpc) is made once per PERIOD; the Micro:bit answers with its
+ * clock, running_time() in ms:
+ * <pre>
+ *     phone: "#7 ping\n"    Micro:bit: "#7 123456\n"
+ * </pre>
+ * With t1 the send time and t4 the receive time, the round-trip time is t4 - t1 and the
+ * offset of the Micro:bit clock is its time minus (t1 + t4) / 2, assuming symmetric
+ * delays. As in NTP, the probe with the smallest round trip among the latest FILTER
+ * probes gives the offset, since it has the least queueing.
+ * <p>
+ * Frames starting with a Micro:bit timestamp, "@123456 ...", can then be converted to
+ * phone time, e.g. for the sensor to screen latency per device.
+ */
+class ClockSync {
+
+    // period for the probes, 1000 ms
+    private static final long PERIOD = 1000;
+    // probes for the offset estimate, the one with the smallest round trip is used
+    private static final int FILTER = 8;
+
+    private final String mLabel;
+    private final UartRpc mRpc;
+    private final Handler mHandler;
+    private final Metrics.Histogram mRoundTrip;
+    private final Metrics.Histogram mSensorToScreen;
+
+    // latest probes, used on the BLE thread
+    private final long[] mRoundTrips = new long[FILTER];
+    private final long[] mOffsets = new long[FILTER];
+    private int mProbeCount = 0;
+
+    private volatile boolean mSynced = false;
+    private volatile long mOffsetNanos = 0; // Micro:bit clock - phone clock
+    private volatile long mRoundTripNanos = 0; // of the probe giving the offset
+    private boolean mRunning = false; // on the handler thread
+
+    ClockSync(String label, UartRpc rpc, Handler handler) {
+        mLabel = label;
+        mRpc = rpc;
+        mHandler = handler;
+        mRoundTrip = new Metrics.Histogram("ping rtt " + label);
+        mSensorToScreen = new Metrics.Histogram("sensor to screen " + label);
+    }
+
+    /**
+     * Start probing, from any thread.
+     */
+    void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mRunning) {
+                    mRunning = true;
+                    mHandler.post(mProbe);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop probing, the latest estimate is kept.
+     */
+    void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                mHandler.removeCallbacks(mProbe);
+            }
+        });
+    }
+
+    boolean isSynced() {
+        return mSynced;
+    }
+
+    /**
+     * Micro:bit clock minus phone clock (System.nanoTime()).
+     */
+    long getOffsetNanos() {
+        return mOffsetNanos;
+    }
+
+    /**
+     * Round-trip time of the probe giving the offset, the offset error is at most half.
+     */
+    long getRoundTripNanos() {
+        return mRoundTripNanos;
+    }
+
+    /**
+     * Round-trip time of the latest probe answered, 0 before the first. On the BLE thread.
+     */
+    long getLatestRoundTripNanos() {
+        return mProbeCount == 0 ? 0 : mRoundTrips[(mProbeCount - 1) % FILTER];
+    }
+
+    /**
+     * Probes answered so far. On the BLE thread.
+     */
+    int getProbeCount() {
+        return mProbeCount;
+    }
+
+    Metrics.Histogram getRoundTripHistogram() {
+        return mRoundTrip;
+    }
+
+    /**
+     * Time from the Micro:bit timestamp of a frame to the frame being shown.
+     */
+    Metrics.Histogram getSensorToScreenHistogram() {
+        return mSensorToScreen;
+    }
+
+    /**
+     * @return length of the timestamp of a frame "@123456 ...", including the space, 0 if
+     * the frame has none
+     */
+    static int timestampLength(byte[] buffer, int offset, int length) {
+        if (length < 2 || buffer[offset] != '@') {
+            return 0;
+        }
+        int end = offset + length;
+        int i = offset + 1;
+        while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+            i++;
+        }
+        if (i == offset + 1) {
+            return 0;
+        }
+        return i < end && buffer[i] == ' ' ? i + 1 - offset : i - offset;
+    }
+
+    /**
+     * The Micro:bit timestamp of a frame "@123456 ...", in phone time (System.nanoTime()).
+     *
+     * @return 0 if the frame has no timestamp, or the clocks are not aligned yet
+     */
+    long toPhoneNanos(byte[] buffer, int offset, int length) {
+        if (!mSynced || length < 2 || buffer[offset] != '@') {
+            return 0;
+        }
+        long deviceMillis = 0;
+        int end = offset + length;
+        int i = offset + 1;
+        while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+            deviceMillis = deviceMillis * 10 + buffer[i] - '0';
+            i++;
+        }
+        if (i == offset + 1) {
+            return 0;
+        }
+        return deviceMillis * 1000000L - mOffsetNanos;
+    }
+
+    private final Runnable mProbe = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+            final long sendNanos = System.nanoTime();
+            mRpc.call("ping", PERIOD, new UartRpc.Callback() {
+                @Override
+                public void onResult(UartRpc.Call call, String reply, Exception error) {
+                    if (error == null) {
+                        onPong(sendNanos, System.nanoTime(), reply);
+                    }
+                }
+            });
+            mHandler.postDelayed(this, PERIOD);
+        }
+    };
+
+    // on the BLE thread
+    private void onPong(long sendNanos, long receiveNanos, String reply) {
+        long deviceMillis;
+        try {
+            deviceMillis = Long.parseLong(reply.trim());
+        } catch (NumberFormatException e) {
+            if (Metrics.LOG) {
+                Log.i("ClockSync", mLabel + ": bad reply to ping: " + reply);
+            }
+            return;
+        }
+        long roundTrip = receiveNanos - sendNanos;
+        long offset = deviceMillis * 1000000L - (sendNanos + roundTrip / 2);
+        mRoundTrip.recordNanos(roundTrip);
+        Metrics.PING_RTT.recordNanos(roundTrip);
+
+        int slot = mProbeCount % FILTER;
+        mRoundTrips[slot] = roundTrip;
+        mOffsets[slot] = offset;
+        mProbeCount++;
+        int best = 0;
+        for (int i = 1; i < Math.min(mProbeCount, FILTER); i++) {
+            if (mRoundTrips[i] < mRoundTrips[best]) {
+                best = i;
+            }
+        }
+        mOffsetNanos = mOffsets[best];
+        mRoundTripNanos = mRoundTrips[best];
+        mSynced = true;
+        if (Metrics.LOG_PER_PACKET && Metrics.logSample()) {
+            Log.i("ClockSync", mLabel + String.format(Locale.US,
+                    ": rtt %.1f ms, offset %d ms", roundTrip / 1e6, mOffsetNanos / 1000000));
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the GATT sessions to all connected Micro:bits, e.g. a classroom set, and
+ * merges their UART data into one stream of frames, and decoded samples, tagged with
+ * the session (device) and receive time.
+ * <p>
+ * All sessions run on one dedicated thread, the BLE thread, which owns every
+ * BluetoothGatt interaction and the decoding; the ui thread never touches the GATT,
+ * and a busy ui thread does not delay the GATT callbacks. The stream listeners are
+ * called on the BLE thread, and should hand results to the ui thread without blocking,
+ * e.g. through a triple buffer (see RenderScheduler) or a SampleRing (see PlotView).
+ * <p>
+ * Replaces the ConnectedDevice hack for handing devices between activities. The
+ * sessions are kept alive by UartService, see there.
+ */
+class ConnectionManager {
+
+    interface StreamListener {
+        /**
+         * A complete frame from one of the sessions. The bytes are only valid during the
+         * call. Called on the BLE thread.
+         */
+        void onFrame(GattSession session, long timestampNanos,
+                     byte[] buffer, int offset, int length);
+
+        /**
+         * Samples decoded from a frame, see GattSession.SessionListener.onSamples.
+         * The array is only valid during the call. Called on the BLE thread.
+         */
+        void onSamples(GattSession session, long timestampNanos, int type,
+                       short[] samples, int count);
+
+        void onSessionStateChanged(GattSession session, GattSession.State state);
+
+        /**
+         * Connecting failed, the session retries, see GattSession.SessionListener.onError.
+         */
+        void onSessionError(GattSession session, String message);
+    }
+
+    private static ConnectionManager theInstance = null;
+    private static final Object lock = new Object();
+
+    static ConnectionManager getInstance(Context context) {
+        synchronized (lock) {
+            if (theInstance == null) {
+                theInstance = new ConnectionManager(context.getApplicationContext());
+            }
+            return theInstance;
+        }
+    }
+
+    private final Context mContext;
+    private final HandlerThread mBleThread;
+    private final Handler mHandler; // on the BLE thread
+    // sessions by device address, guarded by this
+    private final LinkedHashMap<String, GattSession> mSessions = new LinkedHashMap<>();
+    // copied on write under mListenerLock, delivered from without a lock or an iterator
+    private volatile StreamListener[] mListeners = new StreamListener[0];
+    private final Object mListenerLock = new Object();
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private volatile SessionRecorder mRecorder = null;
+    private final SampleHistory mHistory = new SampleHistory();
+    private final FrameStream mFrameStream = new FrameStream();
+    private UartBridge mBridge = null; // guarded by this
+    private boolean mPinging = false; // guarded by this
+
+    private ConnectionManager(Context context) {
+        mContext = context;
+        mBleThread = new HandlerThread("BLE", Process.THREAD_PRIORITY_FOREGROUND);
+        mBleThread.start();
+        mHandler = new Handler(mBleThread.getLooper());
+    }
+
+    void addStreamListener(StreamListener listener) {
+        synchronized (mListenerLock) {
+            StreamListener[] listeners = Arrays.copyOf(mListeners, mListeners.length + 1);
+            listeners[listeners.length - 1] = listener;
+            mListeners = listeners;
+        }
+    }
+
+    /**
+     * Never waits for the BLE thread: a delivery already in progress may still call the
+     * listener once after this returns, later deliveries do not.
+     */
+    void removeStreamListener(StreamListener listener) {
+        synchronized (mListenerLock) {
+            StreamListener[] listeners = mListeners;
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == listener) {
+                    StreamListener[] copy = new StreamListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, copy, 0, i);
+                    System.arraycopy(listeners, i + 1, copy, i, copy.length - i);
+                    mListeners = copy;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Connect to device, unless there already is a session for it.
+     */
+    GattSession connect(BluetoothDevice device, LinkMode linkMode, DataFormat dataFormat) {
+        synchronized (this) {
+            GattSession session = mSessions.get(device.getAddress());
+            if (session != null) {
+                return session;
+            }
+        }
+        return connect(new GattTransport(mContext, device, linkMode, dataFormat, mHandler),
+                dataFormat);
+    }
+
+    /**
+     * Connect over transport, e.g. a SimulatedMicrobit, unless there already is a session
+     * for its address. The transport must run on getHandler().
+     */
+    GattSession connect(UartTransport transport, DataFormat dataFormat) {
+        GattSession session;
+        synchronized (this) {
+            session = mSessions.get(transport.getAddress());
+            if (session != null) {
+                return session;
+            }
+            session = new GattSession(transport, dataFormat, mHandler, mSessionListener);
+            session.setPinging(mPinging);
+            mSessions.put(transport.getAddress(), session);
+        }
+        session.connect();
+        return session;
+    }
+
+    /**
+     * The BLE thread, for transports and timers.
+     */
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    void disconnect(String address) {
+        GattSession session;
+        synchronized (this) {
+            session = mSessions.remove(address);
+        }
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    void disconnectAll() {
+        List<GattSession> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<>(mSessions.values());
+            mSessions.clear();
+        }
+        for (GattSession session : sessions) {
+            session.close();
+        }
+    }
+
+    synchronized List<GattSession> getSessions() {
+        return new ArrayList<>(mSessions.values());
+    }
+
+    synchronized int size() {
+        return mSessions.size();
+    }
+
+    /**
+     * Queue data for all sessions that are ready.
+     *
+     * @return number of sessions that accepted the data
+     */
+    int broadcast(byte[] data) {
+        int accepted = 0;
+        for (GattSession session : getSessions()) {
+            if (session.getState() == GattSession.State.READY && session.offer(data)) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Queue data for one session, if ready.
+     *
+     * @return false if there is no such session, or it did not accept the data
+     */
+    boolean send(String address, byte[] data) {
+        GattSession session;
+        synchronized (this) {
+            session = mSessions.get(address);
+        }
+        return session != null && session.getState() == GattSession.State.READY
+                && session.offer(data);
+    }
+
+    /**
+     * Ping mode for all sessions, also those connected later, see ClockSync.
+     */
+    void setPinging(boolean pinging) {
+        List<GattSession> sessions;
+        synchronized (this) {
+            mPinging = pinging;
+            sessions = new ArrayList<>(mSessions.values());
+        }
+        for (GattSession session : sessions) {
+            session.setPinging(pinging);
+        }
+    }
+
+    synchronized boolean isPinging() {
+        return mPinging;
+    }
+
+    /**
+     * Serve the stream to local TCP clients, see UartBridge.
+     */
+    void startBridge(int port, int framing) throws IOException {
+        stopBridge();
+        UartBridge bridge = new UartBridge(this, port, framing);
+        synchronized (this) {
+            mBridge = bridge;
+        }
+    }
+
+    void stopBridge() {
+        UartBridge bridge;
+        synchronized (this) {
+            bridge = mBridge;
+            mBridge = null;
+        }
+        // not holding the lock, the bridge thread may be in broadcast
+        if (bridge != null) {
+            bridge.close();
+        }
+    }
+
+    /**
+     * The active bridge, or null.
+     */
+    synchronized UartBridge getBridge() {
+        return mBridge;
+    }
+
+    /**
+     * Record the packets from all sessions in dataFormat to file, see SessionRecorder.
+     */
+    void startRecording(File file, DataFormat dataFormat) throws IOException {
+        stopRecording();
+        mRecorder = new SessionRecorder(file, dataFormat);
+    }
+
+    void stopRecording() throws IOException {
+        SessionRecorder recorder = mRecorder;
+        mRecorder = null;
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+
+    /**
+     * The active recorder, or null.
+     */
+    SessionRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * The merged frames, for subscribers on their own threads with flow control.
+     * Unlike the stream listeners, slow subscribers never stall the GATT callbacks.
+     */
+    FrameStream getFrameStream() {
+        return mFrameStream;
+    }
+
+    /**
+     * The decoded samples of all sessions, in fixed memory.
+     */
+    SampleHistory getHistory() {
+        return mHistory;
+    }
+
+    /**
+     * Total number of frames in the merged stream.
+     */
+    long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    private final GattSession.SessionListener mSessionListener =
+            new GattSession.SessionListener() {
+                @Override
+                public void onStateChanged(GattSession session, GattSession.State state) {
+                    for (StreamListener listener : mListeners) {
+                        listener.onSessionStateChanged(session, state);
+                    }
+                }
+
+                @Override
+                public void onError(GattSession session, String message) {
+                    for (StreamListener listener : mListeners) {
+                        listener.onSessionError(session, message);
+                    }
+                }
+
+                @Override
+                public void onPacket(GattSession session, long timestampNanos, byte[] value) {
+                    SessionRecorder recorder = mRecorder;
+                    if (recorder != null && recorder.getDataFormat() == session.getDataFormat()) {
+                        recorder.record(session.getAddress(), timestampNanos,
+                                value, 0, value.length);
+                    }
+                }
+
+                @Override
+                public void onFrame(GattSession session, long timestampNanos,
+                                    byte[] buffer, int offset, int length) {
+                    mFrameCount.incrementAndGet();
+                    for (StreamListener listener : mListeners) {
+                        listener.onFrame(session, timestampNanos, buffer, offset, length);
+                    }
+                    mFrameStream.publish(session, timestampNanos, buffer, offset, length);
+                }
+
+                @Override
+                public void onSamples(GattSession session, long timestampNanos, int type,
+                                      short[] samples, int count) {
+                    mHistory.append(session, timestampNanos, type, samples, count);
+                    for (StreamListener listener : mListeners) {
+                        listener.onSamples(session, timestampNanos, type, samples, count);
+                    }
+                }
+            };
+}
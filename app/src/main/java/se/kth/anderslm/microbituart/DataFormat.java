@@ -0,0 +1,13 @@
+package se.kth.anderslm.microbituart;
+
+/**
+ * How the Micro:bit encodes data sent over UART.
+ * TEXT is lines of text, e.g. "12,-980,40\n", numbers are parsed by TextSampleCodec.
+ * BINARY is length-prefixed frames of little-endian int16 samples, see SensorCodec,
+ * about a quarter smaller for accelerometer data, and twice as fast to decode
+ * (see SensorCodecTest).
+ */
+enum DataFormat {
+    TEXT,
+    BINARY
+}
@@ -1,214 +1,337 @@
 package se.kth.anderslm.microbituart;
 
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.View;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.List;
-import java.util.UUID;
+import java.util.Locale;
+
+import se.kth.anderslm.microbituart.SampleHistory.Channel;
 
 /**
- * This is where we manage the BLE device and the corresponding services, characteristics et c.
- * BluetoothGattCallback.onCharacteristicChanged receives some text data from the Micro:bit
- * and displays it.
+ * Displays the UART data from the connected Micro:bits, see ConnectionManager and
+ * GattSession for the management of the BLE devices, services, characteristics et c.
+ * Data from all devices is merged into one stream, each line tagged with the device.
  * <p>
- * NB! In this simple example there is no other way to turn off notifications than to
- * leave the activity (the BluetoothGatt is disconnected and closed in activity.onStop).
- * The code should also be refactored into a set of suitable classes.
- * This is left for the student to implement.
+ * The sessions are owned by UartService, the activity attaches to them when bound to
+ * the service (onStart) and detaches when unbound (onStop) - the connections, and the
+ * sample history, survive switching apps. When attaching, the plot catches up from the
+ * history. Leaving the activity (back) stops the service, which disconnects all devices.
  */
 public class DeviceActivity extends AppCompatActivity {
 
-    /**
-     * Documentation on UUID:s and such for services on a BBC Micro:bit.
-     * Characteristics et c. are found at
-     * https://lancaster-university.github.io/microbit-docs/resources/bluetooth/bluetooth_profile.html
-     */
-    public static final UUID CLIENT_CHARACTERISTIC_CONFIG =
-            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    // period for updating the link statistics, 1000 ms
+    private static final long STATS_PERIOD = 1000;
+    // number of received lines shown
+    private static final int TAIL_LINES = 5;
+    // debug: show a Toast for every message, too slow for more than a few messages/sec
+    private static final boolean DEBUG_TOAST_PER_MESSAGE = false;
 
-    public static final UUID  UARTSERVICE_SERVICE_UUID =
-            UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
-    public static final UUID UART_TX_CHARACTERISTIC_UUID = // receive data(!)
-            UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E");
-    public static final UUID UART_RX_CHARACTERISTIC_UUID = // transmit data (!)
-            UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E");
+    private static final int REQUEST_FILE = 1;
+    // max size of a file sent with BulkTransfer
+    private static final int MAX_FILE_SIZE = 512 * 1024;
 
-    private BluetoothDevice mConnectedDevice = null;
-    private BluetoothGatt mBluetoothGatt = null;
-    private BluetoothGattService mUartService = null;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
-    private Handler mHandler; // callbacks executed on background thread (it seems)
+    private ConnectionManager mConnectionManager; // set when bound to UartService
+    private boolean mAttached = false;
+    private Uri mPendingFile = null; // picked, to be read when attached
+    private byte[] mPendingData = null; // read, to be sent when attached
 
-    @Override
-    protected void onStart() {
-        super.onStart();
-        mConnectedDevice = ConnectedDevice.getInstance();
-        if (mConnectedDevice != null) {
-            mDeviceView.setText(mConnectedDevice.toString());
-            connect();
-        }
-    }
+    private Handler mHandler; // on the ui thread, the stream is delivered on the BLE thread
 
-    @Override
-    protected void onStop() {
-        super.onStop();
-        if (mBluetoothGatt != null) {
-            mBluetoothGatt.close();
-        }
-        ConnectedDevice.removeInstance();
-        mConnectedDevice = null;
-        finish();
-    }
+    // updates mDataView at most once per display frame, created in onCreate
+    private RenderScheduler mRenderScheduler;
 
-    private void connect() {
-        if (mConnectedDevice != null) {
-            // register call backs for bluetooth gatt
-            mBluetoothGatt = mConnectedDevice.connectGatt(this, false, mBtGattCallback);
-            Log.i("connect", "connectGatt called");
-        }
-    }
+    // used when catching up from the sample history, on the ui thread
+    private final long[] mCatchUpTimes = new long[PlotView.CAPACITY];
+    private final float[] mCatchUpValues = new float[PlotView.CAPACITY];
 
     /**
-     * Callbacks for bluetooth gatt changes/updates
-     * The documentation is not clear, but (some of?) the callback methods seems to
-     * be executed on a worker thread - hence use a Handler when updating the ui.
+     * Complete frames from all Micro:bits: lines of text are shown as they are,
+     * binary frames as their decoded samples.
      */
-    private BluetoothGattCallback mBtGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            Log.i("BluetoothGattCallback", "onConnectionStateChange");
-
-            if (newState == BluetoothGatt.STATE_CONNECTED) {
-                mBluetoothGatt = gatt;
-                gatt.discoverServices();
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        mDataView.setText(getString(R.string.connected_msg));
+    private final ConnectionManager.StreamListener mStreamListener =
+            new ConnectionManager.StreamListener() {
+                @Override
+                public void onFrame(GattSession session, long timestampNanos,
+                                    byte[] buffer, int offset, int length) {
+                    if (session.getDataFormat() != DataFormat.TEXT) {
+                        return;
                     }
-                });
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                // close connection and display info in ui
-                mBluetoothGatt = null;
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        mDataView.setText(getString(R.string.disconnected_msg));
+                    // frames with a Micro:bit timestamp, once the clocks are aligned
+                    ClockSync clockSync = session.getClockSync();
+                    mRenderScheduler.publishText(session.getLabel(), buffer, offset, length,
+                            timestampNanos, clockSync.toPhoneNanos(buffer, offset, length),
+                            clockSync.getSensorToScreenHistogram());
+                    if (DEBUG_TOAST_PER_MESSAGE) {
+                        final String msg = session.getLabel() + ": " +
+                                new String(buffer, offset, length, UTF8);
+                        mHandler.post(new Runnable() {
+                            public void run() {
+                                showToast(msg);
+                            }
+                        });
                     }
-                });
-            }
-        }
+                }
 
-        @Override
-        public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
-            Log.i("BluetoothGattCallback", "onServicesDiscovered");
-
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // debug, list services
-                BleLogger.logServices(gatt.getServices());
-
-                // Get the UART service
-                mUartService = gatt.getService(UARTSERVICE_SERVICE_UUID);
-                Log.i("mUartService",
-                        mUartService==null? "null" : mUartService.getUuid().toString() );
-
-                if (mUartService != null) {
-                    // debug, list characteristics
-                    BleLogger.logCharacteristicsForService(mUartService);
-
-                    // Enable indications for UART data
-                    // 1. Enable notification/indication on ble peripheral (Micro:bit)
-                    BluetoothGattCharacteristic txCharac =
-                            mUartService.getCharacteristic(UART_TX_CHARACTERISTIC_UUID);
-                    BluetoothGattDescriptor descriptor =
-                            txCharac.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
-                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-                    mBluetoothGatt.writeDescriptor(descriptor);
-
-                    // 2. Enable indications/notification locally (this android device)
-                    mBluetoothGatt.setCharacteristicNotification(txCharac, true);
-                    Log.i("onServiceDiscovered", "notification/indication set");
-                } else {
+                @Override
+                public void onSamples(GattSession session, long timestampNanos, int type,
+                                      short[] samples, int count) {
+                    Channel[] channels =
+                            mConnectionManager.getHistory().getChannels(session, type, count);
+                    for (int i = 0; i < count; i++) {
+                        Channel channel = channels[i];
+                        if (channel != null) {
+                            if (!mPlotView.hasLabel(channel.id)) {
+                                mPlotView.setLabel(channel.id, channel.toString());
+                            }
+                            mPlotView.append(channel.id, timestampNanos, samples[i]);
+                        }
+                    }
+
+                    if (session.getDataFormat() != DataFormat.BINARY) {
+                        return;
+                    }
+                    mRenderScheduler.publishSamples(session.getLabel(), type, samples, count,
+                            timestampNanos);
+                }
+
+                @Override
+                public void onSessionStateChanged(GattSession session,
+                                                  GattSession.State state) {
+                    mHandler.post(mDeviceViewUpdater);
+                }
+
+                @Override
+                public void onSessionError(GattSession session, String message) {
+                    final String msg = session.getLabel() + ": " + message;
                     mHandler.post(new Runnable() {
                         public void run() {
-                            showToast("Uart-data characteristic not found");
+                            showToast(msg);
                         }
                     });
                 }
-            }
+            };
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            attach(((UartService.LocalBinder) service).getConnectionManager());
         }
 
         @Override
-        public void onDescriptorWrite(final BluetoothGatt gatt, BluetoothGattDescriptor
-                descriptor, int status) {
-            Log.i("BluetoothGattCallback", "onDescriptorWrite");
+        public void onServiceDisconnected(ComponentName name) {
+            detach();
+        }
+    };
 
-            Log.i("onDescriptorWrite", "descriptor " + descriptor.getUuid());
-            Log.i("onDescriptorWrite", "status " + status);
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, UartService.class), mServiceConnection,
+                Context.BIND_AUTO_CREATE);
+    }
 
-            if (CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor.getUuid()) &&
-                    status == BluetoothGatt.GATT_SUCCESS) {
+    @Override
+    protected void onStop() {
+        super.onStop();
+        detach();
+        unbindService(mServiceConnection);
+    }
 
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        showToast("Uart-data notifications enabled");
-                        mDeviceView.setText(getString(R.string.uart_sensor_info));
-                    }
-                });
-            }
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            // the user left, disconnect all devices
+            UartService.stop(this);
         }
+    }
 
-        /**
-         * Callback called on characteristic changes, e.g. when a data value is changed.
-         * This is where we receive notifications on updates of accelerometer data.
-         */
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic
-                characteristic) {
-            Log.i("BluetoothGattCallback", "onCharacteristicChanged: " + characteristic.toString());
+    private void attach(ConnectionManager connectionManager) {
+        mConnectionManager = connectionManager;
+        mAttached = true;
+        // the plot is written by this thread until the listener is added
+        catchUp();
+        mConnectionManager.addStreamListener(mStreamListener);
+        mRenderScheduler.start();
+        mRecordBox.setChecked(mConnectionManager.getRecorder() != null);
+        mBridgeBox.setChecked(mConnectionManager.getBridge() != null);
+        mPingBox.setChecked(mConnectionManager.isPinging());
+        if (mPendingFile != null) {
+            sendFile();
+        } else if (mPendingData != null) {
+            startBulkTransfers();
+        }
+        mDeviceViewUpdater.run();
+        mHandler.postDelayed(mStatsUpdater, STATS_PERIOD);
+    }
 
-            // TODO: check which service and characteristic caused this call
-            BluetoothGattCharacteristic uartTxCharacteristic =
-                    mUartService.getCharacteristic(UART_TX_CHARACTERISTIC_UUID);
+    private void detach() {
+        if (!mAttached) {
+            return;
+        }
+        mAttached = false;
+        mHandler.removeCallbacks(mStatsUpdater);
+        mHandler.removeCallbacks(mDeviceViewUpdater);
+        mRenderScheduler.stop();
+        mConnectionManager.removeStreamListener(mStreamListener);
+    }
 
-            // We assume we receive a string from the Micro:bit
-            final String msg = uartTxCharacteristic.getStringValue(0);
-            mHandler.post(new Runnable() {
-                public void run() {
-                    showToast(msg);
-                    mDataView.setText(msg);
-                }
-            });
+    // fill the plot with the samples received while detached
+    private void catchUp() {
+        long now = System.nanoTime();
+        for (Channel channel : mConnectionManager.getHistory().getChannels()) {
+            if (channel.id >= PlotView.MAX_CHANNELS) {
+                continue;
+            }
+            long from = Math.max(now - PlotView.WINDOW_NANOS,
+                    mPlotView.getLatestTime(channel.id) + 1);
+            int n = channel.store.query(from, now, PlotView.CAPACITY,
+                    mCatchUpTimes, mCatchUpValues);
+            if (!mPlotView.hasLabel(channel.id)) {
+                mPlotView.setLabel(channel.id, channel.toString());
+            }
+            for (int i = 0; i < n; i++) {
+                mPlotView.append(channel.id, mCatchUpTimes[i], mCatchUpValues[i]);
+            }
         }
+    }
 
+    private final Runnable mDeviceViewUpdater = new Runnable() {
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic
-                characteristic, int status) {
-            Log.i("BluetoothGattCallback",
-                    "onCharacteristicWrite: " + characteristic.getUuid().toString());
+        public void run() {
+            List<GattSession> sessions = mConnectionManager.getSessions();
+            if (sessions.size() == 1) {
+                GattSession session = sessions.get(0);
+                mDeviceView.setText(session.getLabel() + "\n" + session.getState());
+            } else {
+                int ready = 0;
+                for (GattSession session : sessions) {
+                    if (session.getState() == GattSession.State.READY) {
+                        ready++;
+                    }
+                }
+                mDeviceView.setText(getString(R.string.devices_msg, sessions.size(), ready));
+            }
         }
+    };
 
+    private final Runnable mStatsUpdater = new Runnable() {
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic
-                characteristic, int status) {
-            Log.i("BluetoothGattCallback",
-                    "onCharacteristicRead: " + characteristic.getUuid().toString());
+        public void run() {
+            long now = System.nanoTime();
+            StringBuilder sb = new StringBuilder();
+            sb.append(getString(R.string.stream_stats_msg,
+                    mConnectionManager.getFrameCount(), mRenderScheduler.getCoalescedCount()));
+            for (GattSession session : mConnectionManager.getSessions()) {
+                LinkStats linkStats = session.getLinkStats();
+                UartWriter uartWriter = session.getUartWriter();
+                linkStats.sample(now);
+                uartWriter.sample(now);
+                sb.append('\n').append(getString(R.string.link_stats_msg,
+                        session.getLabel(), session.getLinkMode().toString(),
+                        linkStats.getMtu(), linkStats.getIntervalMillis(),
+                        linkStats.getBytesPerSecond(), uartWriter.getBytesPerSecond(),
+                        uartWriter.getQueuedBytes()));
+                PriorityController priority = session.getPriorityController();
+                if (priority.getTransitionCount() > 0) {
+                    sb.append('\n').append(getString(R.string.priority_msg, session.getLabel(),
+                            PriorityController.priorityName(priority.getPriority()),
+                            priority.getRate(), priority.getTransitionCount()));
+                }
+                ClockSync clockSync = session.getClockSync();
+                if (clockSync.isSynced()) {
+                    Metrics.Histogram roundTrip = clockSync.getRoundTripHistogram();
+                    sb.append('\n').append(getString(R.string.ping_msg, session.getLabel(),
+                            roundTrip.getPercentileMillis(0.5),
+                            roundTrip.getPercentileMillis(0.99),
+                            clockSync.getOffsetNanos() / 1000000,
+                            clockSync.getRoundTripNanos() / 2e6,
+                            clockSync.getSensorToScreenHistogram().getPercentileMillis(0.5)));
+                }
+                BulkTransfer bulk = session.getBulkTransfer();
+                if (bulk.getTotalBytes() > 0) {
+                    sb.append('\n').append(getString(R.string.bulk_msg, session.getLabel(),
+                            bulk.getAckedBytes(), bulk.getTotalBytes(),
+                            bulk.getBytesPerSecond(), bulk.getRetransmitCount()));
+                }
+                UartRpc rpc = session.getRpc();
+                if (rpc.getCallCount() > 0) {
+                    sb.append('\n').append(getString(R.string.rpc_msg, session.getLabel(),
+                            rpc.getCallCount(), rpc.getPendingCount()));
+                }
+                if (session.getDataFormat() == DataFormat.BINARY) {
+                    sb.append('\n').append(getString(R.string.codec_stats_msg,
+                            session.getLabel(), session.getLostFrameCount(),
+                            session.getCorruptFrameCount()));
+                }
+            }
+            List<Channel> channels = mConnectionManager.getHistory().getChannels();
+            if (!channels.isEmpty()) {
+                int bytes = 0;
+                for (Channel channel : channels) {
+                    bytes += channel.store.getMemoryBytes();
+                }
+                sb.append('\n').append(getString(R.string.history_msg, channels.size(),
+                        bytes / 1024, (now - channels.get(0).store.getOldestTime()) / 1e9));
+            }
+            sb.append('\n').append(getString(R.string.plot_stats_msg,
+                    mPlotView.getFrameCount(), mPlotView.getDroppedFrameCount()));
+            UartBridge bridge = mConnectionManager.getBridge();
+            if (bridge != null) {
+                sb.append('\n').append(getString(R.string.bridge_msg, bridge.getPort(),
+                        bridge.getClientCount(), bridge.getStalledCount(),
+                        bridge.getDroppedFrameCount(), bridge.getRejectedFrameCount()));
+            }
+            SessionRecorder recorder = mConnectionManager.getRecorder();
+            if (recorder != null) {
+                sb.append('\n').append(getString(R.string.recording_msg,
+                        recorder.getRecordCount(), recorder.getBytesWritten(),
+                        recorder.getDroppedCount()));
+            }
+            mStatsView.setText(sb);
+            if (Metrics.ENABLED) {
+                mMetricsView.setText(mOverlayMetrics.take());
+            }
+            mHandler.postDelayed(this, STATS_PERIOD);
         }
     };
 
     // Below: gui stuff...
     private TextView mDeviceView;
     private TextView mDataView;
+    private PlotView mPlotView;
+    private TextView mStatsView;
+    private EditText mSendText;
+    private TextView mMetricsView; // debug overlay
+    // rates since the previous refresh, and since the previous dump
+    private final Metrics.Snapshot mOverlayMetrics = new Metrics.Snapshot();
+    private final Metrics.Snapshot mDumpMetrics = new Metrics.Snapshot();
+    private CheckBox mRecordBox;
+    private CheckBox mBridgeBox;
+    private CheckBox mPingBox;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -217,12 +340,263 @@ public class DeviceActivity extends AppCompatActivity {
 
         mDeviceView = findViewById(R.id.deviceView);
         mDataView = findViewById(R.id.dataView);
+        mPlotView = findViewById(R.id.plotView);
+        mStatsView = findViewById(R.id.statsView);
+        mSendText = findViewById(R.id.sendText);
+        mMetricsView = findViewById(R.id.metricsView);
+        mMetricsView.setVisibility(Metrics.ENABLED ? View.VISIBLE : View.GONE);
+
+        // long click on the statistics: dump all metrics to the log
+        mStatsView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                Log.i("Metrics", mDumpMetrics.take());
+                showToast("Metrics dumped to log");
+                return true;
+            }
+        });
+
+        Button sendButton = findViewById(R.id.sendButton);
+        sendButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                sendLine(mSendText.getText().toString());
+            }
+        });
+
+        Button fileButton = findViewById(R.id.fileButton);
+        fileButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("*/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(intent, REQUEST_FILE);
+            }
+        });
+
+        mRecordBox = findViewById(R.id.recordBox);
+        mRecordBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                setRecording(isChecked);
+            }
+        });
+
+        mPingBox = findViewById(R.id.pingBox);
+        mPingBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (mAttached) {
+                    mConnectionManager.setPinging(isChecked);
+                }
+            }
+        });
+
+        mBridgeBox = findViewById(R.id.bridgeBox);
+        mBridgeBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                setBridge(isChecked);
+            }
+        });
 
         mHandler = new Handler();
+        mRenderScheduler = new RenderScheduler(TAIL_LINES, new RenderScheduler.Renderer() {
+            @Override
+            public void render(CharSequence text) {
+                mDataView.setText(text);
+            }
+        });
+    }
+
+    // record all received data to a file in the app's external files directory
+    private void setRecording(boolean record) {
+        if (!mAttached || record == (mConnectionManager.getRecorder() != null)) {
+            return;
+        }
+        try {
+            if (record) {
+                String name = String.format(Locale.US,
+                        "session-%1$tY%1$tm%1$td-%1$tH%1$tM%1$tS.bin", System.currentTimeMillis());
+                File file = new File(getExternalFilesDir(null), name);
+                // one data format per recording, that of the first device
+                List<GattSession> sessions = mConnectionManager.getSessions();
+                mConnectionManager.startRecording(file, sessions.isEmpty()
+                        ? DataFormat.TEXT : sessions.get(0).getDataFormat());
+                showToast("Recording to " + file);
+            } else {
+                mConnectionManager.stopRecording();
+            }
+        } catch (IOException e) {
+            showToast("Recording failed: " + e.getMessage());
+            mRecordBox.setChecked(false);
+        }
+    }
+
+    // forward the stream to local TCP clients, e.g. "adb forward tcp:7777 tcp:7777"
+    private void setBridge(boolean bridge) {
+        if (!mAttached || bridge == (mConnectionManager.getBridge() != null)) {
+            return;
+        }
+        try {
+            if (bridge) {
+                // lines for text, binary frames need a length prefix
+                int framing = UartBridge.FRAMING_LINE;
+                for (GattSession session : mConnectionManager.getSessions()) {
+                    if (session.getDataFormat() == DataFormat.BINARY) {
+                        framing = UartBridge.FRAMING_LENGTH;
+                    }
+                }
+                mConnectionManager.startBridge(UartBridge.DEFAULT_PORT, framing);
+                showToast("Bridge on port " + UartBridge.DEFAULT_PORT
+                        + (framing == UartBridge.FRAMING_LINE ? ", lines" : ", length prefixed"));
+            } else {
+                mConnectionManager.stopBridge();
+            }
+        } catch (IOException e) {
+            showToast("Bridge failed: " + e.getMessage());
+            mBridgeBox.setChecked(false);
+        }
+    }
+
+    // send a line of text to all Micro:bits, terminated by '\n'; "?command" is a call
+    private void sendLine(String line) {
+        if (!mAttached) {
+            return;
+        }
+        if (line.startsWith("?")) {
+            call(line.substring(1));
+            return;
+        }
+        byte[] data = (line + "\n").getBytes(UTF8);
+        int accepted = mConnectionManager.broadcast(data);
+        if (accepted < mConnectionManager.size()) {
+            showToast(getString(R.string.not_sent_msg, mConnectionManager.size() - accepted));
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_FILE && resultCode == RESULT_OK && data != null) {
+            // usually before the service is bound again, see attach
+            mPendingFile = data.getData();
+            if (mAttached) {
+                sendFile();
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    // read the picked file, up to MAX_FILE_SIZE from a content provider that may be slow,
+    // on a thread of its own, then send it on the ui thread
+    private void sendFile() {
+        final Uri uri = mPendingFile;
+        mPendingFile = null;
+        new Thread("FileReader") {
+            @Override
+            public void run() {
+                try {
+                    final byte[] data = readFile(uri);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPendingData = data;
+                            if (mAttached) {
+                                startBulkTransfers();
+                            }
+                        }
+                    });
+                } catch (final IOException e) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            showToast("File failed: " + e.getMessage());
+                        }
+                    });
+                }
+            }
+        }.start();
+    }
+
+    // send the read file to each Micro:bit (text data format), see BulkTransfer
+    private void startBulkTransfers() {
+        byte[] data = mPendingData;
+        mPendingData = null;
+        for (final GattSession session : mConnectionManager.getSessions()) {
+            if (session.getDataFormat() != DataFormat.TEXT) {
+                continue;
+            }
+            session.getBulkTransfer().start(data, new BulkTransfer.Listener() {
+                @Override
+                public void onProgress(BulkTransfer transfer, long ackedBytes,
+                                       long totalBytes, double bytesPerSecond) {
+                    // shown by the stats updater
+                }
+
+                @Override
+                public void onComplete(BulkTransfer transfer, final String error) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            showToast(error == null
+                                    ? getString(R.string.bulk_done_msg, session.getLabel())
+                                    : session.getLabel() + ": " + error);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private byte[] readFile(Uri uri) throws IOException {
+        InputStream in = getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new IOException("can not open " + uri);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_FILE_SIZE) {
+                    throw new IOException("larger than " + MAX_FILE_SIZE / 1024 + " kB");
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    // call each ready Micro:bit (text data format), the replies are shown as they come
+    private void call(String command) {
+        for (final GattSession session : mConnectionManager.getSessions()) {
+            if (session.getDataFormat() != DataFormat.TEXT) {
+                continue;
+            }
+            session.getRpc().call(command, new UartRpc.Callback() {
+                @Override
+                public void onResult(final UartRpc.Call call, final String reply,
+                                     final Exception error) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            showToast(error == null
+                                    ? getString(R.string.rpc_reply_msg, session.getLabel(),
+                                    reply, call.getLatencyNanos() / 1e6)
+                                    : session.getLabel() + ": " + error.getMessage());
+                        }
+                    });
+                }
+            });
+        }
     }
 
     protected void showToast(String msg) {
         Toast toast = Toast.makeText(this, msg, Toast.LENGTH_SHORT);
         toast.show();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,139 @@
+package se.kth.anderslm.microbituart;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The steps turning one device list into another, keyed by device address: removals,
+ * moves, inserts and changes (same device, new rssi or name), in the order a
+ * RecyclerView adapter reports them. Only inserted and changed rows need binding.
+ * Devices whose relative order holds (the longest increasing run of their new
+ * positions) stay put, the others are moved, one step each.
+ */
+class DeviceListDiff {
+
+    interface Callback {
+        void onRemoved(int position);
+
+        void onMoved(int fromPosition, int toPosition);
+
+        void onInserted(int position);
+
+        void onChanged(int position);
+    }
+
+    private DeviceListDiff() {
+    }
+
+    static void dispatch(List<ScanEntry> oldEntries, List<ScanEntry> newEntries,
+                         Callback callback) {
+        HashMap<String, Integer> newIndex = new HashMap<>();
+        for (int i = 0; i < newEntries.size(); i++) {
+            newIndex.put(newEntries.get(i).getAddress(), i);
+        }
+        HashMap<String, ScanEntry> old = new HashMap<>();
+        for (ScanEntry entry : oldEntries) {
+            old.put(entry.getAddress(), entry);
+        }
+
+        // removals, from the end so the positions of the rest hold
+        ArrayList<String> rows = new ArrayList<>(oldEntries.size());
+        for (ScanEntry entry : oldEntries) {
+            rows.add(entry.getAddress());
+        }
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            if (!newIndex.containsKey(rows.get(i))) {
+                rows.remove(i);
+                callback.onRemoved(i);
+            }
+        }
+
+        // moves, each device out of order goes right after its predecessor in the new
+        // list, in new list order so the predecessor is already in place
+        int[] positions = new int[rows.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = newIndex.get(rows.get(i));
+        }
+        boolean[] stays = increasingRun(positions);
+        boolean[] moves = new boolean[newEntries.size()];
+        for (int i = 0; i < positions.length; i++) {
+            moves[positions[i]] = !stays[i];
+        }
+        for (int i = 0; i < newEntries.size(); i++) {
+            if (!moves[i]) {
+                continue;
+            }
+            String address = newEntries.get(i).getAddress();
+            int from = rows.indexOf(address);
+            rows.remove(from);
+            int to = 0;
+            for (int j = i - 1; j >= 0; j--) {
+                String previous = newEntries.get(j).getAddress();
+                if (old.containsKey(previous)) {
+                    to = rows.indexOf(previous) + 1;
+                    break;
+                }
+            }
+            rows.add(to, address);
+            if (from != to) {
+                callback.onMoved(from, to);
+            }
+        }
+
+        // inserts, the old devices are in order now
+        for (int i = 0; i < newEntries.size(); i++) {
+            if (!old.containsKey(newEntries.get(i).getAddress())) {
+                callback.onInserted(i);
+            }
+        }
+
+        // changes
+        for (int i = 0; i < newEntries.size(); i++) {
+            ScanEntry entry = newEntries.get(i);
+            ScanEntry previous = old.get(entry.getAddress());
+            if (previous != null && changed(previous, entry)) {
+                callback.onChanged(i);
+            }
+        }
+    }
+
+    private static boolean changed(ScanEntry e1, ScanEntry e2) {
+        return e1.getRssi() != e2.getRssi()
+                || (e1.getName() == null ? e2.getName() != null
+                : !e1.getName().equals(e2.getName()));
+    }
+
+    /**
+     * @return which values make up a longest strictly increasing subsequence
+     */
+    static boolean[] increasingRun(int[] values) {
+        int n = values.length;
+        // tails[k]: index of the smallest value ending a run of length k + 1
+        int[] tails = new int[n];
+        int[] previous = new int[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        boolean[] inRun = new boolean[n];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            inRun[i] = true;
+        }
+        return inRun;
+    }
+}
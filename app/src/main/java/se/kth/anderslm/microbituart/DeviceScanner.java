@@ -0,0 +1,334 @@
+package se.kth.anderslm.microbituart;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Scans for BLE devices with names containing a given string, e.g. "BBC micro:bit".
+ * The scan callback only appends the result to a pending buffer, all other work (device
+ * names, de-duplication by address in a hash map) is done on a background thread.
+ * The ui gets a snapshot of all matching devices, with updated rssi and last seen time,
+ * at most every DELIVERY_PERIOD ms.
+ * <p>
+ * Hardware scan filters only match complete device names, and the Micro:bit name has a
+ * suffix, e.g. "BBC micro:bit [zavep]", so names are filtered on the scan thread instead.
+ * On API 21 and up results are batched by the controller if it supports it.
+ * <p>
+ * Each start begins a new scan generation. Pending results and the entries on the scan
+ * thread carry the generation they belong to, and the ui drops a snapshot of an older
+ * scan, e.g. one drained by stop that arrives after the next start.
+ */
+class DeviceScanner {
+
+    interface Listener {
+        /**
+         * All matching devices found so far, called on the ui thread.
+         */
+        void onScanResults(List<ScanEntry> entries);
+
+        void onScanStopped();
+    }
+
+    // period for delivering results to the ui, 250 ms
+    static final long DELIVERY_PERIOD = 250;
+    private static final int MAX_PENDING = 256;
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final String mNameFilter;
+    private final Listener mListener;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread mScanThread;
+    private final Handler mScanHandler;
+
+    // pending results, double buffered, guarded by mPendingLock
+    private final Object mPendingLock = new Object();
+    private BluetoothDevice[] mPendingDevices = new BluetoothDevice[MAX_PENDING];
+    private int[] mPendingRssi = new int[MAX_PENDING];
+    private int mPendingCount = 0;
+    private long mDroppedCount = 0;
+    private int mPendingGeneration = 0;
+
+    // owned by the scan thread
+    private BluetoothDevice[] mDrainDevices = new BluetoothDevice[MAX_PENDING];
+    private int[] mDrainRssi = new int[MAX_PENDING];
+    private final HashMap<String, ScanEntry> mEntries = new HashMap<>();
+    private final ArrayList<ScanEntry> mOrder = new ArrayList<>(); // in order found
+    private final HashSet<String> mRejected = new HashSet<>();
+    private long mResultCount = 0;
+    private int mEntriesGeneration = 0;
+
+    private volatile boolean mScanning = false;
+    // incremented by start, on the ui thread
+    private volatile int mGeneration = 0;
+    private LeScanner mLeScanner = null; // API 21 and up
+
+    DeviceScanner(BluetoothAdapter bluetoothAdapter, String nameFilter, Listener listener) {
+        mBluetoothAdapter = bluetoothAdapter;
+        mNameFilter = nameFilter;
+        mListener = listener;
+        mScanThread = new HandlerThread("DeviceScanner");
+        mScanThread.start();
+        mScanHandler = new Handler(mScanThread.getLooper());
+    }
+
+    boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Start scanning, stops after period ms. Previously found devices are forgotten.
+     */
+    void start(long period) {
+        if (mScanning) {
+            return;
+        }
+        mScanning = true;
+        final int generation = mGeneration + 1;
+        mGeneration = generation;
+        // results of the previous scan not drained yet, e.g. stop was followed by start
+        synchronized (mPendingLock) {
+            Arrays.fill(mPendingDevices, 0, mPendingCount, null);
+            mPendingCount = 0;
+            mDroppedCount = 0;
+            mPendingGeneration = generation;
+        }
+        // on the scan thread, after the drain posted by a stop, so that it neither
+        // clears what a later drain found nor leaves a second delivery chain running
+        mScanHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                forget(generation);
+                mScanHandler.removeCallbacks(mDeliverer);
+                if (mScanning && generation == mGeneration) {
+                    mScanHandler.postDelayed(mDeliverer, DELIVERY_PERIOD);
+                }
+            }
+        });
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && mBluetoothAdapter.getBluetoothLeScanner() != null) {
+            mLeScanner = new LeScanner();
+            mLeScanner.start();
+        } else {
+            // stop/startLeScan is deprecated from API 21,
+            // but we support API 18 and up
+            mBluetoothAdapter.startLeScan(mLeScanCallback);
+        }
+        mUiHandler.postDelayed(mStopper, period);
+    }
+
+    /**
+     * Stop scanning. Results received since the last delivery are delivered once more,
+     * shortly after onScanStopped.
+     */
+    void stop() {
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        mUiHandler.removeCallbacks(mStopper);
+        if (mLeScanner != null) {
+            mLeScanner.stop();
+            mLeScanner = null;
+        } else {
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        }
+        // drain what is pending now instead of at the next period
+        mScanHandler.removeCallbacks(mDeliverer);
+        mScanHandler.post(mDrainer);
+        if (Metrics.LOG) {
+            Log.i("DeviceScanner", "stopped, " + mResultCount + " results, " +
+                    mDroppedCount + " dropped");
+        }
+        mListener.onScanStopped();
+    }
+
+    /**
+     * Stop scanning and the scan thread, the scanner can not be used after this.
+     */
+    void quit() {
+        stop();
+        mScanThread.quit();
+    }
+
+    private final Runnable mStopper = new Runnable() {
+        @Override
+        public void run() {
+            stop();
+        }
+    };
+
+    // called on a binder thread (API 18-20) or the ui thread
+    private void addPending(BluetoothDevice device, int rssi) {
+        synchronized (mPendingLock) {
+            if (mPendingCount == mPendingDevices.length) {
+                mDroppedCount++;
+                Metrics.SCAN_RESULTS_DROPPED.increment();
+                return;
+            }
+            mPendingDevices[mPendingCount] = device;
+            mPendingRssi[mPendingCount] = rssi;
+            mPendingCount++;
+        }
+    }
+
+    // on the scan thread, forget the devices found by scans before generation
+    private void forget(int generation) {
+        if (generation > mEntriesGeneration) {
+            mEntriesGeneration = generation;
+            mEntries.clear();
+            mOrder.clear();
+            mRejected.clear();
+            mResultCount = 0;
+        }
+    }
+
+    // delivers periodically while scanning, rescheduled only by itself and by start
+    private final Runnable mDeliverer = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+            if (mScanning) {
+                mScanHandler.postDelayed(this, DELIVERY_PERIOD);
+            }
+        }
+    };
+
+    // the drain posted by stop, distinct from mDeliverer so that no reschedule removes it
+    private final Runnable mDrainer = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Runs on the scan thread: processes pending results and delivers a snapshot to the
+     * ui if anything changed.
+     */
+    private void deliver() {
+        int count;
+        int generation;
+        synchronized (mPendingLock) {
+            BluetoothDevice[] devices = mPendingDevices;
+            mPendingDevices = mDrainDevices;
+            mDrainDevices = devices;
+            int[] rssi = mPendingRssi;
+            mPendingRssi = mDrainRssi;
+            mDrainRssi = rssi;
+            count = mPendingCount;
+            mPendingCount = 0;
+            generation = mPendingGeneration;
+        }
+        // results of a scan whose start has not reached the scan thread yet
+        forget(generation);
+
+        boolean changed = false;
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            BluetoothDevice device = mDrainDevices[i];
+            mDrainDevices[i] = null;
+            String address = device.getAddress();
+            ScanEntry entry = mEntries.get(address);
+            if (entry != null) {
+                entry.update(mDrainRssi[i], now);
+                changed = true;
+            } else if (!mRejected.contains(address)) {
+                // the name may be unknown until the scan response is received
+                String name = device.getName();
+                if (name != null && name.contains(mNameFilter)) {
+                    entry = new ScanEntry(device, name, mDrainRssi[i], now);
+                    mEntries.put(address, entry);
+                    mOrder.add(entry);
+                    changed = true;
+                } else if (name != null) {
+                    mRejected.add(address);
+                }
+            }
+        }
+        mResultCount += count;
+        Metrics.SCAN_RESULTS.add(count);
+
+        if (changed) {
+            final ArrayList<ScanEntry> snapshot = new ArrayList<>(mOrder.size());
+            for (ScanEntry entry : mOrder) {
+                snapshot.add(entry.copy());
+            }
+            final int snapshotGeneration = mEntriesGeneration;
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (snapshotGeneration == mGeneration) {
+                        mListener.onScanResults(snapshot);
+                    }
+                }
+            });
+        }
+    }
+
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+                @Override
+                public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                    addPending(device, rssi);
+                }
+            };
+
+    /**
+     * Scanning with BluetoothLeScanner, API 21 and up. Results are delivered on the
+     * ui thread, batched by the controller when supported.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class LeScanner extends ScanCallback {
+        private final BluetoothLeScanner mScanner = mBluetoothAdapter.getBluetoothLeScanner();
+
+        void start() {
+            ScanSettings.Builder settings = new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+            if (mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                settings.setReportDelay(DELIVERY_PERIOD);
+            }
+            mScanner.startScan(null, settings.build(), this);
+        }
+
+        void stop() {
+            mScanner.stopScan(this);
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            addPending(result.getDevice(), result.getRssi());
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                ScanResult result = results.get(i);
+                addPending(result.getDevice(), result.getRssi());
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            if (Metrics.LOG) {
+                Log.i("DeviceScanner", "scan failed, error " + errorCode);
+            }
+        }
+    }
+}
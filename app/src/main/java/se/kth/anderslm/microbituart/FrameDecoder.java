@@ -0,0 +1,196 @@
+package se.kth.anderslm.microbituart;
+
+/**
+ * Reassembles UART frames from BLE notification packets.
+ * A line sent from the Micro:bit may be split over several packets (max 20 bytes each
+ * with the default MTU), so the bytes are copied into a preallocated ring buffer and
+ * complete frames are handed to the listener as views into that buffer.
+ * Frames are split either on a delimiter byte, e.g. '\n', or on a length prefix.
+ * Frames that do not fit in the buffer are dropped as a whole: the rest of the frame is
+ * skipped, up to the next delimiter or to the length given by the prefix.
+ * <p>
+ * No objects are allocated when feeding data. The decoder is not thread safe, feed it
+ * from one thread only (the BLE thread).
+ */
+class FrameDecoder {
+
+    interface FrameListener {
+        /**
+         * Called for each complete frame. The bytes are only valid during this call,
+         * the buffer is reused by the decoder.
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    static final byte DEFAULT_DELIMITER = '\n';
+    static final int DEFAULT_CAPACITY = 512;
+
+    private static final int MODE_DELIMITER = 0;
+    private static final int MODE_LENGTH_PREFIX = 1;
+
+    private final int mMode;
+    private final byte mDelimiter;
+    private final int mPrefixBytes;
+    private final byte[] mRing;
+    private final byte[] mScratch; // used when a frame wraps around the end of the ring
+    private final int mMask;
+    private final FrameListener mListener;
+
+    private int mHead = 0; // index of first unconsumed byte
+    private int mSize = 0; // number of unconsumed bytes
+    private int mScanned = 0; // bytes after mHead already searched for the delimiter
+    private boolean mDiscarding = false; // in an oversize delimited frame
+    private int mSkip = 0; // bytes left of an oversize length-prefixed frame
+
+    private long mFrameCount = 0;
+    private long mOverflowCount = 0;
+
+    private FrameDecoder(int mode, byte delimiter, int prefixBytes, int capacity,
+                         FrameListener listener) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        mMode = mode;
+        mDelimiter = delimiter;
+        mPrefixBytes = prefixBytes;
+        mRing = new byte[size];
+        mScratch = new byte[size];
+        mMask = size - 1;
+        mListener = listener;
+    }
+
+    /**
+     * Frames are terminated by the delimiter, which is not part of the delivered frame.
+     * If the delimiter is '\n' a preceding '\r' is removed as well.
+     */
+    static FrameDecoder delimited(byte delimiter, int capacity, FrameListener listener) {
+        return new FrameDecoder(MODE_DELIMITER, delimiter, 0, capacity, listener);
+    }
+
+    /**
+     * Frames are preceded by an unsigned little-endian length of prefixBytes (1 or 2) bytes.
+     */
+    static FrameDecoder lengthPrefixed(int prefixBytes, int capacity, FrameListener listener) {
+        if (prefixBytes != 1 && prefixBytes != 2) {
+            throw new IllegalArgumentException("prefixBytes must be 1 or 2");
+        }
+        return new FrameDecoder(MODE_LENGTH_PREFIX, (byte) 0, prefixBytes, capacity, listener);
+    }
+
+    void feed(byte[] data, int offset, int length) {
+        while (length > 0) {
+            if (mSkip > 0) {
+                int n = Math.min(mSkip, length);
+                mSkip -= n;
+                offset += n;
+                length -= n;
+                continue;
+            }
+            if (mSize == mRing.length) {
+                // frame longer than the buffer, drop it up to the next delimiter
+                if (!mDiscarding) {
+                    mOverflowCount++;
+                    Metrics.FRAMES_DROPPED.increment();
+                    mDiscarding = true;
+                }
+                consume(mSize);
+            }
+            int n = Math.min(mRing.length - mSize, length);
+            int tail = (mHead + mSize) & mMask;
+            int first = Math.min(n, mRing.length - tail);
+            System.arraycopy(data, offset, mRing, tail, first);
+            System.arraycopy(data, offset + first, mRing, 0, n - first);
+            mSize += n;
+            offset += n;
+            length -= n;
+
+            if (mMode == MODE_DELIMITER) {
+                extractDelimited();
+            } else {
+                extractLengthPrefixed();
+            }
+        }
+    }
+
+    /**
+     * Discards any partial frame, e.g. after a reconnect.
+     */
+    void reset() {
+        mHead = 0;
+        mSize = 0;
+        mScanned = 0;
+        mDiscarding = false;
+        mSkip = 0;
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    int getCapacity() {
+        return mRing.length;
+    }
+
+    private void extractDelimited() {
+        while (mScanned < mSize) {
+            if (mRing[(mHead + mScanned) & mMask] == mDelimiter) {
+                int length = mScanned;
+                if (mDelimiter == '\n' && length > 0
+                        && mRing[(mHead + length - 1) & mMask] == '\r') {
+                    length--;
+                }
+                if (mDiscarding) {
+                    mDiscarding = false; // the end of an oversize frame
+                } else {
+                    deliver(length);
+                }
+                consume(mScanned + 1);
+            } else {
+                mScanned++;
+            }
+        }
+    }
+
+    private void extractLengthPrefixed() {
+        while (mSize >= mPrefixBytes) {
+            int length = mRing[mHead] & 0xff;
+            if (mPrefixBytes == 2) {
+                length |= (mRing[(mHead + 1) & mMask] & 0xff) << 8;
+            }
+            if (length > mRing.length - mPrefixBytes) {
+                // can never fit, drop it and skip the rest of it
+                mOverflowCount++;
+                Metrics.FRAMES_DROPPED.increment();
+                mSkip = mPrefixBytes + length - mSize;
+                consume(mSize);
+                return;
+            }
+            if (mSize < mPrefixBytes + length) {
+                return;
+            }
+            consume(mPrefixBytes);
+            deliver(length);
+            consume(length);
+        }
+    }
+
+    private void deliver(int length) {
+        mFrameCount++;
+        if (mHead + length <= mRing.length) {
+            mListener.onFrame(mRing, mHead, length);
+        } else {
+            int first = mRing.length - mHead;
+            System.arraycopy(mRing, mHead, mScratch, 0, first);
+            System.arraycopy(mRing, 0, mScratch, first, length - first);
+            mListener.onFrame(mScratch, 0, length);
+        }
+    }
+
+    private void consume(int n) {
+        mHead = (mHead + n) & mMask;
+        mSize -= n;
+        mScanned = 0;
+    }
+}
@@ -0,0 +1,325 @@
+package se.kth.anderslm.microbituart;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publish/subscribe of the merged frame stream, in the style of Reactive Streams: a
+ * subscriber gets a Subscription, requests frames with request(n), and receives them
+ * with onNext on its own executor, one at a time. The publisher, the BLE thread,
+ * never blocks; when a subscriber is slower than the stream the frames it has
+ * not requested yet are handled by its strategy:
+ * <ul>
+ * <li>BUFFER: queued up to capacity, further frames are dropped</li>
+ * <li>DROP_OLDEST: queued up to capacity, the oldest frame is dropped for a new one</li>
+ * <li>LATEST: only the latest frame is kept</li>
+ * <li>SAMPLE: the latest frame is delivered once per period, e.g. for a display</li>
+ * </ul>
+ * Dropped frames (for SAMPLE: samples never requested) are counted per subscription
+ * and in Metrics.STREAM_FRAMES_DROPPED.
+ * Frames are copied once per publish, and shared by all subscribers.
+ */
+class FrameStream {
+
+    enum Strategy {
+        BUFFER,
+        DROP_OLDEST,
+        LATEST,
+        SAMPLE
+    }
+
+    /**
+     * A frame, immutable.
+     */
+    static final class Frame {
+        final GattSession session;
+        final long timestampNanos;
+        final byte[] data;
+
+        Frame(GattSession session, long timestampNanos, byte[] data) {
+            this.session = session;
+            this.timestampNanos = timestampNanos;
+            this.data = data;
+        }
+    }
+
+    interface Subscriber {
+        /**
+         * Called first, on the subscriber's executor. Nothing is delivered until
+         * frames are requested.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * A requested frame, on the subscriber's executor, never concurrently. If it
+         * throws, the subscription is cancelled and the exception passed on.
+         */
+        void onNext(Frame frame);
+    }
+
+    // timer for SAMPLE subscriptions
+    private static final ScheduledExecutorService sampleTimer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "FrameStream.sample");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // threads of subscribers without an executor, daemons, like the sample timer
+    private static final ThreadFactory subscriberThreads = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FrameStream.subscriber-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * Subscribe with a strategy.
+     *
+     * @param capacity frames queued, for BUFFER and DROP_OLDEST
+     * @param periodMs delivery period, for SAMPLE
+     * @param executor runs the subscriber, null for a thread of its own
+     */
+    Subscription subscribe(Subscriber subscriber, Strategy strategy, int capacity,
+                           long periodMs, Executor executor) {
+        Subscription subscription = new Subscription(subscriber, strategy,
+                strategy == Strategy.BUFFER || strategy == Strategy.DROP_OLDEST
+                        ? Math.max(capacity, 1) : 1,
+                executor);
+        mSubscriptions.add(subscription);
+        if (strategy == Strategy.SAMPLE) {
+            subscription.mSampler = sampleTimer.scheduleAtFixedRate(subscription.mSampleTask,
+                    periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+        subscription.start();
+        return subscription;
+    }
+
+    boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    /**
+     * Publish a frame to all subscribers, the bytes are copied. Never blocks.
+     */
+    void publish(GattSession session, long timestampNanos,
+                 byte[] buffer, int offset, int length) {
+        if (mSubscriptions.isEmpty()) {
+            return;
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+        Frame frame = new Frame(session, timestampNanos, data);
+        for (Subscription subscription : mSubscriptions) {
+            subscription.offer(frame);
+        }
+    }
+
+    /**
+     * The link between the stream and one subscriber.
+     */
+    final class Subscription {
+        private final Subscriber mSubscriber;
+        private final Strategy mStrategy;
+        private final int mCapacity;
+        private final Executor mExecutor;
+        private final ExecutorService mOwnExecutor; // null if given an executor
+        private volatile ScheduledFuture<?> mSampler = null;
+
+        // guarded by this
+        private final ArrayDeque<Frame> mQueue;
+        private Frame mSample = null; // latest frame, for SAMPLE
+        private long mDemand = 0;
+        private boolean mDraining = false;
+        private boolean mCancelled = false;
+        private long mDeliveredCount = 0;
+        private long mDroppedCount = 0;
+
+        private Subscription(Subscriber subscriber, Strategy strategy, int capacity,
+                             Executor executor) {
+            mSubscriber = subscriber;
+            mStrategy = strategy;
+            mCapacity = capacity;
+            mQueue = new ArrayDeque<>(capacity);
+            if (executor == null) {
+                mOwnExecutor = Executors.newSingleThreadExecutor(subscriberThreads);
+                mExecutor = mOwnExecutor;
+            } else {
+                mOwnExecutor = null;
+                mExecutor = executor;
+            }
+        }
+
+        /**
+         * Request n more frames, from any thread.
+         */
+        void request(long n) {
+            if (n <= 0) {
+                return;
+            }
+            synchronized (this) {
+                mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+            }
+            scheduleDrain();
+        }
+
+        /**
+         * Stop receiving frames, frames queued are dropped. May be called from onNext.
+         */
+        void cancel() {
+            mSubscriptions.remove(this);
+            synchronized (this) {
+                mCancelled = true;
+                mQueue.clear();
+                mSample = null;
+            }
+            if (mSampler != null) {
+                mSampler.cancel(false);
+            }
+            if (mOwnExecutor != null) {
+                mOwnExecutor.shutdown();
+            }
+        }
+
+        synchronized long getDeliveredCount() {
+            return mDeliveredCount;
+        }
+
+        synchronized long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        synchronized int getQueuedCount() {
+            return mQueue.size();
+        }
+
+        private void start() {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSubscriber.onSubscribe(Subscription.this);
+                }
+            });
+        }
+
+        // called on the BLE thread
+        private void offer(Frame frame) {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                if (mStrategy == Strategy.SAMPLE) {
+                    // frames between samples are skipped by design, not counted as dropped
+                    mSample = frame;
+                    return; // delivered by the sample timer
+                }
+                if (mQueue.size() == mCapacity) {
+                    dropped();
+                    if (mStrategy == Strategy.BUFFER) {
+                        return;
+                    }
+                    mQueue.poll(); // DROP_OLDEST or LATEST
+                }
+                mQueue.add(frame);
+                if (mDemand == 0 || mDraining) {
+                    return;
+                }
+                mDraining = true;
+            }
+            execute();
+        }
+
+        // called with the lock held
+        private void dropped() {
+            mDroppedCount++;
+            Metrics.STREAM_FRAMES_DROPPED.increment();
+        }
+
+        private void scheduleDrain() {
+            synchronized (this) {
+                if (mDraining || mDemand == 0 || mQueue.isEmpty() || mCancelled) {
+                    return;
+                }
+                mDraining = true;
+            }
+            execute();
+        }
+
+        private void execute() {
+            try {
+                mExecutor.execute(mDrainTask);
+            } catch (RuntimeException e) {
+                // executor shut down, the subscription is cancelled
+                synchronized (this) {
+                    mDraining = false;
+                }
+            }
+        }
+
+        private final Runnable mSampleTask = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Subscription.this) {
+                    if (mSample == null) {
+                        return;
+                    }
+                    if (!mQueue.isEmpty()) {
+                        dropped(); // the previous sample was never requested
+                        mQueue.clear();
+                    }
+                    mQueue.add(mSample);
+                    mSample = null;
+                }
+                scheduleDrain();
+            }
+        };
+
+        private final Runnable mDrainTask = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Frame frame;
+                    synchronized (Subscription.this) {
+                        if (mCancelled || mDemand == 0 || mQueue.isEmpty()) {
+                            mDraining = false;
+                            return;
+                        }
+                        frame = mQueue.poll();
+                        if (mDemand != Long.MAX_VALUE) {
+                            mDemand--;
+                        }
+                        mDeliveredCount++;
+                    }
+                    try {
+                        mSubscriber.onNext(frame);
+                    } catch (RuntimeException e) {
+                        // a broken subscriber, stop draining it
+                        synchronized (Subscription.this) {
+                            mDraining = false;
+                        }
+                        cancel();
+                        throw e;
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,431 @@
+package se.kth.anderslm.microbituart;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Android allows only one outstanding GATT operation, a second one is silently
+ * rejected (the write/read method returns false). All operations on the BluetoothGatt
+ * are therefore queued here and started one at a time: the next operation is started
+ * directly from the completion callback of the previous one, e.g. onDescriptorWrite,
+ * so the link is not left idle in between.
+ * <p>
+ * Operations that do not complete within their timeout are retried, and then failed
+ * with STATUS_TIMEOUT. The BluetoothGattCallback must forward completions to the
+ * on...-methods below.
+ * <p>
+ * Operations are only started on the handler thread, the BLE thread: enqueue may be
+ * called from any thread, e.g. the ui thread writing data, and then hands the start
+ * over to the handler.
+ */
+class GattOperationQueue {
+
+    interface OperationListener {
+        /**
+         * Called when the operation is completed, status is a BluetoothGatt status,
+         * STATUS_TIMEOUT or STATUS_NOT_STARTED.
+         */
+        void onOperationComplete(Operation operation, int status);
+    }
+
+    static final int TYPE_DESCRIPTOR_WRITE = 0;
+    static final int TYPE_CHARACTERISTIC_READ = 1;
+    static final int TYPE_CHARACTERISTIC_WRITE = 2;
+    static final int TYPE_REQUEST_MTU = 3;
+    static final int TYPE_REQUEST_PRIORITY = 4;
+    static final String[] TYPE_NAMES =
+            {"descriptorWrite", "characteristicRead", "characteristicWrite", "mtu", "priority"};
+
+    static final int STATUS_TIMEOUT = -1;
+    static final int STATUS_NOT_STARTED = -2;
+
+    static final long DEFAULT_TIMEOUT = 2000; // ms
+    static final int DEFAULT_ATTEMPTS = 3;
+    // delay before retrying an operation the stack did not accept
+    private static final long RETRY_DELAY = 20;
+
+    /**
+     * A GATT operation. Instances may be enqueued again when completed, e.g. to write
+     * the next chunk of data.
+     */
+    abstract static class Operation {
+        final int mType;
+        private final OperationListener mListener;
+        long mTimeout = DEFAULT_TIMEOUT;
+        int mMaxAttempts = DEFAULT_ATTEMPTS;
+
+        private int mAttempts;
+        private long mStartNanos;
+
+        Operation(int type, OperationListener listener) {
+            mType = type;
+            mListener = listener;
+        }
+
+        /**
+         * Start the operation.
+         *
+         * @return false if the stack did not accept it
+         */
+        abstract boolean execute(BluetoothGatt gatt);
+
+        /**
+         * True if there is no completion callback for this operation.
+         */
+        boolean completesImmediately() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return TYPE_NAMES[mType];
+        }
+    }
+
+    static class DescriptorWrite extends Operation {
+        private final BluetoothGattDescriptor mDescriptor;
+        private final byte[] mValue;
+
+        DescriptorWrite(BluetoothGattDescriptor descriptor, byte[] value,
+                        OperationListener listener) {
+            super(TYPE_DESCRIPTOR_WRITE, listener);
+            mDescriptor = descriptor;
+            mValue = value;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            mDescriptor.setValue(mValue);
+            return gatt.writeDescriptor(mDescriptor);
+        }
+    }
+
+    static class CharacteristicRead extends Operation {
+        private final BluetoothGattCharacteristic mCharac;
+
+        CharacteristicRead(BluetoothGattCharacteristic charac, OperationListener listener) {
+            super(TYPE_CHARACTERISTIC_READ, listener);
+            mCharac = charac;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            return gatt.readCharacteristic(mCharac);
+        }
+    }
+
+    static class CharacteristicWrite extends Operation {
+        private final BluetoothGattCharacteristic mCharac;
+        private final int mWriteType;
+        private byte[] mValue;
+
+        CharacteristicWrite(BluetoothGattCharacteristic charac, int writeType,
+                            OperationListener listener) {
+            super(TYPE_CHARACTERISTIC_WRITE, listener);
+            mCharac = charac;
+            mWriteType = writeType;
+        }
+
+        /**
+         * Set the value written on the next execution, the array is not copied.
+         */
+        void setValue(byte[] value) {
+            mValue = value;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            mCharac.setWriteType(mWriteType);
+            mCharac.setValue(mValue);
+            return gatt.writeCharacteristic(mCharac);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    static class RequestMtu extends Operation {
+        private final int mMtu;
+
+        RequestMtu(int mtu, OperationListener listener) {
+            super(TYPE_REQUEST_MTU, listener);
+            mMtu = mtu;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            return gatt.requestMtu(mMtu);
+        }
+    }
+
+    /**
+     * There is no callback for connection priority requests (before API 26), the
+     * operation is completed when the request is accepted.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    static class RequestPriority extends Operation {
+        private final int mPriority;
+
+        RequestPriority(int priority, OperationListener listener) {
+            super(TYPE_REQUEST_PRIORITY, listener);
+            mPriority = priority;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            return gatt.requestConnectionPriority(mPriority);
+        }
+
+        @Override
+        boolean completesImmediately() {
+            return true;
+        }
+    }
+
+    private final Handler mHandler;
+    private final ArrayDeque<Operation> mQueue = new ArrayDeque<>();
+
+    // guarded by this
+    private BluetoothGatt mGatt = null;
+    private Operation mCurrent = null;
+
+    // per operation type statistics, guarded by this
+    private final long[] mCompleted = new long[TYPE_NAMES.length];
+    private final long[] mFailed = new long[TYPE_NAMES.length];
+    private final long[] mTimeouts = new long[TYPE_NAMES.length];
+    private final long[] mTotalLatencyNanos = new long[TYPE_NAMES.length];
+    private final long[] mMaxLatencyNanos = new long[TYPE_NAMES.length];
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final Runnable mStartNextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startNext();
+        }
+    };
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            retryCurrent();
+        }
+    };
+
+    /**
+     * @param handler the thread executing operations, also used for timeouts and retries
+     */
+    GattOperationQueue(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Start executing operations on gatt, e.g. when connected.
+     */
+    void attach(BluetoothGatt gatt) {
+        synchronized (this) {
+            mGatt = gatt;
+        }
+        startNext();
+    }
+
+    /**
+     * Stop executing operations and drop the queued ones, e.g. on disconnect.
+     * The listeners of dropped operations are not called.
+     */
+    synchronized void clear() {
+        mGatt = null;
+        mCurrent = null;
+        mQueue.clear();
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.removeCallbacks(mRetryRunnable);
+        mHandler.removeCallbacks(mStartNextRunnable);
+    }
+
+    void enqueue(Operation operation) {
+        synchronized (this) {
+            operation.mAttempts = 0;
+            mQueue.add(operation);
+        }
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            startNext();
+        } else {
+            mHandler.post(mStartNextRunnable);
+        }
+    }
+
+    synchronized int size() {
+        return mQueue.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    // forward from BluetoothGattCallback
+
+    void onDescriptorWrite(int status) {
+        complete(TYPE_DESCRIPTOR_WRITE, status);
+    }
+
+    void onCharacteristicRead(int status) {
+        complete(TYPE_CHARACTERISTIC_READ, status);
+    }
+
+    void onCharacteristicWrite(int status) {
+        complete(TYPE_CHARACTERISTIC_WRITE, status);
+    }
+
+    void onMtuChanged(int status) {
+        complete(TYPE_REQUEST_MTU, status);
+    }
+
+    /**
+     * Per operation type: count, failures, timeouts and mean/max latency.
+     */
+    synchronized String getStatsSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (int type = 0; type < TYPE_NAMES.length; type++) {
+            long count = mCompleted[type] + mFailed[type];
+            if (count == 0) {
+                continue;
+            }
+            sb.append(String.format(Locale.US, "%s: %d ok, %d failed, %d timeouts, " +
+                            "mean %.1f ms, max %.1f ms\n", TYPE_NAMES[type],
+                    mCompleted[type], mFailed[type], mTimeouts[type],
+                    mTotalLatencyNanos[type] / 1e6 / count, mMaxLatencyNanos[type] / 1e6));
+        }
+        return sb.toString();
+    }
+
+    private void complete(int type, int status) {
+        Operation operation;
+        synchronized (this) {
+            operation = mCurrent;
+            if (operation == null || operation.mType != type) {
+                // not started by us, or completed after a timeout
+                if (Metrics.LOG) {
+                    Log.i("GattOperationQueue", "unexpected completion " + TYPE_NAMES[type]);
+                }
+                return;
+            }
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            finish(operation, status);
+        }
+        notifyListener(operation, status);
+        startNext();
+    }
+
+    private void startNext() {
+        while (true) {
+            Operation operation;
+            synchronized (this) {
+                if (mCurrent != null || mGatt == null || mQueue.isEmpty()) {
+                    return;
+                }
+                operation = mQueue.poll();
+                mCurrent = operation;
+                if (!start(operation)) {
+                    return;
+                }
+                if (!operation.completesImmediately()) {
+                    mHandler.postDelayed(mTimeoutRunnable, operation.mTimeout);
+                    return;
+                }
+                finish(operation, BluetoothGatt.GATT_SUCCESS);
+            }
+            notifyListener(operation, BluetoothGatt.GATT_SUCCESS);
+        }
+    }
+
+    // called with the lock held, schedules a retry if the stack did not accept the operation
+    private boolean start(Operation operation) {
+        operation.mAttempts++;
+        operation.mStartNanos = System.nanoTime();
+        if (operation.execute(mGatt)) {
+            return true;
+        }
+        mHandler.postDelayed(mRetryRunnable, RETRY_DELAY);
+        return false;
+    }
+
+    private void retryCurrent() {
+        Operation done = null;
+        int status = BluetoothGatt.GATT_SUCCESS;
+        synchronized (this) {
+            Operation operation = mCurrent;
+            if (operation == null || mGatt == null) {
+                return;
+            }
+            if (operation.mAttempts >= operation.mMaxAttempts) {
+                status = STATUS_NOT_STARTED;
+                finish(operation, status);
+                done = operation;
+            } else if (start(operation)) {
+                if (operation.completesImmediately()) {
+                    finish(operation, status);
+                    done = operation;
+                } else {
+                    mHandler.postDelayed(mTimeoutRunnable, operation.mTimeout);
+                }
+            }
+        }
+        if (done != null) {
+            notifyListener(done, status);
+            startNext();
+        }
+    }
+
+    private void onTimeout() {
+        Operation failed = null;
+        synchronized (this) {
+            Operation operation = mCurrent;
+            if (operation == null || mGatt == null) {
+                return;
+            }
+            mTimeouts[operation.mType]++;
+            if (Metrics.LOG) {
+                Log.i("GattOperationQueue", "timeout " + operation + ", attempt " +
+                        operation.mAttempts);
+            }
+            if (operation.mAttempts >= operation.mMaxAttempts) {
+                finish(operation, STATUS_TIMEOUT);
+                failed = operation;
+            } else if (start(operation)) {
+                mHandler.postDelayed(mTimeoutRunnable, operation.mTimeout);
+            }
+        }
+        if (failed != null) {
+            notifyListener(failed, STATUS_TIMEOUT);
+            startNext();
+        }
+    }
+
+    // called with the lock held
+    private void finish(Operation operation, int status) {
+        long latency = System.nanoTime() - operation.mStartNanos;
+        Metrics.GATT_OP.recordNanos(latency);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mCompleted[operation.mType]++;
+        } else {
+            mFailed[operation.mType]++;
+        }
+        mTotalLatencyNanos[operation.mType] += latency;
+        mMaxLatencyNanos[operation.mType] = Math.max(mMaxLatencyNanos[operation.mType], latency);
+        mCurrent = null;
+    }
+
+    private void notifyListener(Operation operation, int status) {
+        if (operation.mListener != null) {
+            operation.mListener.onOperationComplete(operation, status);
+        }
+    }
+}
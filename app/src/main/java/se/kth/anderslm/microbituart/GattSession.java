@@ -0,0 +1,326 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+
+/**
+ * One connection to a Micro:bit and the UART service on it, over a UartTransport: the
+ * connection state, frame and sample decoders, and outbound data. Several sessions may
+ * be active at the same time, see ConnectionManager. The transport is the GATT
+ * connection (GattTransport) or a simulated Micro:bit (SimulatedMicrobit); it
+ * reconnects by itself after link loss, the session resets its decoders on each
+ * connect.
+ * <p>
+ * In high-throughput mode the connection priority follows the traffic once the session
+ * is ready, see PriorityController.
+ * <p>
+ * Replies to command/response calls are taken out of the frame stream, see UartRpc;
+ * other frames are delivered to the listener. In ping mode the clocks of the phone and
+ * the Micro:bit are aligned, see ClockSync. Files are sent with BulkTransfer, its
+ * acknowledgements are also taken out of the frame stream.
+ * <p>
+ * Threading: the session is driven by one thread, the handler's (the BLE thread, see
+ * ConnectionManager). The transport callbacks, the connection state machine and the
+ * decoding run there; connect and close hand over to it, and offer may be called from
+ * any thread.
+ */
+class GattSession {
+
+    enum State {
+        DISCONNECTED,
+        CONNECTING,
+        DISCOVERING,
+        SUBSCRIBING,
+        READY
+    }
+
+    interface SessionListener {
+        void onStateChanged(GattSession session, State state);
+
+        /**
+         * A received packet, before decoding, called on the BLE thread.
+         */
+        void onPacket(GattSession session, long timestampNanos, byte[] value);
+
+        /**
+         * A complete frame from the Micro:bit, called on the BLE thread.
+         * The bytes are only valid during the call.
+         *
+         * @param timestampNanos receive time, System.nanoTime()
+         */
+        void onFrame(GattSession session, long timestampNanos,
+                     byte[] buffer, int offset, int length);
+
+        /**
+         * Numeric samples decoded from a frame, see DataFormat. Called on the BLE
+         * thread after onFrame, the array is only valid during the call.
+         */
+        void onSamples(GattSession session, long timestampNanos, int type,
+                       short[] samples, int count);
+
+        /**
+         * Setting up the link failed, see UartTransport.Listener.onError. Called on the
+         * BLE thread, the session disconnects and reconnects.
+         */
+        void onError(GattSession session, String message);
+    }
+
+    private final UartTransport mTransport;
+    private final DataFormat mDataFormat;
+    private final SessionListener mListener;
+    private final FrameDecoder mFrameDecoder;
+    private final PriorityController mPriorityController;
+    private final UartRpc mRpc;
+    private final ClockSync mClockSync;
+    private final BulkTransfer mBulkTransfer;
+    private final SampleDecoder mSampleDecoder;
+    private final SensorCodec mSensorCodec; // null for text
+
+    private volatile State mState = State.DISCONNECTED;
+    private long mPacketNanos; // receive time of the packet being decoded
+
+    private volatile boolean mClosed = true;
+    private volatile boolean mPinging = false;
+
+    /**
+     * @param handler the BLE thread, the one driving the transport
+     */
+    GattSession(UartTransport transport, DataFormat dataFormat, Handler handler,
+                SessionListener listener) {
+        mTransport = transport;
+        mDataFormat = dataFormat;
+        mListener = listener;
+        mRpc = new UartRpc(this, handler);
+        mClockSync = new ClockSync(transport.getAddress(), mRpc, handler);
+        mPriorityController = new PriorityController(transport.getAddress(), transport,
+                mClockSync, handler);
+        mBulkTransfer = new BulkTransfer(this, handler);
+        if (dataFormat == DataFormat.BINARY) {
+            mSensorCodec = new SensorCodec(mSampleListener);
+            mSampleDecoder = mSensorCodec;
+            mFrameDecoder = FrameDecoder.lengthPrefixed(1, FrameDecoder.DEFAULT_CAPACITY,
+                    mFrameListener);
+        } else {
+            mSensorCodec = null;
+            mSampleDecoder = new TextSampleCodec(mSampleListener);
+            mFrameDecoder = FrameDecoder.delimited(FrameDecoder.DEFAULT_DELIMITER,
+                    FrameDecoder.DEFAULT_CAPACITY, mFrameListener);
+        }
+    }
+
+    private final FrameDecoder.FrameListener mFrameListener = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            Metrics.FRAMES.increment();
+            if (mDataFormat == DataFormat.TEXT && (mRpc.onFrame(buffer, offset, length)
+                    || mBulkTransfer.onFrame(buffer, offset, length))) {
+                return; // a reply or acknowledgement, not part of the stream
+            }
+            mListener.onFrame(GattSession.this, mPacketNanos, buffer, offset, length);
+            if (mDataFormat == DataFormat.TEXT) {
+                // the timestamp of "@123456 x,y,z" is not a sample
+                int skip = ClockSync.timestampLength(buffer, offset, length);
+                offset += skip;
+                length -= skip;
+            }
+            mSampleDecoder.decode(buffer, offset, length);
+        }
+    };
+
+    private final SampleDecoder.SampleListener mSampleListener =
+            new SampleDecoder.SampleListener() {
+                @Override
+                public void onSamples(int type, short[] samples, int count) {
+                    mListener.onSamples(GattSession.this, mPacketNanos, type, samples, count);
+                }
+            };
+
+    UartTransport getTransport() {
+        return mTransport;
+    }
+
+    String getAddress() {
+        return mTransport.getAddress();
+    }
+
+    /**
+     * Device name, or address if the name is unknown.
+     */
+    String getLabel() {
+        String name = mTransport.getName();
+        return name == null ? mTransport.getAddress() : name;
+    }
+
+    LinkMode getLinkMode() {
+        return mTransport.getLinkMode();
+    }
+
+    DataFormat getDataFormat() {
+        return mDataFormat;
+    }
+
+    /**
+     * Binary frames missing in the sequence numbers, 0 for text.
+     */
+    long getLostFrameCount() {
+        return mSensorCodec == null ? 0 : mSensorCodec.getLostCount();
+    }
+
+    /**
+     * Binary frames with bad length or CRC, 0 for text.
+     */
+    long getCorruptFrameCount() {
+        return mSensorCodec == null ? 0 : mSensorCodec.getErrorCount();
+    }
+
+    State getState() {
+        return mState;
+    }
+
+    LinkStats getLinkStats() {
+        return mTransport.getLinkStats();
+    }
+
+    UartWriter getUartWriter() {
+        return mTransport.getUartWriter();
+    }
+
+    PriorityController getPriorityController() {
+        return mPriorityController;
+    }
+
+    /**
+     * Command/response calls to the Micro:bit, text data format only.
+     */
+    UartRpc getRpc() {
+        return mRpc;
+    }
+
+    /**
+     * Bulk transfers to the Micro:bit, text data format only.
+     */
+    BulkTransfer getBulkTransfer() {
+        return mBulkTransfer;
+    }
+
+    ClockSync getClockSync() {
+        return mClockSync;
+    }
+
+    /**
+     * Probe the round trip and align the clocks while ready, text data format only.
+     */
+    void setPinging(boolean pinging) {
+        mPinging = pinging && mDataFormat == DataFormat.TEXT;
+        if (mPinging && mState == State.READY) {
+            mClockSync.start();
+        } else {
+            mClockSync.stop();
+        }
+    }
+
+    /**
+     * Connect, from any thread.
+     */
+    void connect() {
+        mClosed = false;
+        mTransport.connect(mTransportListener);
+    }
+
+    /**
+     * Disconnect and stop reconnecting, from any thread.
+     */
+    void close() {
+        mClosed = true;
+        mTransport.close();
+    }
+
+    /**
+     * Queue data for the Micro:bit without blocking, see UartWriter.
+     */
+    boolean offer(byte[] data) {
+        UartWriter writer = mTransport.getUartWriter();
+        boolean accepted = writer.offer(data);
+        mPriorityController.onOutbound(writer.getQueuedBytes());
+        return accepted;
+    }
+
+    private void setState(State state) {
+        if (mState != state) {
+            mState = state;
+            mListener.onStateChanged(this, state);
+        }
+    }
+
+    // on the BLE thread
+    private void onReady() {
+        if (mTransport.supportsPriority()) {
+            // HIGH was requested while setting up, adapt from there
+            mPriorityController.start(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        }
+        setState(State.READY);
+        if (mPinging) {
+            mClockSync.start();
+        }
+        if (mDataFormat == DataFormat.TEXT) {
+            mBulkTransfer.onReady(); // resumes a transfer in progress
+        }
+    }
+
+    // on the BLE thread, link lost or closed
+    private void onDisconnected() {
+        mPriorityController.stop();
+        mClockSync.stop();
+        if (mClosed) {
+            mBulkTransfer.cancel();
+            mRpc.failAll("closed");
+        } else {
+            mBulkTransfer.onDisconnected();
+            mRpc.failAll("disconnected");
+        }
+        setState(State.DISCONNECTED);
+    }
+
+    /**
+     * Callbacks from the transport, on the BLE thread.
+     */
+    private final UartTransport.Listener mTransportListener = new UartTransport.Listener() {
+        @Override
+        public void onStateChanged(State state) {
+            switch (state) {
+                case READY:
+                    onReady();
+                    break;
+                case DISCONNECTED:
+                    onDisconnected();
+                    break;
+                case CONNECTING:
+                    mFrameDecoder.reset();
+                    if (mSensorCodec != null) {
+                        mSensorCodec.reset();
+                    }
+                    setState(state);
+                    break;
+                default:
+                    setState(state);
+                    break;
+            }
+        }
+
+        @Override
+        public void onPacket(long timestampNanos, byte[] value) {
+            // a packet may hold part of a line, or several lines
+            Metrics.PACKETS.increment();
+            Metrics.BYTES.add(value.length);
+            mPacketNanos = timestampNanos;
+            mTransport.getLinkStats().onPacket(value.length, timestampNanos);
+            mListener.onPacket(GattSession.this, timestampNanos, value);
+            mFrameDecoder.feed(value, 0, value.length);
+        }
+
+        @Override
+        public void onError(String message) {
+            mListener.onError(GattSession.this, message);
+        }
+    };
+}
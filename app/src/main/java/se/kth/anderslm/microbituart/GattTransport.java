@@ -0,0 +1,493 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * The GATT connection to a Micro:bit and the UART service on it: connection state,
+ * operation queue and outbound writer, see UartTransport.
+ * <p>
+ * When the link is lost, or setting it up fails (service discovery, a missing UART
+ * service, enabling notifications), the transport reconnects by itself, with exponential
+ * backoff, until closed. Devices that have been connected are remembered, see KnownDevices; for
+ * those the BleLogger enumeration of the GATT layout is skipped. The time from connect
+ * to the first received byte is recorded for cold (unknown device), warm (known device)
+ * and reconnect (after link loss) connects, see Metrics.
+ * <p>
+ * Threading: all BluetoothGatt calls and callbacks run on the handler's thread, the BLE
+ * thread; connect and close hand over to it.
+ */
+class GattTransport implements UartTransport {
+
+    /**
+     * Documentation on UUID:s and such for services on a BBC Micro:bit.
+     * Characteristics et c. are found at
+     * https://lancaster-university.github.io/microbit-docs/resources/bluetooth/bluetooth_profile.html
+     */
+    static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    static final UUID UARTSERVICE_SERVICE_UUID =
+            UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+    static final UUID UART_TX_CHARACTERISTIC_UUID = // receive data(!)
+            UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E");
+    static final UUID UART_RX_CHARACTERISTIC_UUID = // transmit data (!)
+            UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E");
+
+    // max ATT MTU, the Micro:bit (nRF51) may negotiate a smaller one
+    private static final int HIGH_THROUGHPUT_MTU = 247;
+    // first delay for reconnecting after link loss, 500 ms, doubled for each attempt
+    private static final long RECONNECT_MIN_DELAY = 500;
+    // max delay between reconnect attempts, 30000 ms
+    private static final long RECONNECT_MAX_DELAY = 30000;
+
+    enum ConnectKind {
+        COLD,
+        WARM,
+        RECONNECT
+    }
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private final LinkMode mLinkMode;
+    private final DataFormat mDataFormat; // remembered with the device
+    private final Handler mHandler;
+    private final KnownDevices mKnownDevices;
+
+    private final LinkStats mLinkStats = new LinkStats();
+    private final GattOperationQueue mGattQueue;
+    private final UartWriter mUartWriter = new UartWriter(UartWriter.DEFAULT_CAPACITY);
+
+    private Listener mListener = null;
+    private BluetoothGatt mBluetoothGatt = null;
+    private BluetoothGattService mUartService = null;
+
+    private volatile boolean mClosed = true;
+    private boolean mLayoutKnown = false;
+    private int mReconnectAttempts = 0;
+    private ConnectKind mConnectKind = ConnectKind.COLD;
+    private long mConnectNanos;
+    private boolean mAwaitingFirstByte = false;
+
+    /**
+     * @param handler the BLE thread, also used for GATT operation timeouts and reconnects
+     */
+    GattTransport(Context context, BluetoothDevice device, LinkMode linkMode,
+                  DataFormat dataFormat, Handler handler) {
+        mContext = context;
+        mDevice = device;
+        mLinkMode = linkMode;
+        mDataFormat = dataFormat;
+        mHandler = handler;
+        mKnownDevices = KnownDevices.getInstance(context);
+        mGattQueue = new GattOperationQueue(handler);
+    }
+
+    BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public LinkMode getLinkMode() {
+        return mLinkMode;
+    }
+
+    @Override
+    public LinkStats getLinkStats() {
+        return mLinkStats;
+    }
+
+    @Override
+    public UartWriter getUartWriter() {
+        return mUartWriter;
+    }
+
+    GattOperationQueue getGattQueue() {
+        return mGattQueue;
+    }
+
+    ConnectKind getConnectKind() {
+        return mConnectKind;
+    }
+
+    @Override
+    public boolean supportsPriority() {
+        return mLinkMode == LinkMode.HIGH_THROUGHPUT
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    @Override
+    public void requestPriority(int priority) {
+        mGattQueue.enqueue(new GattOperationQueue.RequestPriority(priority, null));
+    }
+
+    @Override
+    public void connect(final Listener listener) {
+        mClosed = false;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                mListener = listener;
+                mReconnectAttempts = 0;
+                KnownDevices.Entry known = mKnownDevices.get(getAddress());
+                mLayoutKnown = known != null && known.hasLayout();
+                startConnect(mLayoutKnown ? ConnectKind.WARM : ConnectKind.COLD);
+            }
+        });
+    }
+
+    // on the BLE thread
+    private void startConnect(ConnectKind kind) {
+        // register call backs for bluetooth gatt
+        mLinkStats.reset();
+        mConnectKind = kind;
+        mConnectNanos = System.nanoTime();
+        mAwaitingFirstByte = true;
+        mListener.onStateChanged(GattSession.State.CONNECTING);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // callbacks on the BLE thread
+            mBluetoothGatt = mDevice.connectGatt(mContext, false, mBtGattCallback,
+                    BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, mHandler);
+        } else {
+            mBluetoothGatt = mDevice.connectGatt(mContext, false,
+                    new HandlerGattCallback(mBtGattCallback, mHandler));
+        }
+        if (Metrics.LOG) {
+            Log.i("connect", "connectGatt called, " + mDevice.getAddress() + ", " + mLinkMode
+                    + ", " + mDataFormat + ", " + kind);
+        }
+    }
+
+    // after link loss, called on the BLE thread
+    private void scheduleReconnect() {
+        long delay = Math.min(RECONNECT_MIN_DELAY << Math.min(mReconnectAttempts, 16),
+                RECONNECT_MAX_DELAY);
+        mReconnectAttempts++;
+        mHandler.postDelayed(mReconnect, delay);
+        if (Metrics.LOG) {
+            Log.i("reconnect", mDevice.getAddress() + ", attempt " + mReconnectAttempts
+                    + " in " + delay + " ms");
+        }
+    }
+
+    /**
+     * Setting up the link failed: report it, drop the connection and retry with backoff,
+     * as after a link loss. On the BLE thread.
+     */
+    private void fail(String message) {
+        if (Metrics.LOG) {
+            Log.i("GattTransport", mDevice.getAddress() + ": " + message);
+        }
+        mUartWriter.detach();
+        mGattQueue.clear();
+        if (mBluetoothGatt != null) {
+            // closed, not only disconnected: no more callbacks for this connection
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        mListener.onError(message);
+        mListener.onStateChanged(GattSession.State.DISCONNECTED);
+        scheduleReconnect();
+    }
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            if (mClosed) {
+                return;
+            }
+            if (mBluetoothGatt != null) {
+                mBluetoothGatt.close();
+                mBluetoothGatt = null;
+            }
+            Metrics.RECONNECTS.increment();
+            startConnect(ConnectKind.RECONNECT);
+        }
+    };
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeGatt();
+            }
+        });
+    }
+
+    // on the BLE thread
+    private void closeGatt() {
+        mHandler.removeCallbacks(mReconnect);
+        mUartWriter.detach();
+        mUartWriter.clear();
+        mGattQueue.clear();
+        if (Metrics.LOG) {
+            Log.i("close", mDevice.getAddress() + "\n" + mGattQueue.getStatsSummary());
+        }
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        if (mListener != null) {
+            mListener.onStateChanged(GattSession.State.DISCONNECTED);
+        }
+    }
+
+    /**
+     * Enable notifications (high-throughput mode) or indications for UART data.
+     * The descriptor write is queued, i.e. in high-throughput mode it is started
+     * when the MTU has been negotiated.
+     */
+    private void enableUartData(BluetoothGatt gatt) {
+        BluetoothGattCharacteristic txCharac =
+                mUartService.getCharacteristic(UART_TX_CHARACTERISTIC_UUID);
+        boolean notify = mLinkMode == LinkMode.HIGH_THROUGHPUT && BleLogger.hasProperty(
+                txCharac, BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+
+        // 1. Enable indications/notification locally (this android device)
+        gatt.setCharacteristicNotification(txCharac, true);
+
+        // 2. Enable notification/indication on ble peripheral (Micro:bit)
+        BluetoothGattDescriptor descriptor =
+                txCharac.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+        mGattQueue.enqueue(new GattOperationQueue.DescriptorWrite(descriptor,
+                notify ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                        : BluetoothGattDescriptor.ENABLE_INDICATION_VALUE,
+                mUartEnabledListener));
+        if (Metrics.LOG) {
+            Log.i("enableUartData", notify ? "notification queued" : "indication queued");
+        }
+    }
+
+    private final GattOperationQueue.OperationListener mUartEnabledListener =
+            new GattOperationQueue.OperationListener() {
+                @Override
+                public void onOperationComplete(GattOperationQueue.Operation operation,
+                                                int status) {
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        fail("Enabling uart data failed, status " + status);
+                        return;
+                    }
+
+                    // UART data enabled, start writing queued outbound data
+                    BluetoothGattCharacteristic rxCharac =
+                            mUartService.getCharacteristic(UART_RX_CHARACTERISTIC_UUID);
+                    if (rxCharac != null) {
+                        mUartWriter.attach(mGattQueue, rxCharac, mLinkStats.getMaxPayload());
+                    }
+                    mReconnectAttempts = 0;
+                    rememberDevice(rxCharac);
+                    mListener.onStateChanged(GattSession.State.READY);
+                }
+            };
+
+    // remember the device and its UART layout, for connecting without a scan
+    private void rememberDevice(BluetoothGattCharacteristic rxCharac) {
+        BluetoothGattCharacteristic txCharac =
+                mUartService.getCharacteristic(UART_TX_CHARACTERISTIC_UUID);
+        mKnownDevices.remember(getAddress(), mDevice.getName(), mLinkMode, mDataFormat,
+                txCharac.getProperties(), rxCharac == null ? 0 : rxCharac.getProperties());
+        mLayoutKnown = true;
+    }
+
+    private final GattOperationQueue.OperationListener mMtuListener =
+            new GattOperationQueue.OperationListener() {
+                @Override
+                public void onOperationComplete(GattOperationQueue.Operation operation,
+                                                int status) {
+                    if (Metrics.LOG) {
+                        Log.i("requestMtu", "status " + status + ", MTU " + mLinkStats.getMtu());
+                    }
+                }
+            };
+
+    private void recordTimeToFirstByte(long nanos) {
+        switch (mConnectKind) {
+            case COLD:
+                Metrics.TTFB_COLD.recordNanos(nanos);
+                break;
+            case WARM:
+                Metrics.TTFB_WARM.recordNanos(nanos);
+                break;
+            default:
+                Metrics.TTFB_RECONNECT.recordNanos(nanos);
+                break;
+        }
+        if (Metrics.LOG) {
+            Log.i("timeToFirstByte", mDevice.getAddress() + ", " + mConnectKind + ", "
+                    + nanos / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Callbacks for bluetooth gatt changes/updates, executed on the BLE thread:
+     * delivered there by the stack from API 26, forwarded by HandlerGattCallback below.
+     * The transport listener is called on that thread.
+     */
+    private final BluetoothGattCallback mBtGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (Metrics.LOG) {
+                Log.i("BluetoothGattCallback", "onConnectionStateChange");
+            }
+
+            if (mClosed || gatt != mBluetoothGatt) {
+                // forwarded before the transport, or this connection after a failure,
+                // was closed
+                return;
+            }
+            if (newState == BluetoothGatt.STATE_CONNECTED) {
+                mGattQueue.attach(gatt);
+                mListener.onStateChanged(GattSession.State.DISCOVERING);
+                gatt.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mUartWriter.detach();
+                mGattQueue.clear();
+                mListener.onStateChanged(GattSession.State.DISCONNECTED);
+                scheduleReconnect();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
+            if (Metrics.LOG) {
+                Log.i("BluetoothGattCallback", "onServicesDiscovered");
+            }
+
+            if (mClosed || gatt != mBluetoothGatt) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                // debug, list services - known from a previous connection otherwise
+                if (!mLayoutKnown) {
+                    BleLogger.logServices(gatt.getServices());
+                }
+
+                // Get the UART service
+                mUartService = gatt.getService(UARTSERVICE_SERVICE_UUID);
+                if (Metrics.LOG) {
+                    Log.i("mUartService",
+                            mUartService == null ? "null" : mUartService.getUuid().toString());
+                }
+
+                if (mUartService != null) {
+                    // debug, list characteristics
+                    if (!mLayoutKnown) {
+                        BleLogger.logCharacteristicsForService(mUartService);
+                    }
+
+                    mListener.onStateChanged(GattSession.State.SUBSCRIBING);
+                    if (supportsPriority()) {
+                        // the queue subscribes when the MTU is negotiated
+                        requestPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                        mGattQueue.enqueue(new GattOperationQueue.RequestMtu(
+                                HIGH_THROUGHPUT_MTU, mMtuListener));
+                    }
+                    enableUartData(gatt);
+                } else {
+                    fail("Uart-data characteristic not found");
+                }
+            } else {
+                fail("Service discovery failed, status " + status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (Metrics.LOG) {
+                Log.i("BluetoothGattCallback", "onMtuChanged: " + mtu + ", status " + status);
+            }
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mLinkStats.setMtu(mtu);
+            }
+            mGattQueue.onMtuChanged(status);
+        }
+
+        @Override
+        public void onDescriptorWrite(final BluetoothGatt gatt, BluetoothGattDescriptor
+                descriptor, int status) {
+            if (Metrics.LOG) {
+                Log.i("BluetoothGattCallback", "onDescriptorWrite");
+
+                Log.i("onDescriptorWrite", "descriptor " + descriptor.getUuid());
+                Log.i("onDescriptorWrite", "status " + status);
+            }
+
+            mGattQueue.onDescriptorWrite(status);
+        }
+
+        /**
+         * Callback called on characteristic changes, e.g. when a data value is changed.
+         * This is where we receive notifications on updates of UART data.
+         */
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic
+                characteristic) {
+            if (Metrics.LOG_PER_PACKET && Metrics.logSample()) {
+                Log.i("BluetoothGattCallback",
+                        "onCharacteristicChanged: " + characteristic.toString());
+            }
+
+            if (UART_TX_CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
+                // a packet may hold part of a line, or several lines
+                byte[] value = characteristic.getValue();
+                if (value != null) {
+                    long nowNanos = System.nanoTime();
+                    if (mAwaitingFirstByte) {
+                        mAwaitingFirstByte = false;
+                        recordTimeToFirstByte(nowNanos - mConnectNanos);
+                    }
+                    mListener.onPacket(nowNanos, value);
+                }
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic
+                characteristic, int status) {
+            if (Metrics.LOG_PER_PACKET && Metrics.logSample()) {
+                Log.i("BluetoothGattCallback",
+                        "onCharacteristicWrite: " + characteristic.getUuid().toString());
+            }
+
+            mGattQueue.onCharacteristicWrite(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic
+                characteristic, int status) {
+            if (Metrics.LOG) {
+                Log.i("BluetoothGattCallback",
+                        "onCharacteristicRead: " + characteristic.getUuid().toString());
+            }
+
+            mGattQueue.onCharacteristicRead(status);
+        }
+    };
+}
@@ -0,0 +1,109 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+
+/**
+ * Forwards GATT callbacks from the binder threads to a handler thread, for API levels
+ * below 26 where connectGatt does not take a handler. Notified values are copied
+ * before forwarding, since the stack reuses the characteristic for the next
+ * notification: the target gets a detached characteristic with the same UUID holding
+ * the copy.
+ * <p>
+ * Only the callbacks used by GattTransport are forwarded.
+ */
+class HandlerGattCallback extends BluetoothGattCallback {
+
+    private final BluetoothGattCallback mTarget;
+    private final Handler mHandler;
+
+    HandlerGattCallback(BluetoothGattCallback target, Handler handler) {
+        mTarget = target;
+        mHandler = handler;
+    }
+
+    @Override
+    public void onConnectionStateChange(final BluetoothGatt gatt, final int status,
+                                        final int newState) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onConnectionStateChange(gatt, status, newState);
+            }
+        });
+    }
+
+    @Override
+    public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onServicesDiscovered(gatt, status);
+            }
+        });
+    }
+
+    @Override
+    public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onMtuChanged(gatt, mtu, status);
+            }
+        });
+    }
+
+    @Override
+    public void onDescriptorWrite(final BluetoothGatt gatt,
+                                  final BluetoothGattDescriptor descriptor, final int status) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onDescriptorWrite(gatt, descriptor, status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicChanged(final BluetoothGatt gatt,
+                                        BluetoothGattCharacteristic characteristic) {
+        final BluetoothGattCharacteristic copy = new BluetoothGattCharacteristic(
+                characteristic.getUuid(), characteristic.getProperties(),
+                characteristic.getPermissions());
+        byte[] value = characteristic.getValue();
+        copy.setValue(value == null ? null : value.clone());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onCharacteristicChanged(gatt, copy);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicWrite(final BluetoothGatt gatt,
+                                      final BluetoothGattCharacteristic characteristic,
+                                      final int status) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onCharacteristicWrite(gatt, characteristic, status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicRead(final BluetoothGatt gatt,
+                                     final BluetoothGattCharacteristic characteristic,
+                                     final int status) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onCharacteristicRead(gatt, characteristic, status);
+            }
+        });
+    }
+}
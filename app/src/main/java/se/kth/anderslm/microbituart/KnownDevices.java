@@ -0,0 +1,141 @@
+package se.kth.anderslm.microbituart;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Micro:bits connected to before, persisted in shared preferences by address, so they
+ * can be connected to directly without a scan. For each device the link settings and
+ * the GATT layout of the UART service (the properties of the characteristics) are kept;
+ * with a known layout a session skips the BleLogger enumeration after discovery.
+ */
+class KnownDevices {
+
+    private static final String PREFS_NAME = "known_devices";
+    private static final String KEY_ADDRESSES = "addresses";
+
+    /**
+     * A known device.
+     */
+    static final class Entry {
+        final String address;
+        final String name;
+        final LinkMode linkMode;
+        final DataFormat dataFormat;
+        // properties of the UART characteristics, -1 if not discovered
+        final int txProperties;
+        final int rxProperties;
+        final long lastConnected; // ms since the epoch
+
+        Entry(String address, String name, LinkMode linkMode, DataFormat dataFormat,
+              int txProperties, int rxProperties, long lastConnected) {
+            this.address = address;
+            this.name = name;
+            this.linkMode = linkMode;
+            this.dataFormat = dataFormat;
+            this.txProperties = txProperties;
+            this.rxProperties = rxProperties;
+            this.lastConnected = lastConnected;
+        }
+
+        boolean hasLayout() {
+            return txProperties >= 0;
+        }
+    }
+
+    private static KnownDevices theInstance = null;
+    private static final Object lock = new Object();
+
+    static KnownDevices getInstance(Context context) {
+        synchronized (lock) {
+            if (theInstance == null) {
+                theInstance = new KnownDevices(context.getApplicationContext());
+            }
+            return theInstance;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+
+    private KnownDevices(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the device, or null if not known
+     */
+    synchronized Entry get(String address) {
+        if (!mPrefs.getStringSet(KEY_ADDRESSES, Collections.<String>emptySet())
+                .contains(address)) {
+            return null;
+        }
+        return new Entry(address,
+                mPrefs.getString(address + ".name", null),
+                LinkMode.valueOf(mPrefs.getString(address + ".linkMode",
+                        LinkMode.COMPATIBLE.name())),
+                DataFormat.valueOf(mPrefs.getString(address + ".dataFormat",
+                        DataFormat.TEXT.name())),
+                mPrefs.getInt(address + ".txProperties", -1),
+                mPrefs.getInt(address + ".rxProperties", -1),
+                mPrefs.getLong(address + ".lastConnected", 0));
+    }
+
+    /**
+     * All known devices, the most recently connected first.
+     */
+    synchronized List<Entry> getAll() {
+        ArrayList<Entry> entries = new ArrayList<>();
+        for (String address : mPrefs.getStringSet(KEY_ADDRESSES,
+                Collections.<String>emptySet())) {
+            entries.add(get(address));
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return Long.compare(e2.lastConnected, e1.lastConnected);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Remember a device that was connected to, with the layout of its UART service.
+     */
+    synchronized void remember(String address, String name, LinkMode linkMode,
+                               DataFormat dataFormat, int txProperties, int rxProperties) {
+        Set<String> addresses = new HashSet<>(
+                mPrefs.getStringSet(KEY_ADDRESSES, Collections.<String>emptySet()));
+        addresses.add(address);
+        mPrefs.edit()
+                .putStringSet(KEY_ADDRESSES, addresses)
+                .putString(address + ".name", name)
+                .putString(address + ".linkMode", linkMode.name())
+                .putString(address + ".dataFormat", dataFormat.name())
+                .putInt(address + ".txProperties", txProperties)
+                .putInt(address + ".rxProperties", rxProperties)
+                .putLong(address + ".lastConnected", System.currentTimeMillis())
+                .apply();
+    }
+
+    synchronized void forget(String address) {
+        Set<String> addresses = new HashSet<>(
+                mPrefs.getStringSet(KEY_ADDRESSES, Collections.<String>emptySet()));
+        addresses.remove(address);
+        mPrefs.edit()
+                .putStringSet(KEY_ADDRESSES, addresses)
+                .remove(address + ".name")
+                .remove(address + ".linkMode")
+                .remove(address + ".dataFormat")
+                .remove(address + ".txProperties")
+                .remove(address + ".rxProperties")
+                .remove(address + ".lastConnected")
+                .apply();
+    }
+}
@@ -0,0 +1,13 @@
+package se.kth.anderslm.microbituart;
+
+/**
+ * How the UART link to the Micro:bit is set up.
+ * COMPATIBLE uses indications and the default MTU, i.e. every packet is acknowledged
+ * by the phone, which limits throughput to about one packet per connection interval.
+ * HIGH_THROUGHPUT uses notifications (if the characteristic supports them), a larger
+ * MTU and high connection priority (API 21 and up).
+ */
+enum LinkMode {
+    COMPATIBLE,
+    HIGH_THROUGHPUT
+}
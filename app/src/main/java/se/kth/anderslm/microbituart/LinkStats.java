@@ -0,0 +1,96 @@
+package se.kth.anderslm.microbituart;
+
+/**
+ * Effective link parameters and throughput, used to compare the link modes.
+ * Android does not report the connection interval (before API 26, and then only
+ * through a hidden callback), so it is estimated from the gaps between bursts of
+ * packets - several notifications may arrive in the same connection event.
+ */
+class LinkStats {
+
+    static final int DEFAULT_MTU = 23;
+
+    // packets closer than this are assumed to belong to the same connection event
+    private static final long BURST_GAP_NANOS = 3000000L;
+
+    private int mMtu = DEFAULT_MTU;
+    private long mTotalBytes = 0;
+    private long mTotalPackets = 0;
+
+    private long mLastPacketNanos = 0;
+    private long mLastBurstNanos = 0;
+    private double mIntervalMillis = 0;
+
+    private long mWindowStartNanos = 0;
+    private long mWindowBytes = 0;
+    private double mBytesPerSecond = 0;
+
+    synchronized void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    synchronized int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Max number of payload bytes in one packet, i.e. MTU minus the ATT header.
+     */
+    synchronized int getMaxPayload() {
+        return mMtu - 3;
+    }
+
+    synchronized void onPacket(int length, long nowNanos) {
+        mTotalBytes += length;
+        mTotalPackets++;
+        mWindowBytes += length;
+        if (mLastPacketNanos != 0 && nowNanos - mLastPacketNanos > BURST_GAP_NANOS) {
+            if (mLastBurstNanos != 0) {
+                double interval = (nowNanos - mLastBurstNanos) / 1e6;
+                mIntervalMillis = mIntervalMillis == 0 ?
+                        interval : 0.9 * mIntervalMillis + 0.1 * interval;
+            }
+            mLastBurstNanos = nowNanos;
+        }
+        mLastPacketNanos = nowNanos;
+    }
+
+    /**
+     * Updates bytes/sec with the data received since the previous call.
+     */
+    synchronized void sample(long nowNanos) {
+        if (mWindowStartNanos != 0 && nowNanos > mWindowStartNanos) {
+            mBytesPerSecond = mWindowBytes * 1e9 / (nowNanos - mWindowStartNanos);
+        }
+        mWindowStartNanos = nowNanos;
+        mWindowBytes = 0;
+    }
+
+    synchronized void reset() {
+        mMtu = DEFAULT_MTU;
+        mTotalBytes = 0;
+        mTotalPackets = 0;
+        mLastPacketNanos = 0;
+        mLastBurstNanos = 0;
+        mIntervalMillis = 0;
+        mWindowStartNanos = 0;
+        mWindowBytes = 0;
+        mBytesPerSecond = 0;
+    }
+
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    synchronized long getTotalPackets() {
+        return mTotalPackets;
+    }
+
+    synchronized double getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    synchronized double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+}
@@ -7,19 +7,20 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
 import android.view.View;
-import android.widget.AdapterView;
 import android.widget.Button;
-import android.widget.ListView;
+import android.widget.CheckBox;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * An example on how to use the Android BLE API to connect to a BLE device, in this case
@@ -49,12 +50,12 @@ public class MainActivity extends AppCompatActivity {
     private static final long SCAN_PERIOD = 5000;
 
     private BluetoothAdapter mBluetoothAdapter;
-    private boolean mScanning;
-    private Handler mHandler;
+    private DeviceScanner mDeviceScanner;
 
-    private ArrayList<BluetoothDevice> mDeviceList;
     private BTDeviceArrayAdapter mAdapter;
     private TextView mScanInfoView;
+    private CheckBox mHighThroughputBox;
+    private CheckBox mBinaryBox;
 
     private void initBLE() {
         if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
@@ -81,6 +82,9 @@ public class MainActivity extends AppCompatActivity {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
         }
+        if (mBluetoothAdapter != null && mDeviceScanner == null) {
+            mDeviceScanner = new DeviceScanner(mBluetoothAdapter, BBC_MICRO_BIT, mScanListener);
+        }
 
     }
 
@@ -116,74 +120,105 @@ public class MainActivity extends AppCompatActivity {
         super.onActivityResult(requestCode, resultCode, data);
     }
 
-    // device selected, start DeviceActivity (displaying data)
+    // device selected, connect and start DeviceActivity (displaying data)
     private void onDeviceSelected(int position) {
-        ConnectedDevice.setInstance(mDeviceList.get(position));
-        showToast(ConnectedDevice.getInstance().toString());
-        Intent intent = new Intent(MainActivity.this, DeviceActivity.class);
-        startActivity(intent);
+        BluetoothDevice device = mAdapter.getItem(position).getDevice();
+        UartService.start(this);
+        ConnectionManager.getInstance(this).connect(device, getLinkMode(), getDataFormat());
+        showToast(device.toString());
+        startActivity(new Intent(MainActivity.this, DeviceActivity.class));
+    }
+
+    // connect to all devices found, e.g. a classroom set of Micro:bits
+    private void onConnectAll() {
+        if (mAdapter.isEmpty()) {
+            return;
+        }
+        scanLeDevice(false);
+        UartService.start(this);
+        ConnectionManager connectionManager = ConnectionManager.getInstance(this);
+        LinkMode linkMode = getLinkMode();
+        DataFormat dataFormat = getDataFormat();
+        for (int i = 0; i < mAdapter.getItemCount(); i++) {
+            connectionManager.connect(mAdapter.getItem(i).getDevice(), linkMode, dataFormat);
+        }
+        startActivity(new Intent(MainActivity.this, DeviceActivity.class));
+    }
+
+    // connect directly, without a scan, to the devices connected to before
+    private void onReconnectKnown() {
+        List<KnownDevices.Entry> known = KnownDevices.getInstance(this).getAll();
+        if (mBluetoothAdapter == null || known.isEmpty()) {
+            showToast(getString(R.string.no_known_devices_msg));
+            return;
+        }
+        scanLeDevice(false);
+        UartService.start(this);
+        ConnectionManager connectionManager = ConnectionManager.getInstance(this);
+        for (KnownDevices.Entry entry : known) {
+            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(entry.address);
+            connectionManager.connect(device, entry.linkMode, entry.dataFormat);
+        }
+        startActivity(new Intent(MainActivity.this, DeviceActivity.class));
+    }
+
+    // connect to a simulated Micro:bit, for trying the app without hardware
+    private void onSimulate() {
+        scanLeDevice(false);
+        UartService.start(this);
+        ConnectionManager connectionManager = ConnectionManager.getInstance(this);
+        SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+        config.linkMode = getLinkMode();
+        config.dataFormat = getDataFormat();
+        connectionManager.connect(new SimulatedMicrobit(config, connectionManager.getHandler()),
+                config.dataFormat);
+        startActivity(new Intent(MainActivity.this, DeviceActivity.class));
+    }
+
+    private LinkMode getLinkMode() {
+        return mHighThroughputBox.isChecked() ? LinkMode.HIGH_THROUGHPUT : LinkMode.COMPATIBLE;
+    }
+
+    private DataFormat getDataFormat() {
+        return mBinaryBox.isChecked() ? DataFormat.BINARY : DataFormat.TEXT;
     }
 
     /*
      * Scan for BLE devices.
      */
     private void scanLeDevice(final boolean enable) {
+        if (mDeviceScanner == null) {
+            return;
+        }
         if (enable) {
-            if (!mScanning) {
+            if (!mDeviceScanner.isScanning()) {
                 // stop scanning after a pre-defined scan period, SCAN_PERIOD
-                mHandler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (mScanning) {
-                            mScanning = false;
-                            // stop/startLeScan is deprecated from API 21,
-                            // but we support API 18 and up
-                            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                            showToast("BLE scan stopped");
-                        }
-                    }
-                }, SCAN_PERIOD);
-
-                mScanning = true;
-                mBluetoothAdapter.startLeScan(mLeScanCallback);
+                mDeviceScanner.start(SCAN_PERIOD);
                 mScanInfoView.setText(getString(R.string.no_devices_msg));
                 showToast("BLE scan started");
             }
         } else {
-            if (mScanning) {
-                mScanning = false;
-                mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                showToast("BLE scan stopped");
-            }
+            mDeviceScanner.stop();
         }
     }
 
     /**
-     * Implementation of the device scan callback.
-     * Only adding devices matching name BBC_MICRO_BIT.
+     * Scan results, delivered on the ui thread at most every DeviceScanner.DELIVERY_PERIOD ms.
+     * Only devices matching name BBC_MICRO_BIT.
      */
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-                @Override
-                public void onLeScan(final BluetoothDevice device, int rssi,
-                                     byte[] scanRecord) {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            String name = device.getName();
-                            if (name != null
-                                    && name.contains(BBC_MICRO_BIT)
-                                    && !mDeviceList.contains(device)) {
-                                mDeviceList.add(device);
-                                mAdapter.notifyDataSetChanged();
-                                String msg =
-                                        getString(R.string.found_devices_msg, mDeviceList.size());
-                                mScanInfoView.setText(msg);
-                            }
-                        }
-                    });
-                }
-            };
+    private final DeviceScanner.Listener mScanListener = new DeviceScanner.Listener() {
+        @Override
+        public void onScanResults(List<ScanEntry> entries) {
+            mAdapter.update(entries);
+            String msg = getString(R.string.found_devices_msg, mAdapter.getItemCount());
+            mScanInfoView.setText(msg);
+        }
+
+        @Override
+        public void onScanStopped() {
+            showToast("BLE scan stopped");
+        }
+    };
 
     /**
      * Below: Manage activity, and hence bluetooth, life cycle,
@@ -194,29 +229,52 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mHandler = new Handler();
-
         mScanInfoView = findViewById(R.id.scanInfo);
+        mHighThroughputBox = findViewById(R.id.highThroughputBox);
+        mBinaryBox = findViewById(R.id.binaryBox);
 
         Button startScanButton = findViewById(R.id.startScanButton);
         startScanButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mDeviceList.clear();
+                mAdapter.clear();
                 scanLeDevice(true);
             }
         });
 
-        ListView scanListView = findViewById(R.id.scanListView);
-        mDeviceList = new ArrayList<>();
-        mAdapter = new BTDeviceArrayAdapter(this, mDeviceList);
-        scanListView.setAdapter(mAdapter);
-        scanListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        Button connectAllButton = findViewById(R.id.connectAllButton);
+        connectAllButton.setOnClickListener(new View.OnClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> arg0, View arg1, int position, long arg3) {
+            public void onClick(View v) {
+                onConnectAll();
+            }
+        });
+
+        Button reconnectButton = findViewById(R.id.reconnectButton);
+        reconnectButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                onReconnectKnown();
+            }
+        });
+
+        Button simulateButton = findViewById(R.id.simulateButton);
+        simulateButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                onSimulate();
+            }
+        });
+
+        RecyclerView scanListView = findViewById(R.id.scanListView);
+        scanListView.setLayoutManager(new LinearLayoutManager(this));
+        mAdapter = new BTDeviceArrayAdapter(this, new BTDeviceArrayAdapter.OnDeviceClickListener() {
+            @Override
+            public void onDeviceClick(int position) {
                 onDeviceSelected(position);
             }
         });
+        scanListView.setAdapter(mAdapter);
     }
 
     @Override
@@ -231,12 +289,24 @@ public class MainActivity extends AppCompatActivity {
         super.onStop();
         // stop scanning
         scanLeDevice(false);
-        mDeviceList.clear();
-        mAdapter.notifyDataSetChanged();
+        if (Metrics.LOG) {
+            Log.i("onStop", "device list: " + mAdapter.getBindCount() + " binds, " +
+                    mAdapter.getRowUpdates() + " row updates in " +
+                    mAdapter.getUpdateCount() + " updates");
+        }
+        mAdapter.clear();
         // NB !release additional resources
         // ...BleGatt...
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mDeviceScanner != null) {
+            mDeviceScanner.quit();
+        }
+    }
+
     // short messages
     protected void showToast(String msg) {
         Toast toast = Toast.makeText(this, msg, Toast.LENGTH_SHORT);
@@ -0,0 +1,233 @@
+package se.kth.anderslm.microbituart;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the BLE pipeline, and switches for logging.
+ * Everything is lock free, and guarded by compile time constants: with ENABLED false
+ * the compiler removes the recording code, and with LOG false (release builds) the
+ * Log.i calls, including the string concatenation, at the call sites:
+ * <pre>
+ *     if (Metrics.LOG) Log.i("tag", "value " + value);
+ * </pre>
+ * Per-packet logging is off by default and sampled when turned on, see logSample().
+ */
+final class Metrics {
+
+    static final boolean ENABLED = true;
+    static final boolean LOG = BuildConfig.DEBUG;
+    // log in the per-packet path, only every LOG_SAMPLE_RATE:th call, see logSample()
+    static final boolean LOG_PER_PACKET = false;
+    static final int LOG_SAMPLE_RATE = 100;
+
+    /**
+     * A monotonic counter.
+     */
+    static final class Counter {
+        final String mName;
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            mName = name;
+        }
+
+        void add(long n) {
+            if (ENABLED) {
+                mValue.addAndGet(n);
+            }
+        }
+
+        void increment() {
+            if (ENABLED) {
+                mValue.incrementAndGet();
+            }
+        }
+
+        long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * Latency histogram in microseconds, with SUB_BUCKETS linear sub-buckets per power of
+     * two: values below SUB_BUCKETS us have a bucket each, above that a bucket spans 1/8
+     * of its power of two, i.e. [2^e, 2^(e+1)) us is split in 8 equal buckets.
+     * Percentiles are estimated as the upper bucket bound, at most 12.5 % high.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        // up to 2^31 us, about 36 minutes
+        private static final int BUCKETS = (31 - SUB_BITS + 2) * SUB_BUCKETS;
+
+        final String mName;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSumMicros = new AtomicLong();
+        private final AtomicLong mMaxMicros = new AtomicLong();
+
+        Histogram(String name) {
+            mName = name;
+        }
+
+        static int bucketOf(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            int bucket = (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        // exclusive
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket + 1;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS);
+        }
+
+        void recordNanos(long nanos) {
+            if (!ENABLED) {
+                return;
+            }
+            long micros = Math.max(nanos / 1000, 0);
+            mBuckets.incrementAndGet(bucketOf(micros));
+            mCount.incrementAndGet();
+            mSumMicros.addAndGet(micros);
+            long max = mMaxMicros.get();
+            while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+                max = mMaxMicros.get();
+            }
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        double getMeanMillis() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mSumMicros.get() / 1000.0 / count;
+        }
+
+        double getMaxMillis() {
+            return mMaxMicros.get() / 1000.0;
+        }
+
+        /**
+         * @param p e.g. 0.99
+         * @return upper bound, in ms, of the bucket holding the p:th percentile, at most
+         * the max
+         */
+        double getPercentileMillis(double p) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max((long) Math.ceil(p * count), 1);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), mMaxMicros.get()) / 1000.0;
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+
+    /**
+     * Rates since the previous snapshot of the same caller: each view of the metrics,
+     * e.g. a periodic overlay and a dump on request, keeps its own Snapshot so they do
+     * not reset each other's baseline.
+     */
+    static final class Snapshot {
+        private long mLastNanos = System.nanoTime();
+        private final long[] mLastValues = new long[COUNTERS.length];
+
+        /**
+         * All counters, with rates per second since the previous call, and histograms.
+         */
+        synchronized String take() {
+            long now = System.nanoTime();
+            double seconds = Math.max((now - mLastNanos) / 1e9, 1e-3);
+            mLastNanos = now;
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < COUNTERS.length; i++) {
+                Counter counter = COUNTERS[i];
+                long value = counter.get();
+                sb.append(String.format(Locale.US, "%s: %d (%.1f/s)\n", counter.mName, value,
+                        (value - mLastValues[i]) / seconds));
+                mLastValues[i] = value;
+            }
+            for (Histogram histogram : HISTOGRAMS) {
+                sb.append(String.format(Locale.US,
+                        "%s: n %d, mean %.2f, p50 %.2f, p99 %.2f, max %.2f ms\n",
+                        histogram.mName, histogram.getCount(), histogram.getMeanMillis(),
+                        histogram.getPercentileMillis(0.5),
+                        histogram.getPercentileMillis(0.99), histogram.getMaxMillis()));
+            }
+            return sb.toString();
+        }
+    }
+
+    static final Counter PACKETS = new Counter("packets");
+    static final Counter BYTES = new Counter("bytes");
+    static final Counter FRAMES = new Counter("frames");
+    static final Counter FRAMES_DROPPED = new Counter("frames dropped");
+    static final Counter FRAMES_COALESCED = new Counter("frames coalesced");
+    static final Counter FRAMES_LOST = new Counter("frames lost");
+    static final Counter FRAMES_CORRUPT = new Counter("frames corrupt");
+    static final Counter BYTES_SENT = new Counter("bytes sent");
+    static final Counter SCAN_RESULTS = new Counter("scan results");
+    static final Counter SCAN_RESULTS_DROPPED = new Counter("scan results dropped");
+    static final Counter PLOT_FRAMES_DROPPED = new Counter("plot frames dropped");
+    static final Counter RECONNECTS = new Counter("reconnects");
+    static final Counter PRIORITY_CHANGES = new Counter("priority changes");
+    static final Counter STREAM_FRAMES_DROPPED = new Counter("stream frames dropped");
+    static final Counter BRIDGE_BYTES_OUT = new Counter("bridge bytes out");
+    static final Counter BRIDGE_CLIENTS_STALLED = new Counter("bridge clients stalled");
+    static final Counter RPC_TIMEOUTS = new Counter("rpc timeouts");
+    static final Counter BULK_RETRANSMITS = new Counter("bulk retransmits");
+
+    static final Histogram NOTIFY_TO_RENDER = new Histogram("notify to render");
+    static final Histogram GATT_OP = new Histogram("gatt op");
+    static final Histogram PLOT_FRAME = new Histogram("plot frame");
+    // connect to first received byte
+    static final Histogram TTFB_COLD = new Histogram("first byte, cold");
+    static final Histogram TTFB_WARM = new Histogram("first byte, warm");
+    static final Histogram TTFB_RECONNECT = new Histogram("first byte, reconnect");
+    // receive to copied to all bridge clients
+    static final Histogram BRIDGE_FAN_OUT = new Histogram("bridge fan out");
+    // call to reply, UartRpc
+    static final Histogram RPC_LATENCY = new Histogram("rpc latency");
+    // ping round trip, all devices, see ClockSync
+    static final Histogram PING_RTT = new Histogram("ping rtt");
+
+    private static final Counter[] COUNTERS = {PACKETS, BYTES, FRAMES, FRAMES_DROPPED,
+            FRAMES_COALESCED, FRAMES_LOST, FRAMES_CORRUPT, BYTES_SENT, SCAN_RESULTS,
+            SCAN_RESULTS_DROPPED, PLOT_FRAMES_DROPPED, RECONNECTS, STREAM_FRAMES_DROPPED,
+            BRIDGE_BYTES_OUT, BRIDGE_CLIENTS_STALLED, PRIORITY_CHANGES, RPC_TIMEOUTS,
+            BULK_RETRANSMITS};
+    private static final Histogram[] HISTOGRAMS = {NOTIFY_TO_RENDER, GATT_OP, PLOT_FRAME,
+            TTFB_COLD, TTFB_WARM, TTFB_RECONNECT, BRIDGE_FAN_OUT, RPC_LATENCY,
+            PING_RTT};
+
+    private static final AtomicLong logCalls = new AtomicLong();
+
+    private Metrics() {
+    }
+
+    /**
+     * True for every LOG_SAMPLE_RATE:th call, for logging in the per-packet path.
+     */
+    static boolean logSample() {
+        return logCalls.incrementAndGet() % LOG_SAMPLE_RATE == 0;
+    }
+}
@@ -0,0 +1,389 @@
+package se.kth.anderslm.microbituart;
+
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * The device and link behind SimulatedMicrobit, without threads or clocks: it only moves
+ * when a connection event is run, so it can also be driven directly, e.g. from a
+ * benchmark.
+ * <p>
+ * Time is simulated. Each connection event advances the Micro:bit clock by the interval
+ * drawn for it (see nextEventDelay), samples are generated for the stream time that has
+ * passed, and the "@ms" timestamps and ping replies read the same clock. Link decisions
+ * (jitter, loss) and sample noise come from two Randoms seeded from the config, so the
+ * same config and the same writes give the same packets, however the events are
+ * scheduled.
+ * <p>
+ * In an event the writes from the phone are delivered, and data to the phone is sent in
+ * packets of at most MTU - 3 bytes. With notifications up to PACKETS_PER_EVENT packets
+ * are sent and the same number of writes (without response) accepted per event, each
+ * lost with the configured probability; with indications one packet is sent and one
+ * write accepted, they are acknowledged and never lost.
+ * <p>
+ * Not thread safe, SimulatedMicrobit calls it on its handler thread.
+ */
+class MicrobitModel {
+
+    interface PacketListener {
+        /**
+         * A packet to the phone, the array is not reused.
+         */
+        void onPacket(byte[] packet);
+    }
+
+    // notifications, and writes without response, per connection event
+    static final int PACKETS_PER_EVENT = 4;
+    // bytes waiting to be sent, samples are dropped beyond this
+    private static final int TX_CAPACITY = 2048;
+    // max selective acks per ack line
+    private static final int MAX_SELECTIVE = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SimulatedMicrobit.Config mConfig;
+    private final String mLabel;
+    private final Random mLinkRandom; // jitter and loss
+    private final Random mNoiseRandom; // sample noise
+
+    private long mClockNanos = 0; // since boot
+    private boolean mLinkUp = false;
+    private boolean mNotify;
+    private int mMaxPayload;
+    private long mIntervalMillis;
+    private long mEventDelay = 0; // drawn for the next event
+    private long mStreamNanos; // since the link came up
+    private long mSampleCount;
+    private int mSequence = 0;
+    private volatile long mDroppedSamples = 0;
+    private final short[] mSamples = new short[3];
+    private final byte[] mFrame = new byte[16];
+
+    // writes from the phone, delivered in the next event
+    private final ArrayDeque<byte[]> mWrites = new ArrayDeque<>();
+
+    // data to the phone
+    private final ArrayDeque<byte[]> mTx = new ArrayDeque<>();
+    private int mTxOffset = 0; // into the first array
+    private int mTxBytes = 0;
+
+    // data from the phone, a text line or a length-prefixed bulk packet at the start
+    private final byte[] mRx = new byte[512];
+    private int mRxLength = 0;
+
+    // bulk transfer being received
+    private int mBulkId = -1;
+    private byte[] mBulkData;
+    private int mBulkChunkSize;
+    private long mBulkCrc;
+    private boolean[] mBulkReceived;
+    private int mBulkNext;
+    private String mBulkResult = null; // set when done
+
+    /**
+     * @param label for the log, e.g. the address
+     */
+    MicrobitModel(SimulatedMicrobit.Config config, String label) {
+        mConfig = config;
+        mLabel = label;
+        mLinkRandom = new Random(config.seed);
+        mNoiseRandom = new Random(config.noiseSeed);
+    }
+
+    /**
+     * The link is up and the stream starts.
+     *
+     * @param maxPayload max bytes per packet, MTU - 3
+     */
+    void linkUp(int maxPayload) {
+        mLinkUp = true;
+        mNotify = mConfig.linkMode == LinkMode.HIGH_THROUGHPUT && mConfig.notify;
+        mMaxPayload = maxPayload;
+        mIntervalMillis = mConfig.intervalMillis;
+        mStreamNanos = 0;
+        mSampleCount = 0;
+        mRxLength = 0;
+    }
+
+    /**
+     * The link is lost or closed, data in flight either way is dropped.
+     */
+    void linkDown() {
+        mLinkUp = false;
+        mWrites.clear();
+        mTx.clear();
+        mTxOffset = 0;
+        mTxBytes = 0;
+    }
+
+    /**
+     * Advance the clock while no events are run, e.g. while connecting.
+     */
+    void advance(long millis) {
+        mClockNanos += millis * 1000000L;
+    }
+
+    void setIntervalMillis(long intervalMillis) {
+        mIntervalMillis = intervalMillis;
+    }
+
+    boolean isNotifying() {
+        return mNotify;
+    }
+
+    /**
+     * Delay until the next connection event, the interval plus jitter, ms. The next
+     * event advances the clock by the same amount.
+     */
+    long nextEventDelay() {
+        int jitter = mConfig.jitterMillis;
+        long delay = mIntervalMillis + (jitter > 0 ?
+                mLinkRandom.nextInt(2 * jitter + 1) - jitter : 0);
+        mEventDelay = Math.max(1, delay);
+        return mEventDelay;
+    }
+
+    /**
+     * Whether a write fits in the next event.
+     */
+    boolean acceptsWrite() {
+        return mLinkUp && mWrites.size() < (mNotify ? PACKETS_PER_EVENT : 1);
+    }
+
+    /**
+     * A write from the phone, delivered in the next event. The array is kept.
+     */
+    void write(byte[] chunk) {
+        mWrites.add(chunk);
+    }
+
+    long getClockMillis() {
+        return mClockNanos / 1000000L;
+    }
+
+    /**
+     * Samples not sent because the Micro:bit buffer was full.
+     */
+    long getDroppedSampleCount() {
+        return mDroppedSamples;
+    }
+
+    /**
+     * Run a connection event: advance the clock, deliver the writes, queue the samples
+     * due and send what fits to listener.
+     */
+    void connectionEvent(PacketListener listener) {
+        if (!mLinkUp) {
+            return;
+        }
+        mClockNanos += mEventDelay * 1000000L;
+        mStreamNanos += mEventDelay * 1000000L;
+        mEventDelay = 0;
+
+        byte[] write;
+        while ((write = mWrites.poll()) != null) {
+            if (!lost()) {
+                receive(write);
+            }
+        }
+
+        generateSamples();
+
+        int packets = mNotify ? PACKETS_PER_EVENT : 1;
+        for (int i = 0; i < packets && mTxBytes > 0; i++) {
+            byte[] packet = nextPacket(mMaxPayload);
+            if (!lost()) {
+                listener.onPacket(packet);
+            }
+        }
+    }
+
+    private boolean lost() {
+        return mNotify && mConfig.loss > 0 && mLinkRandom.nextDouble() < mConfig.loss;
+    }
+
+    // samples due in the stream time passed
+    private void generateSamples() {
+        long due = mStreamNanos * mConfig.rate / 1000000000L;
+        while (mSampleCount < due) {
+            mSampleCount++;
+            double t = mSampleCount / (double) Math.max(1, mConfig.rate);
+            mSamples[0] = (short) (512 * Math.sin(2 * Math.PI * 0.5 * t)
+                    + mNoiseRandom.nextGaussian() * 8);
+            mSamples[1] = (short) (512 * Math.cos(2 * Math.PI * 0.5 * t)
+                    + mNoiseRandom.nextGaussian() * 8);
+            mSamples[2] = (short) (-1024 + mNoiseRandom.nextGaussian() * 8);
+            byte[] data;
+            if (mConfig.dataFormat == DataFormat.BINARY) {
+                int length = SensorCodec.encode(SensorCodec.TYPE_ACCELEROMETER, mSequence,
+                        mSamples, 3, mFrame, 0);
+                data = Arrays.copyOf(mFrame, length);
+            } else {
+                String line = mSamples[0] + "," + mSamples[1] + "," + mSamples[2] + "\n";
+                data = (mConfig.timestamps ? "@" + getClockMillis() + " " + line : line)
+                        .getBytes(UTF8);
+            }
+            // the sequence number counts frames not sent too, they show up as lost
+            mSequence = (mSequence + 1) & 0xff;
+            if (mTxBytes + data.length > TX_CAPACITY) {
+                mDroppedSamples++;
+            } else {
+                queue(data);
+            }
+        }
+    }
+
+    private void queue(byte[] data) {
+        mTx.add(data);
+        mTxBytes += data.length;
+    }
+
+    private void queueLine(String line) {
+        queue((line + "\n").getBytes(UTF8));
+    }
+
+    // up to maxPayload bytes from the data to the phone
+    private byte[] nextPacket(int maxPayload) {
+        byte[] packet = new byte[Math.min(maxPayload, mTxBytes)];
+        int filled = 0;
+        while (filled < packet.length) {
+            byte[] head = mTx.peek();
+            int length = Math.min(packet.length - filled, head.length - mTxOffset);
+            System.arraycopy(head, mTxOffset, packet, filled, length);
+            filled += length;
+            mTxOffset += length;
+            if (mTxOffset == head.length) {
+                mTx.poll();
+                mTxOffset = 0;
+            }
+        }
+        mTxBytes -= filled;
+        return packet;
+    }
+
+    // data from the phone: text lines, and bulk packets
+    private void receive(byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            if (mRxLength == mRx.length) {
+                mRxLength = 0; // garbage, start over
+            }
+            mRx[mRxLength++] = data[i];
+        }
+        int start = 0;
+        while (start < mRxLength) {
+            int length = mRx[start] & 0xff;
+            if (start + 1 < mRxLength && length >= 4 && (mRx[start + 1] == BulkTransfer.TYPE_START
+                    || mRx[start + 1] == BulkTransfer.TYPE_DATA)) {
+                if (start + 1 + length > mRxLength) {
+                    break; // the rest of the packet is in the next write
+                }
+                if (SensorCodec.crc(mRx, start + 1, length - 1) == mRx[start + length]) {
+                    onBulkPacket(mRx, start + 1, length - 1);
+                    start += length + 1;
+                } else {
+                    start++; // not a packet, or a corrupt one
+                }
+                continue;
+            }
+            int end = start;
+            while (end < mRxLength && mRx[end] != '\n') {
+                end++;
+            }
+            if (end == mRxLength) {
+                break; // incomplete line
+            }
+            onLine(new String(mRx, start, end - start, UTF8).trim());
+            start = end + 1;
+        }
+        System.arraycopy(mRx, start, mRx, 0, mRxLength - start);
+        mRxLength -= start;
+    }
+
+    // a call "#id command", answered with the clock for ping and echoed otherwise
+    private void onLine(String line) {
+        if (!line.startsWith("#")) {
+            if (Metrics.LOG) {
+                Log.i("SimulatedMicrobit", mLabel + ": received " + line);
+            }
+            return;
+        }
+        int space = line.indexOf(' ');
+        if (space < 0) {
+            return;
+        }
+        String id = line.substring(0, space);
+        String command = line.substring(space + 1);
+        queueLine(id + " " + (command.equals("ping") ? Long.toString(getClockMillis())
+                : command));
+    }
+
+    // type, id and fields, without length and crc
+    private void onBulkPacket(byte[] buffer, int offset, int length) {
+        int type = buffer[offset];
+        int id = buffer[offset + 1] & 0xff;
+        if (type == BulkTransfer.TYPE_START && length == 11) {
+            int size = getInt(buffer, offset + 2);
+            int chunkSize = buffer[offset + 6] & 0xff;
+            long crc = getInt(buffer, offset + 7) & 0xffffffffL;
+            if (id != mBulkId || mBulkData == null || size != mBulkData.length
+                    || chunkSize != mBulkChunkSize || crc != mBulkCrc) {
+                // a new transfer, otherwise a resume
+                mBulkId = id;
+                mBulkData = new byte[size];
+                mBulkChunkSize = Math.max(1, chunkSize);
+                mBulkCrc = crc;
+                mBulkReceived = new boolean[(size + mBulkChunkSize - 1) / mBulkChunkSize];
+                mBulkNext = 0;
+                mBulkResult = null;
+            }
+            ackBulk();
+        } else if (type == BulkTransfer.TYPE_DATA && length >= 4 && id == mBulkId
+                && mBulkData != null) {
+            int sequence = (buffer[offset + 2] & 0xff) | (buffer[offset + 3] & 0xff) << 8;
+            int dataOffset = sequence * mBulkChunkSize;
+            int dataLength = length - 4;
+            if (sequence < mBulkReceived.length
+                    && dataOffset + dataLength <= mBulkData.length) {
+                System.arraycopy(buffer, offset + 4, mBulkData, dataOffset, dataLength);
+                mBulkReceived[sequence] = true;
+                while (mBulkNext < mBulkReceived.length && mBulkReceived[mBulkNext]) {
+                    mBulkNext++;
+                }
+            }
+            ackBulk();
+        }
+    }
+
+    private void ackBulk() {
+        if (mBulkNext == mBulkReceived.length) {
+            if (mBulkResult == null) {
+                CRC32 crc32 = new CRC32();
+                crc32.update(mBulkData, 0, mBulkData.length);
+                mBulkResult = crc32.getValue() == mBulkCrc ? "ok" : "crc";
+            }
+            queueLine("!done " + mBulkId + " " + mBulkResult);
+            return;
+        }
+        StringBuilder ack = new StringBuilder("!ack ").append(mBulkId).append(' ')
+                .append(mBulkNext);
+        int selective = 0;
+        for (int i = mBulkNext + 1; i < mBulkReceived.length && selective < MAX_SELECTIVE;
+             i++) {
+            if (mBulkReceived[i]) {
+                ack.append(' ').append(i);
+                selective++;
+            }
+        }
+        queueLine(ack.toString());
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8
+                | (buffer[offset + 2] & 0xff) << 16 | (buffer[offset + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,226 @@
+package se.kth.anderslm.microbituart;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * Live plot of the latest samples of up to MAX_CHANNELS numeric channels.
+ * Drawing is done on a render thread of its own, paced by its Choreographer, i.e. at
+ * display rate, so the ui thread and touch handling are not affected by the plot.
+ * Samples are appended from the BLE thread to lock-free rings (SampleRing)
+ * that the render thread copies each frame. All buffers are allocated up front, nothing
+ * is allocated per frame.
+ * <p>
+ * Frame times are recorded in Metrics.PLOT_FRAME, display frames missed by the render
+ * thread in Metrics.PLOT_FRAMES_DROPPED.
+ */
+public class PlotView extends SurfaceView implements SurfaceHolder.Callback,
+        Choreographer.FrameCallback {
+
+    static final int MAX_CHANNELS = 8;
+    // samples kept per channel, more than 5 s at 200 Hz
+    static final int CAPACITY = 1024;
+    // time shown, 5000 ms
+    static final long WINDOW_NANOS = 5000000000L;
+    // smallest range on the y axis, avoids a flat line filling the view
+    private static final float MIN_RANGE = 10;
+
+    private static final int[] COLORS = {Color.RED, Color.GREEN, Color.CYAN, Color.YELLOW,
+            Color.MAGENTA, Color.WHITE, Color.LTGRAY, Color.BLUE};
+
+    private final SampleRing[] mRings = new SampleRing[MAX_CHANNELS];
+    private final String[] mLabels = new String[MAX_CHANNELS];
+    private volatile int mChannelCount = 0; // published after the label is set
+
+    // owned by the render thread
+    private final long[][] mTimes = new long[MAX_CHANNELS][CAPACITY];
+    private final float[][] mValues = new float[MAX_CHANNELS][CAPACITY];
+    private final int[] mCounts = new int[MAX_CHANNELS];
+    private final float[] mLines = new float[4 * CAPACITY];
+    private final Paint[] mPaints = new Paint[MAX_CHANNELS];
+    private Choreographer mChoreographer;
+    private long mLastFrameNanos = 0;
+
+    private HandlerThread mRenderThread = null;
+    private volatile boolean mRunning = false;
+    private volatile int mWidth = 0;
+    private volatile int mHeight = 0;
+    private volatile long mFramePeriodNanos = 1000000000L / 60;
+    private volatile long mFrameCount = 0;
+    private volatile long mDroppedFrameCount = 0;
+
+    public PlotView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            mRings[i] = new SampleRing(CAPACITY);
+            mPaints[i] = new Paint();
+            mPaints[i].setColor(COLORS[i % COLORS.length]);
+            mPaints[i].setStrokeWidth(2);
+            mPaints[i].setTextSize(24);
+            mPaints[i].setAntiAlias(true);
+        }
+        getHolder().addCallback(this);
+    }
+
+    /**
+     * Name a channel, before appending samples to it.
+     * From the same thread as append.
+     */
+    void setLabel(int channel, String label) {
+        if (channel < MAX_CHANNELS) {
+            mLabels[channel] = label;
+            mChannelCount = Math.max(mChannelCount, channel + 1);
+        }
+    }
+
+    boolean hasLabel(int channel) {
+        return channel >= MAX_CHANNELS || mLabels[channel] != null;
+    }
+
+    /**
+     * Time of the latest sample of channel, Long.MIN_VALUE if none.
+     * From the same thread as append.
+     */
+    long getLatestTime(int channel) {
+        return channel < MAX_CHANNELS ? mRings[channel].getLatestTime() : Long.MIN_VALUE;
+    }
+
+    /**
+     * Add a sample, from one thread only (the BLE thread), never blocks.
+     */
+    void append(int channel, long timeNanos, float value) {
+        if (channel < MAX_CHANNELS) {
+            mRings[channel].append(timeNanos, value);
+        }
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        Display display = getDisplay();
+        if (display != null && display.getRefreshRate() > 0) {
+            mFramePeriodNanos = (long) (1e9 / display.getRefreshRate());
+        }
+        mRunning = true;
+        mRenderThread = new HandlerThread("PlotView");
+        mRenderThread.start();
+        new Handler(mRenderThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mChoreographer = Choreographer.getInstance();
+                mLastFrameNanos = 0;
+                mChoreographer.postFrameCallback(PlotView.this);
+            }
+        });
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        // the surface must not be used after returning, wait for the render thread
+        mRunning = false;
+        mRenderThread.quit();
+        try {
+            mRenderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mRenderThread = null;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        mChoreographer.postFrameCallback(this);
+        if (mLastFrameNanos != 0) {
+            long period = mFramePeriodNanos;
+            long missed = (frameTimeNanos - mLastFrameNanos + period / 2) / period - 1;
+            if (missed > 0) {
+                mDroppedFrameCount += missed;
+                Metrics.PLOT_FRAMES_DROPPED.add(missed);
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+
+        long start = System.nanoTime();
+        Canvas canvas = getHolder().lockCanvas();
+        if (canvas == null) {
+            return;
+        }
+        try {
+            draw(canvas, start);
+        } finally {
+            getHolder().unlockCanvasAndPost(canvas);
+        }
+        mFrameCount++;
+        Metrics.PLOT_FRAME.recordNanos(System.nanoTime() - start);
+    }
+
+    private void draw(Canvas canvas, long nowNanos) {
+        canvas.drawColor(Color.BLACK);
+        int channels = mChannelCount;
+        long from = nowNanos - WINDOW_NANOS;
+
+        // copy the samples and find the range of the y axis
+        float lo = Float.MAX_VALUE;
+        float hi = -Float.MAX_VALUE;
+        for (int c = 0; c < channels; c++) {
+            int n = mRings[c].snapshot(from, mTimes[c], mValues[c]);
+            mCounts[c] = n;
+            for (int i = CAPACITY - n; i < CAPACITY; i++) {
+                lo = Math.min(lo, mValues[c][i]);
+                hi = Math.max(hi, mValues[c][i]);
+            }
+        }
+        if (lo > hi) {
+            return; // no samples
+        }
+        if (hi - lo < MIN_RANGE) {
+            float mid = (hi + lo) / 2;
+            lo = mid - MIN_RANGE / 2;
+            hi = mid + MIN_RANGE / 2;
+        }
+
+        float xScale = (float) mWidth / WINDOW_NANOS;
+        float yScale = mHeight / (hi - lo);
+        for (int c = 0; c < channels; c++) {
+            long[] times = mTimes[c];
+            float[] values = mValues[c];
+            int k = 0;
+            for (int i = CAPACITY - mCounts[c] + 1; i < CAPACITY; i++) {
+                mLines[k++] = (times[i - 1] - from) * xScale;
+                mLines[k++] = mHeight - (values[i - 1] - lo) * yScale;
+                mLines[k++] = (times[i] - from) * xScale;
+                mLines[k++] = mHeight - (values[i] - lo) * yScale;
+            }
+            canvas.drawLines(mLines, 0, k, mPaints[c]);
+            String label = mLabels[c];
+            if (label != null) {
+                canvas.drawText(label, 8, 32 * (c + 1), mPaints[c]);
+            }
+        }
+    }
+}
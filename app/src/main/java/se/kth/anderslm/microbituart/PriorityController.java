@@ -0,0 +1,230 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Adapts the connection priority of a session to its traffic: HIGH (short connection
+ * interval) while data flows, BALANCED for light traffic and LOW_POWER when idle.
+ * Traffic is measured from the byte counts kept in the GATT callback path (LinkStats
+ * for inbound, UartWriter for outbound) once per PERIOD. Moving up is immediate, and a
+ * growing outbound queue moves to HIGH at once; moving down requires the traffic to
+ * stay low for several periods (hysteresis), so the priority does not flap on bursty
+ * data.
+ * <p>
+ * Each transition is logged, with the estimated connection interval, the traffic rate
+ * and the latency, the round trip of the latest ping (see ClockSync), before and
+ * EFFECT_DELAY after it; the round trip is only measured in ping mode. Runs on the
+ * handler thread.
+ */
+class PriorityController {
+
+    // period for evaluating the traffic, 1000 ms
+    private static final long PERIOD = 1000;
+    // delay before logging the effect of a transition, 3000 ms
+    private static final long EFFECT_DELAY = 3000;
+
+    // bytes/s, in + out, to move up to HIGH, and to stay there
+    private static final double HIGH_ENTER = 2000;
+    private static final double HIGH_EXIT = 1000;
+    // bytes/s to leave LOW_POWER, and to move down to it
+    private static final double LOW_EXIT = 200;
+    private static final double LOW_ENTER = 50;
+    // outbound bytes queued that moves up to HIGH at once
+    private static final int QUEUE_ENTER = 512;
+    // periods with low traffic before moving down
+    private static final int HOLD_PERIODS = 3;
+    private static final int IDLE_PERIODS = 5;
+
+    private final String mLabel;
+    private final LinkStats mLinkStats;
+    private final UartWriter mUartWriter;
+    private final UartTransport mTransport;
+    private final ClockSync mClockSync;
+    private final Handler mHandler;
+
+    private volatile int mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private volatile long mTransitionCount = 0;
+    private volatile double mRate = 0;
+    private boolean mRunning = false;
+    private long mLastNanos; // SystemClock.elapsedRealtimeNanos()
+    private long mLastBytes;
+    private int mLowPeriods = 0;
+
+    // state before the latest transition, for logging its effect
+    private int mFromPriority;
+    private double mFromInterval;
+    private double mFromRate;
+    private long mFromRoundTrip;
+    private int mFromProbes;
+
+    PriorityController(String label, UartTransport transport, ClockSync clockSync,
+                       Handler handler) {
+        mLabel = label;
+        mLinkStats = transport.getLinkStats();
+        mUartWriter = transport.getUartWriter();
+        mTransport = transport;
+        mClockSync = clockSync;
+        mHandler = handler;
+    }
+
+    /**
+     * Start adapting, from the priority already requested.
+     */
+    void start(final int priority) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = true;
+                mPriority = priority;
+                mLowPeriods = 0;
+                mLastNanos = SystemClock.elapsedRealtimeNanos();
+                mLastBytes = totalBytes();
+                mHandler.removeCallbacks(mTick);
+                mHandler.postDelayed(mTick, PERIOD);
+            }
+        });
+    }
+
+    void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                mHandler.removeCallbacks(mTick);
+                mHandler.removeCallbacks(mLogEffect);
+            }
+        });
+    }
+
+    /**
+     * Outbound data was queued, from any thread: a long queue moves up at once.
+     */
+    void onOutbound(int queuedBytes) {
+        if (queuedBytes >= QUEUE_ENTER
+                && mPriority != BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            mHandler.post(mTick);
+        }
+    }
+
+    int getPriority() {
+        return mPriority;
+    }
+
+    long getTransitionCount() {
+        return mTransitionCount;
+    }
+
+    /**
+     * Traffic, in + out, in bytes/s over the latest period.
+     */
+    double getRate() {
+        return mRate;
+    }
+
+    static String priorityName(int priority) {
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return "HIGH";
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return "LOW_POWER";
+            default:
+                return "BALANCED";
+        }
+    }
+
+    private long totalBytes() {
+        return mLinkStats.getTotalBytes() + mUartWriter.getBytesSent();
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+            mHandler.removeCallbacks(this);
+            long now = SystemClock.elapsedRealtimeNanos();
+            long bytes = totalBytes();
+            if (now - mLastNanos >= PERIOD * 1000000L / 2) {
+                mRate = (bytes - mLastBytes) * 1e9 / (now - mLastNanos);
+                mLastNanos = now;
+                mLastBytes = bytes;
+            }
+            evaluate(mRate, mUartWriter.getQueuedBytes());
+            mHandler.postDelayed(this, PERIOD);
+        }
+    };
+
+    private void evaluate(double rate, int queued) {
+        boolean busy = rate >= HIGH_ENTER || queued >= QUEUE_ENTER;
+        switch (mPriority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                mLowPeriods = rate < HIGH_EXIT && queued == 0 ? mLowPeriods + 1 : 0;
+                if (mLowPeriods >= HOLD_PERIODS) {
+                    transition(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, rate);
+                }
+                break;
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                if (busy) {
+                    transition(BluetoothGatt.CONNECTION_PRIORITY_HIGH, rate);
+                } else if (rate >= LOW_EXIT || queued > 0) {
+                    transition(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, rate);
+                }
+                break;
+            default:
+                if (busy) {
+                    transition(BluetoothGatt.CONNECTION_PRIORITY_HIGH, rate);
+                    break;
+                }
+                mLowPeriods = rate < LOW_ENTER && queued == 0 ? mLowPeriods + 1 : 0;
+                if (mLowPeriods >= IDLE_PERIODS) {
+                    transition(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, rate);
+                }
+                break;
+        }
+    }
+
+    private void transition(int priority, double rate) {
+        mFromPriority = mPriority;
+        mFromInterval = mLinkStats.getIntervalMillis();
+        mFromRate = rate;
+        mFromRoundTrip = mClockSync.getLatestRoundTripNanos();
+        mFromProbes = mClockSync.getProbeCount();
+        mPriority = priority;
+        mLowPeriods = 0;
+        mTransitionCount++;
+        Metrics.PRIORITY_CHANGES.increment();
+        mTransport.requestPriority(priority);
+        mHandler.removeCallbacks(mLogEffect);
+        mHandler.postDelayed(mLogEffect, EFFECT_DELAY);
+        if (Metrics.LOG) {
+            Log.i("PriorityController", mLabel + ": " + priorityName(mFromPriority) + " -> "
+                    + priorityName(priority) + String.format(Locale.US,
+                    ", %.0f bytes/s, %d bytes queued", rate, mUartWriter.getQueuedBytes()));
+        }
+    }
+
+    // the effect of the latest transition, on the estimated interval, the traffic rate
+    // and the round trip, if pings were answered both before and after it
+    private final Runnable mLogEffect = new Runnable() {
+        @Override
+        public void run() {
+            if (Metrics.LOG) {
+                String roundTrip = mFromProbes > 0 && mClockSync.getProbeCount() > mFromProbes
+                        ? String.format(Locale.US, ", round trip %.1f -> %.1f ms",
+                        mFromRoundTrip / 1e6, mClockSync.getLatestRoundTripNanos() / 1e6)
+                        : ", round trip not measured";
+                Log.i("PriorityController", mLabel + ": " + priorityName(mFromPriority)
+                        + " -> " + priorityName(mPriority) + String.format(Locale.US,
+                        " effect: interval %.1f -> %.1f ms, %.0f -> %.0f bytes/s",
+                        mFromInterval, mLinkStats.getIntervalMillis(), mFromRate, mRate)
+                        + roundTrip);
+            }
+        }
+    };
+}
@@ -0,0 +1,218 @@
+package se.kth.anderslm.microbituart;
+
+import android.view.Choreographer;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces values published from the BLE thread and renders them at most once per
+ * display frame. Only the latest value is kept - values replaced before they were shown
+ * are counted as coalesced instead of being queued on the main thread. The last few
+ * values rendered (the tail) are shown.
+ * <p>
+ * Values are handed to the ui thread through a triple buffer: the publisher copies the
+ * raw frame, or the samples, into a preallocated slot and swaps it with the latest one,
+ * the ui thread swaps the latest one out when rendering. Nothing is allocated or locked
+ * when publishing, so a busy or blocked ui thread never stalls the publisher; the text
+ * is formatted on the ui thread, and only for values that are rendered.
+ * <p>
+ * Must be created on the ui thread, the renderer is called on the ui thread. Values
+ * must be published from one thread at a time.
+ */
+class RenderScheduler implements Choreographer.FrameCallback {
+
+    interface Renderer {
+        void render(CharSequence text);
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // in mLatest, the slot holds a value not rendered yet
+    private static final int FRESH = 4;
+    private static final int INDEX = 3;
+
+    /**
+     * A line of text or decoded samples, with where it came from. Reused.
+     */
+    private static final class Value {
+        String label;
+        boolean samples; // decoded samples, a text line otherwise
+        byte[] text = new byte[128];
+        int textLength;
+        int type;
+        short[] values = new short[SensorCodec.MAX_SAMPLES];
+        int count;
+        long timestampNanos;
+        long originNanos;
+        Metrics.Histogram originLatency;
+
+        void appendTo(StringBuilder builder) {
+            builder.append(label).append(": ");
+            if (samples) {
+                builder.append(type).append(" |");
+                for (int i = 0; i < count; i++) {
+                    builder.append(' ').append(values[i]);
+                }
+            } else {
+                builder.append(new String(text, 0, textLength, UTF8));
+            }
+        }
+    }
+
+    private final Choreographer mChoreographer;
+    private final Renderer mRenderer;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private volatile boolean mStopped = false;
+
+    private volatile long mRenderedCount = 0;
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    // the triple buffer: the publisher fills mSlots[mBack], the ui thread reads
+    // mSlots[mFront], and mLatest holds the index of the third one and FRESH
+    private final Value[] mSlots = {new Value(), new Value(), new Value()};
+    private final AtomicInteger mLatest = new AtomicInteger(2);
+    private int mBack = 0; // publisher only
+    private int mFront = 1; // ui thread only
+
+    // ring buffer holding the tail, only used on the ui thread
+    private final String[] mTail;
+    private int mNext = 0;
+    private int mCount = 0;
+    private final StringBuilder mLine = new StringBuilder();
+    private final StringBuilder mText = new StringBuilder();
+
+    /**
+     * @param tailLines number of values shown, 1 to only show the latest value
+     */
+    RenderScheduler(int tailLines, Renderer renderer) {
+        mChoreographer = Choreographer.getInstance();
+        mTail = new String[Math.max(tailLines, 1)];
+        mRenderer = renderer;
+    }
+
+    /**
+     * Publish a line of text, shown as "label: text". Never blocks, the bytes are copied.
+     *
+     * @param timestampNanos receive time of the value, System.nanoTime(), used for
+     *                       the notification to render latency
+     * @param originNanos    e.g. the sensor time of the value, System.nanoTime(), 0 if
+     *                       unknown
+     * @param originLatency  for the origin to render latency, e.g. per device, or null
+     */
+    void publishText(String label, byte[] buffer, int offset, int length,
+                     long timestampNanos, long originNanos, Metrics.Histogram originLatency) {
+        if (mStopped) {
+            return;
+        }
+        Value value = mSlots[mBack];
+        if (value.text.length < length) {
+            value.text = new byte[Math.max(length, 2 * value.text.length)];
+        }
+        System.arraycopy(buffer, offset, value.text, 0, length);
+        value.textLength = length;
+        value.samples = false;
+        publish(value, label, timestampNanos, originNanos, originLatency);
+    }
+
+    /**
+     * Publish decoded samples, shown as "label: type | samples". Never blocks, the
+     * samples are copied.
+     *
+     * @param timestampNanos receive time of the samples, System.nanoTime()
+     */
+    void publishSamples(String label, int type, short[] samples, int count,
+                        long timestampNanos) {
+        if (mStopped) {
+            return;
+        }
+        Value value = mSlots[mBack];
+        value.count = Math.min(count, value.values.length);
+        System.arraycopy(samples, 0, value.values, 0, value.count);
+        value.type = type;
+        value.samples = true;
+        publish(value, label, timestampNanos, 0, null);
+    }
+
+    private void publish(Value value, String label, long timestampNanos, long originNanos,
+                         Metrics.Histogram originLatency) {
+        value.label = label;
+        value.timestampNanos = timestampNanos;
+        value.originNanos = originNanos;
+        value.originLatency = originLatency;
+        int previous = mLatest.getAndSet(mBack | FRESH);
+        mBack = previous & INDEX;
+        if ((previous & FRESH) != 0) {
+            coalesced(1); // replaced before it was shown
+        }
+        if (mScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // cleared first, values published from here on schedule another frame
+        mScheduled.set(false);
+        if (mStopped || (mLatest.get() & FRESH) == 0) {
+            return;
+        }
+        mFront = mLatest.getAndSet(mFront) & INDEX;
+        Value latest = mSlots[mFront];
+
+        mLine.setLength(0);
+        latest.appendTo(mLine);
+        mTail[mNext] = mLine.toString();
+        mNext = (mNext + 1) % mTail.length;
+        mCount = Math.min(mCount + 1, mTail.length);
+
+        mText.setLength(0);
+        int first = (mNext - mCount + mTail.length) % mTail.length;
+        for (int i = 0; i < mCount; i++) {
+            if (i > 0) {
+                mText.append('\n');
+            }
+            mText.append(mTail[(first + i) % mTail.length]);
+        }
+        mRenderedCount++;
+        mRenderer.render(mText);
+        long now = System.nanoTime();
+        Metrics.NOTIFY_TO_RENDER.recordNanos(now - latest.timestampNanos);
+        if (latest.originNanos != 0 && latest.originLatency != null) {
+            latest.originLatency.recordNanos(now - latest.originNanos);
+        }
+    }
+
+    /**
+     * Stops rendering, a pending value is dropped. Call on the ui thread.
+     */
+    void stop() {
+        mStopped = true;
+        mChoreographer.removeFrameCallback(this);
+        mScheduled.set(false);
+        // drop the pending value, keeping the slot: a publish may swap concurrently
+        int latest;
+        do {
+            latest = mLatest.get();
+        } while (!mLatest.compareAndSet(latest, latest & INDEX));
+    }
+
+    void start() {
+        mStopped = false;
+    }
+
+    long getRenderedCount() {
+        return mRenderedCount;
+    }
+
+    long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    private void coalesced(int n) {
+        mCoalescedCount.addAndGet(n);
+        Metrics.FRAMES_COALESCED.add(n);
+    }
+}
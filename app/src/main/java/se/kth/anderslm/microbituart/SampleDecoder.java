@@ -0,0 +1,22 @@
+package se.kth.anderslm.microbituart;
+
+/**
+ * Decodes numeric samples from a complete UART frame, see SensorCodec and TextSampleCodec.
+ */
+interface SampleDecoder {
+
+    interface SampleListener {
+        /**
+         * Decoded samples, the array is reused by the decoder and only valid during the call.
+         *
+         * @param type  what the samples are, e.g. SensorCodec.TYPE_ACCELEROMETER
+         * @param count number of samples
+         */
+        void onSamples(int type, short[] samples, int count);
+    }
+
+    /**
+     * @return false if the frame could not be decoded
+     */
+    boolean decode(byte[] buffer, int offset, int length);
+}
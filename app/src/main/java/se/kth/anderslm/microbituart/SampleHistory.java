@@ -0,0 +1,111 @@
+package se.kth.anderslm.microbituart;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The history of all decoded samples, one TimeSeriesStore per channel. A channel is
+ * one position in the samples of a device and type, e.g. the y axis (index 1) of the
+ * accelerometer on one Micro:bit. Memory is bounded by MAX_CHANNELS stores of 256 kB,
+ * 8 MB in all; samples for further channels are ignored.
+ */
+class SampleHistory {
+
+    static final int MAX_CHANNELS = 32;
+
+    /**
+     * Identifies a channel, and gives access to its store.
+     */
+    static final class Channel {
+        final int id; // 0 for the first channel seen, then 1, 2...
+        final String address;
+        final String label;
+        final int type;
+        final int index;
+        final TimeSeriesStore store;
+
+        private Channel(int id, String address, String label, int type, int index,
+                        TimeSeriesStore store) {
+            this.id = id;
+            this.address = address;
+            this.label = label;
+            this.type = type;
+            this.index = index;
+            this.store = store;
+        }
+
+        @Override
+        public String toString() {
+            return label + " " + type + "." + index;
+        }
+    }
+
+    // channels by device address and type, guarded by this
+    private final HashMap<String, Channel[][]> mChannels = new HashMap<>();
+    private final ArrayList<Channel> mChannelList = new ArrayList<>();
+    private long mIgnoredCount = 0;
+
+    /**
+     * Append samples from a session, called on the BLE thread.
+     * Nothing is allocated, except when a channel is seen for the first time.
+     */
+    synchronized void append(GattSession session, long timestampNanos, int type,
+                             short[] samples, int count) {
+        Channel[] channels = channelsFor(session, type, count);
+        for (int i = 0; i < count; i++) {
+            if (channels[i] != null) {
+                channels[i].store.append(timestampNanos, samples[i]);
+            } else {
+                mIgnoredCount++;
+            }
+        }
+    }
+
+    /**
+     * The channels of count samples of type from session, an element is null if there
+     * are too many channels.
+     */
+    synchronized Channel[] getChannels(GattSession session, int type, int count) {
+        return channelsFor(session, type, count);
+    }
+
+    synchronized List<Channel> getChannels() {
+        return new ArrayList<>(mChannelList);
+    }
+
+    synchronized long getIgnoredCount() {
+        return mIgnoredCount;
+    }
+
+    synchronized void clear() {
+        mChannels.clear();
+        mChannelList.clear();
+        mIgnoredCount = 0;
+    }
+
+    // called with the lock held
+    private Channel[] channelsFor(GattSession session, int type, int count) {
+        Channel[][] byType = mChannels.get(session.getAddress());
+        if (byType == null) {
+            byType = new Channel[256][];
+            mChannels.put(session.getAddress(), byType);
+        }
+        Channel[] channels = byType[type & 0xff];
+        if (channels == null || channels.length < count) {
+            Channel[] grown = new Channel[count];
+            for (int i = 0; i < count; i++) {
+                if (channels != null && i < channels.length) {
+                    grown[i] = channels[i];
+                } else if (mChannelList.size() < MAX_CHANNELS) {
+                    grown[i] = new Channel(mChannelList.size(), session.getAddress(),
+                            session.getLabel(), type, i, new TimeSeriesStore());
+                    mChannelList.add(grown[i]);
+                }
+            }
+            channels = grown;
+            byType[type & 0xff] = channels;
+        }
+        return channels;
+    }
+}
@@ -0,0 +1,86 @@
+package se.kth.anderslm.microbituart;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring buffer of the latest samples of one channel, written by one thread and read
+ * by any number of threads without locks. The writer stores the sample, then publishes
+ * the new count (release). A reader copies the samples it wants, then reads the count
+ * again and discards the samples the writer may have overwritten meanwhile.
+ */
+class SampleRing {
+
+    private final long[] mTimes;
+    private final float[] mValues;
+    private final int mMask;
+    private final AtomicLong mCount = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    SampleRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mTimes = new long[size];
+        mValues = new float[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Add a sample, from the writer thread only.
+     */
+    void append(long timeNanos, float value) {
+        long count = mCount.get();
+        int i = (int) (count & mMask);
+        mTimes[i] = timeNanos;
+        mValues[i] = value;
+        mCount.lazySet(count + 1);
+    }
+
+    /**
+     * Copy the samples with time >= fromNanos to the end of times and values, i.e. the
+     * n samples returned are at [length - n, length), oldest first.
+     *
+     * @param times  receives the sample times, at least capacity long
+     * @param values receives the sample values, as long as times
+     * @return number of samples copied
+     */
+    int snapshot(long fromNanos, long[] times, float[] values) {
+        long end = mCount.get();
+        long start = Math.max(end - mTimes.length, 0);
+        // copy newest first, stop at fromNanos
+        int n = 0;
+        for (long c = end - 1; c >= start; c--) {
+            int i = (int) (c & mMask);
+            long t = mTimes[i];
+            if (t < fromNanos) {
+                break;
+            }
+            times[times.length - 1 - n] = t;
+            values[values.length - 1 - n] = mValues[i];
+            n++;
+        }
+        // samples older than this may have been overwritten while copying
+        long valid = mCount.get() - mTimes.length + 1;
+        long oldest = end - n;
+        if (oldest < valid) {
+            n -= (int) (valid - oldest);
+        }
+        return Math.max(n, 0);
+    }
+
+    /**
+     * Time of the latest sample, Long.MIN_VALUE if none. From the writer thread only.
+     */
+    long getLatestTime() {
+        long count = mCount.get();
+        return count == 0 ? Long.MIN_VALUE : mTimes[(int) ((count - 1) & mMask)];
+    }
+
+    int getCapacity() {
+        return mTimes.length;
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+}
@@ -0,0 +1,53 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * A device found when scanning, with its latest signal strength.
+ * Entries are owned by the DeviceScanner thread, the ui gets copies.
+ */
+class ScanEntry {
+
+    private final BluetoothDevice mDevice;
+    private final String mAddress;
+    private final String mName;
+    private int mRssi;
+    private long mLastSeen; // SystemClock.elapsedRealtime()
+
+    ScanEntry(BluetoothDevice device, String name, int rssi, long lastSeen) {
+        mDevice = device;
+        mAddress = device.getAddress();
+        mName = name;
+        mRssi = rssi;
+        mLastSeen = lastSeen;
+    }
+
+    ScanEntry copy() {
+        return new ScanEntry(mDevice, mName, mRssi, mLastSeen);
+    }
+
+    void update(int rssi, long lastSeen) {
+        mRssi = rssi;
+        mLastSeen = lastSeen;
+    }
+
+    BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    int getRssi() {
+        return mRssi;
+    }
+
+    long getLastSeen() {
+        return mLastSeen;
+    }
+}
@@ -0,0 +1,152 @@
+package se.kth.anderslm.microbituart;
+
+/**
+ * Compact binary encoding of sensor samples, an alternative to text over UART.
+ * Frames are sent with a one byte length prefix (see FrameDecoder.lengthPrefixed):
+ * <pre>
+ *     length (u8) | type (u8) | sequence (u8) | samples (int16 LE)* | crc (u8)
+ * </pre>
+ * where length counts the bytes after itself, and the crc is a CRC-8 (polynomial 0x07)
+ * over type, sequence and samples. Three accelerometer axes take 10 bytes, compared to
+ * about 15 for "-1023,512,-980\n". The sequence number is counted per type, and gaps
+ * of up to 127 are reported as lost frames. A larger gap, i.e. a sequence number at
+ * most 128 behind the expected one, is a reordered or duplicated frame, which is
+ * dropped. If the frame after it follows on, the sender restarted (or more than 127
+ * frames were lost) and the sequence is taken up from there, as in RTP.
+ * <p>
+ * Samples are decoded into a reused short array, nothing is allocated per frame.
+ */
+class SensorCodec implements SampleDecoder {
+
+    static final int TYPE_ACCELEROMETER = 1;
+    static final int TYPE_MAGNETOMETER = 2;
+    static final int TYPE_TEMPERATURE = 3;
+
+    static final int MAX_SAMPLES = 64;
+    static final int OVERHEAD = 3; // type, sequence and crc
+    static final int MAX_GAP = 127;
+
+    private static final byte[] CRC_TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+    private final SampleListener mListener;
+    private final short[] mSamples = new short[MAX_SAMPLES];
+    // next expected sequence number per type, -1 before the first frame
+    private final int[] mExpectedSequence = new int[256];
+    // the sequence number following a dropped frame per type, -1 if none
+    private final int[] mResyncSequence = new int[256];
+
+    private long mFrameCount = 0;
+    private long mLostCount = 0;
+    private long mStaleCount = 0;
+    private long mErrorCount = 0;
+
+    SensorCodec(SampleListener listener) {
+        mListener = listener;
+        reset();
+    }
+
+    /**
+     * Forget the sequence numbers, e.g. after a reconnect.
+     */
+    void reset() {
+        for (int i = 0; i < mExpectedSequence.length; i++) {
+            mExpectedSequence[i] = -1;
+            mResyncSequence[i] = -1;
+        }
+    }
+
+    /**
+     * Decode a frame, without the length prefix.
+     */
+    @Override
+    public boolean decode(byte[] buffer, int offset, int length) {
+        int count = (length - OVERHEAD) / 2;
+        if (length < OVERHEAD || (length - OVERHEAD) % 2 != 0 || count > MAX_SAMPLES
+                || crc(buffer, offset, length - 1) != buffer[offset + length - 1]) {
+            mErrorCount++;
+            Metrics.FRAMES_CORRUPT.increment();
+            return false;
+        }
+        int type = buffer[offset] & 0xff;
+        int sequence = buffer[offset + 1] & 0xff;
+        int expected = mExpectedSequence[type];
+        if (expected >= 0 && sequence != expected && sequence != mResyncSequence[type]) {
+            int gap = (sequence - expected) & 0xff;
+            if (gap > MAX_GAP) {
+                // behind the expected sequence number: reordered or duplicated
+                mStaleCount++;
+                mResyncSequence[type] = (sequence + 1) & 0xff;
+                return false;
+            }
+            mLostCount += gap;
+            Metrics.FRAMES_LOST.add(gap);
+        }
+        mExpectedSequence[type] = (sequence + 1) & 0xff;
+        mResyncSequence[type] = -1;
+
+        int i = offset + 2;
+        for (int n = 0; n < count; n++, i += 2) {
+            mSamples[n] = (short) ((buffer[i] & 0xff) | buffer[i + 1] << 8);
+        }
+        mFrameCount++;
+        mListener.onSamples(type, mSamples, count);
+        return true;
+    }
+
+    /**
+     * Encode a frame, including the length prefix, e.g. for a simulated Micro:bit.
+     *
+     * @return number of bytes written to out
+     */
+    static int encode(int type, int sequence, short[] samples, int count,
+                      byte[] out, int offset) {
+        int length = OVERHEAD + 2 * count;
+        out[offset] = (byte) length;
+        out[offset + 1] = (byte) type;
+        out[offset + 2] = (byte) sequence;
+        int i = offset + 3;
+        for (int n = 0; n < count; n++) {
+            out[i++] = (byte) samples[n];
+            out[i++] = (byte) (samples[n] >> 8);
+        }
+        out[i] = crc(out, offset + 1, length - 1);
+        return length + 1;
+    }
+
+    static byte crc(byte[] buffer, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC_TABLE[(crc ^ buffer[i]) & 0xff] & 0xff;
+        }
+        return (byte) crc;
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getLostCount() {
+        return mLostCount;
+    }
+
+    /**
+     * Reordered or duplicated frames, dropped.
+     */
+    long getStaleCount() {
+        return mStaleCount;
+    }
+
+    long getErrorCount() {
+        return mErrorCount;
+    }
+}
@@ -0,0 +1,217 @@
+package se.kth.anderslm.microbituart;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records all received UART packets to an append-only binary file, for later analysis
+ * or replay (see SessionReplayer). The BLE thread only copies the packet into
+ * a staging ring buffer in memory; a writer thread moves the data to a memory-mapped
+ * file and forces it to disk every FSYNC_PERIOD ms. If the writer falls behind and the
+ * staging buffer is full, packets are dropped (and counted) rather than blocking the
+ * callback thread.
+ * <p>
+ * File format, little-endian: a header (magic, version, start time in ms since the
+ * epoch, data format as DataFormat ordinal (u8), 3 reserved bytes), followed by records:
+ * payload length (u16), device address (6 bytes), receive time in ns since the start of
+ * the recording (i64), payload. One data format per recording; version 1 files have no
+ * data format, they are TEXT.
+ */
+class SessionRecorder {
+
+    static final int MAGIC = 0x5255424d; // "MBUR"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 20;
+    static final int HEADER_SIZE_V1 = 16;
+    static final int RECORD_HEADER_SIZE = 2 + 6 + 8;
+
+    private static final int STAGING_CAPACITY = 256 * 1024;
+    private static final long MAP_CHUNK = 8 * 1024 * 1024;
+    // period for forcing the mapped file to disk, 1000 ms
+    private static final long FSYNC_PERIOD = 1000;
+    // period for moving staged records to the file, 10 ms
+    private static final long DRAIN_PERIOD = 10;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mStartNanos;
+    private final DataFormat mDataFormat;
+
+    // staging ring buffer, guarded by mLock
+    private final Object mLock = new Object();
+    private final byte[] mRing = new byte[STAGING_CAPACITY];
+    private int mHead = 0;
+    private int mSize = 0;
+    private boolean mClosed = false;
+    private long mRecordCount = 0;
+    private long mDroppedCount = 0;
+
+    // owned by the writer thread
+    private final byte[] mDrain = new byte[STAGING_CAPACITY];
+    private MappedByteBuffer mMapped;
+    private long mMapStart = 0;
+    private volatile long mPosition = 0; // bytes written to the file
+
+    private final Thread mWriterThread = new Thread("SessionRecorder") {
+        @Override
+        public void run() {
+            writeLoop();
+        }
+    };
+
+    /**
+     * @param dataFormat of the recorded packets, for the replay to decode them
+     */
+    SessionRecorder(File file, DataFormat dataFormat) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mStartNanos = System.nanoTime();
+        mDataFormat = dataFormat;
+        map();
+        mMapped.putInt(MAGIC);
+        mMapped.putInt(VERSION);
+        mMapped.putLong(System.currentTimeMillis());
+        mMapped.put((byte) dataFormat.ordinal());
+        mMapped.put(new byte[3]);
+        mPosition = HEADER_SIZE;
+        mWriterThread.start();
+    }
+
+    /**
+     * Stage a packet for writing, never blocks on file io.
+     *
+     * @param address        device address, "AA:BB:CC:DD:EE:FF"
+     * @param timestampNanos receive time, System.nanoTime()
+     * @return false if the packet was dropped
+     */
+    boolean record(String address, long timestampNanos, byte[] data, int offset, int length) {
+        int recordSize = RECORD_HEADER_SIZE + length;
+        long time = timestampNanos - mStartNanos;
+        synchronized (mLock) {
+            if (mClosed || length > 0xffff || mSize + recordSize > mRing.length) {
+                mDroppedCount++;
+                return false;
+            }
+            put((byte) length);
+            put((byte) (length >> 8));
+            for (int i = 0; i < 6; i++) {
+                put((byte) (Character.digit(address.charAt(3 * i), 16) << 4
+                        | Character.digit(address.charAt(3 * i + 1), 16)));
+            }
+            for (int i = 0; i < 8; i++) {
+                put((byte) (time >> (8 * i)));
+            }
+            for (int i = 0; i < length; i++) {
+                put(data[offset + i]);
+            }
+            mRecordCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Write the remaining records, and close the file.
+     */
+    void close() throws IOException {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mMapped.force();
+        mMapped = null;
+        mChannel.truncate(mPosition);
+        mFile.close();
+    }
+
+    DataFormat getDataFormat() {
+        return mDataFormat;
+    }
+
+    long getRecordCount() {
+        synchronized (mLock) {
+            return mRecordCount;
+        }
+    }
+
+    long getDroppedCount() {
+        synchronized (mLock) {
+            return mDroppedCount;
+        }
+    }
+
+    long getBytesWritten() {
+        return mPosition;
+    }
+
+    // called with mLock held
+    private void put(byte b) {
+        mRing[(mHead + mSize) % mRing.length] = b;
+        mSize++;
+    }
+
+    private void writeLoop() {
+        long lastSync = System.currentTimeMillis();
+        boolean closed = false;
+        while (!closed) {
+            int count;
+            synchronized (mLock) {
+                if (mSize == 0 && !mClosed) {
+                    try {
+                        mLock.wait(DRAIN_PERIOD);
+                    } catch (InterruptedException e) {
+                        mClosed = true;
+                    }
+                }
+                closed = mClosed;
+                count = mSize;
+                int first = Math.min(count, mRing.length - mHead);
+                System.arraycopy(mRing, mHead, mDrain, 0, first);
+                System.arraycopy(mRing, 0, mDrain, first, count - first);
+                mHead = (mHead + count) % mRing.length;
+                mSize = 0;
+            }
+            try {
+                write(mDrain, count);
+                long now = System.currentTimeMillis();
+                if (now - lastSync >= FSYNC_PERIOD) {
+                    mMapped.force();
+                    lastSync = now;
+                }
+            } catch (IOException e) {
+                synchronized (mLock) {
+                    mClosed = true;
+                }
+                return;
+            }
+        }
+    }
+
+    private void write(byte[] data, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!mMapped.hasRemaining()) {
+                mMapped.force();
+                mMapStart += MAP_CHUNK;
+                map();
+            }
+            int n = Math.min(mMapped.remaining(), length - offset);
+            mMapped.put(data, offset, n);
+            offset += n;
+            mPosition += n;
+        }
+    }
+
+    private void map() throws IOException {
+        mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, mMapStart, MAP_CHUNK);
+        mMapped.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
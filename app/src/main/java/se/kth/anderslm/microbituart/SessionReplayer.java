@@ -0,0 +1,329 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays a file written by SessionRecorder. Every recorded device becomes a
+ * UartTransport, like a SimulatedMicrobit, that delivers the recorded packets as
+ * received ones; connected through ConnectionManager.connect(transport, format), the
+ * packets go through the same pipeline as live data: framing, calls and bulk acks,
+ * sample decoding, the history, the stream listeners and the frame stream.
+ * <p>
+ * The packets are delivered in the recorded order, with their original spacing divided
+ * by the speed, from when all recorded devices are ready. Writes to a replayed device
+ * complete, and are dropped.
+ * <p>
+ * Runs on the handler thread, the BLE thread; stop may be called from any thread.
+ */
+class SessionReplayer {
+
+    interface Listener {
+        /**
+         * All packets are delivered, or the replay was stopped. Called on the BLE thread.
+         */
+        void onReplayFinished(long packetCount);
+    }
+
+    // packets delivered per message when replaying as fast as possible
+    private static final int BATCH = 64;
+
+    private final double mSpeed;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final MappedByteBuffer mBuffer;
+    private final DataFormat mDataFormat;
+    // the recorded devices by address, as a 48 bit number, in order of appearance
+    private final LinkedHashMap<Long, Transport> mTransports = new LinkedHashMap<>();
+
+    // on the handler thread
+    private int mReadyCount = 0;
+    private boolean mStarted = false;
+    private long mFirstNanos = -1; // recorded time of the first packet
+    private long mStartMillis; // SystemClock.uptimeMillis() of the first packet
+    private volatile long mPacketCount = 0;
+    private volatile boolean mFinished = false;
+
+    /**
+     * Reads the header and finds the recorded devices.
+     *
+     * @param speed   1 for the original speed, 10 for ten times faster,
+     *                0 for as fast as possible
+     * @param handler the BLE thread, see ConnectionManager.getHandler()
+     */
+    SessionReplayer(File file, double speed, Handler handler, Listener listener)
+            throws IOException {
+        mSpeed = speed;
+        mHandler = handler;
+        mListener = listener;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // stays valid after the file is closed
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (mBuffer.remaining() < SessionRecorder.HEADER_SIZE_V1
+                || mBuffer.getInt() != SessionRecorder.MAGIC) {
+            throw new IOException("not a session recording: " + file);
+        }
+        int version = mBuffer.getInt();
+        mBuffer.getLong(); // start time
+        if (version == SessionRecorder.VERSION) {
+            int format = mBuffer.remaining() < 4 ? -1 : mBuffer.get() & 0xff;
+            if (format < 0 || format >= DataFormat.values().length) {
+                throw new IOException("unknown data format " + format + ": " + file);
+            }
+            mDataFormat = DataFormat.values()[format];
+            mBuffer.position(SessionRecorder.HEADER_SIZE);
+        } else if (version == 1) {
+            mDataFormat = DataFormat.TEXT;
+        } else {
+            throw new IOException("unknown version " + version + ": " + file);
+        }
+        int records = mBuffer.position();
+        while (mBuffer.remaining() >= SessionRecorder.RECORD_HEADER_SIZE) {
+            int length = mBuffer.getShort() & 0xffff;
+            long address = getAddress();
+            mBuffer.getLong(); // time
+            if (mBuffer.remaining() < length) {
+                break; // truncated record, e.g. the app was killed while recording
+            }
+            mBuffer.position(mBuffer.position() + length);
+            if (!mTransports.containsKey(address)) {
+                mTransports.put(address, new Transport(address));
+            }
+        }
+        mBuffer.position(records);
+    }
+
+    DataFormat getDataFormat() {
+        return mDataFormat;
+    }
+
+    /**
+     * Connect all recorded devices to manager, the replay starts when they are ready.
+     *
+     * @return the sessions
+     */
+    List<GattSession> connect(ConnectionManager manager) {
+        List<GattSession> sessions = new ArrayList<>();
+        for (Transport transport : mTransports.values()) {
+            sessions.add(manager.connect(transport, mDataFormat));
+        }
+        if (mTransports.isEmpty()) {
+            mHandler.post(mDeliverer); // nothing recorded, finishes
+        }
+        return sessions;
+    }
+
+    /**
+     * Stop delivering packets, the listener is called.
+     */
+    void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        });
+    }
+
+    long getPacketCount() {
+        return mPacketCount;
+    }
+
+    boolean isFinished() {
+        return mFinished;
+    }
+
+    private long getAddress() {
+        long address = 0;
+        for (int i = 0; i < 6; i++) {
+            address = address << 8 | (mBuffer.get() & 0xff);
+        }
+        return address;
+    }
+
+    // on the handler thread
+    private void onTransportReady() {
+        mReadyCount++;
+        if (!mStarted && mReadyCount == mTransports.size()) {
+            mStarted = true;
+            mHandler.post(mDeliverer);
+        }
+    }
+
+    // delivers the packets that are due, and schedules the next one
+    private final Runnable mDeliverer = new Runnable() {
+        @Override
+        public void run() {
+            int delivered = 0;
+            while (!mFinished && mBuffer.remaining() >= SessionRecorder.RECORD_HEADER_SIZE) {
+                int start = mBuffer.position();
+                int length = mBuffer.getShort() & 0xffff;
+                long address = getAddress();
+                long timeNanos = mBuffer.getLong();
+                if (mBuffer.remaining() < length) {
+                    break;
+                }
+                if (mFirstNanos < 0) {
+                    mFirstNanos = timeNanos;
+                    mStartMillis = SystemClock.uptimeMillis();
+                }
+                if (mSpeed > 0) {
+                    long due = mStartMillis
+                            + (long) ((timeNanos - mFirstNanos) / 1e6 / mSpeed);
+                    if (due > SystemClock.uptimeMillis()) {
+                        mBuffer.position(start);
+                        mHandler.postAtTime(this, due);
+                        return;
+                    }
+                } else if (delivered == BATCH) {
+                    // let the BLE thread run the sessions in between
+                    mBuffer.position(start);
+                    mHandler.post(this);
+                    return;
+                }
+                byte[] packet = new byte[length];
+                mBuffer.get(packet);
+                mTransports.get(address).deliver(packet);
+                mPacketCount++;
+                delivered++;
+            }
+            finish();
+        }
+    };
+
+    private void finish() {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        mHandler.removeCallbacks(mDeliverer);
+        if (Metrics.LOG) {
+            Log.i("SessionReplayer", "replayed " + mPacketCount + " packets");
+        }
+        mListener.onReplayFinished(mPacketCount);
+    }
+
+    /**
+     * A recorded device.
+     */
+    private class Transport implements UartTransport, UartWriter.Sink {
+
+        private final String mAddress;
+        private final LinkStats mLinkStats = new LinkStats();
+        private final UartWriter mUartWriter = new UartWriter(UartWriter.DEFAULT_CAPACITY);
+        // on the handler thread
+        private UartTransport.Listener mTransportListener = null;
+        private boolean mConnected = false;
+
+        Transport(long address) {
+            mAddress = String.format(Locale.US, "%02X:%02X:%02X:%02X:%02X:%02X",
+                    address >> 40 & 0xff, address >> 32 & 0xff, address >> 24 & 0xff,
+                    address >> 16 & 0xff, address >> 8 & 0xff, address & 0xff);
+        }
+
+        void deliver(byte[] packet) {
+            if (mConnected) {
+                mTransportListener.onPacket(System.nanoTime(), packet);
+            }
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public String getName() {
+            return "Replayed " + mAddress;
+        }
+
+        @Override
+        public LinkMode getLinkMode() {
+            return LinkMode.HIGH_THROUGHPUT;
+        }
+
+        @Override
+        public LinkStats getLinkStats() {
+            return mLinkStats;
+        }
+
+        @Override
+        public UartWriter getUartWriter() {
+            return mUartWriter;
+        }
+
+        @Override
+        public void connect(final UartTransport.Listener listener) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mConnected) {
+                        return;
+                    }
+                    mTransportListener = listener;
+                    mConnected = true;
+                    listener.onStateChanged(GattSession.State.CONNECTING);
+                    mUartWriter.attach(Transport.this, mLinkStats.getMaxPayload());
+                    listener.onStateChanged(GattSession.State.READY);
+                    onTransportReady();
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mConnected = false;
+                    mUartWriter.detach();
+                    mUartWriter.clear();
+                    if (mTransportListener != null) {
+                        mTransportListener.onStateChanged(GattSession.State.DISCONNECTED);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public boolean supportsPriority() {
+            return false;
+        }
+
+        @Override
+        public void requestPriority(int priority) {
+        }
+
+        /**
+         * A write from the phone, dropped: completed later, as the UartWriter expects.
+         */
+        @Override
+        public void write(byte[] chunk) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mUartWriter.onWriteComplete(Transport.this, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Micro:bit in software, for running and measuring the app without hardware: a
+ * UartTransport that streams accelerometer samples, answers calls (see UartRpc) and
+ * receives bulk transfers (see BulkTransfer), over a simulated link.
+ * <p>
+ * The device and the link are a MicrobitModel, this class runs its connection events on
+ * the handler, every interval (see Config) plus or minus a random jitter. The model
+ * keeps its own simulated time and seeded Randoms, so a run with the same config makes
+ * the same decisions and sends the same data; only when the packets arrive follows the
+ * handler.
+ * <p>
+ * Writes from the phone are taken up to the number the model accepts per event: with
+ * notifications they complete at once, as writes without response once the Micro:bit
+ * has buffered them, with indications in the event that delivers them.
+ * <p>
+ * Samples are sent as text lines "x,y,z", or "@ms x,y,z" with timestamps, or as binary
+ * SensorCodec frames. A call "#id ping" is answered with the Micro:bit clock, other calls
+ * are echoed.
+ * <p>
+ * Runs on the handler thread, the BLE thread; connect, close and dropLink may be called
+ * from any thread.
+ */
+class SimulatedMicrobit implements UartTransport, UartWriter.Sink {
+
+    /**
+     * Parameters of the simulated device and link.
+     */
+    static class Config {
+        DataFormat dataFormat = DataFormat.TEXT;
+        LinkMode linkMode = LinkMode.HIGH_THROUGHPUT;
+        // negotiated ATT MTU in high-throughput mode, the default one otherwise
+        int mtu = 247;
+        // connection interval at high priority, and its jitter, ms
+        int intervalMillis = 15;
+        int jitterMillis = 2;
+        // samples per second
+        int rate = 50;
+        // probability of losing a packet or write, when notifying
+        double loss = 0;
+        // notifications in high-throughput mode, indications otherwise
+        boolean notify = true;
+        // "@ms x,y,z" lines, for ClockSync
+        boolean timestamps = false;
+        // link decisions (jitter, loss), and sample noise
+        long seed = 1;
+        long noiseSeed = 2;
+    }
+
+    // delay from connect to ready, and before reconnecting after a link loss, 500 ms
+    private static final long CONNECT_DELAY = 500;
+
+    private static final AtomicInteger theCount = new AtomicInteger();
+
+    private final Config mConfig;
+    private final Handler mHandler;
+    private final String mAddress;
+    private final String mName;
+    private final MicrobitModel mModel;
+
+    private final LinkStats mLinkStats = new LinkStats();
+    private final UartWriter mUartWriter = new UartWriter(UartWriter.DEFAULT_CAPACITY);
+
+    private volatile boolean mClosed = true;
+    // incremented on each connect and link loss, writes from before are dropped
+    private volatile int mGeneration = 0;
+
+    // on the handler thread
+    private Listener mListener = null;
+    private boolean mConnected = false;
+    private byte[] mWrite = null; // waiting for room in the next event
+    private boolean mWriteInEvent = false; // indicated, completed by the event
+
+    SimulatedMicrobit(Config config, Handler handler) {
+        int n = theCount.incrementAndGet();
+        mConfig = config;
+        mHandler = handler;
+        mAddress = String.format(Locale.US, "5E:11:00:00:00:%02X", n & 0xff);
+        mName = "Simulated Micro:bit " + n;
+        mModel = new MicrobitModel(config, mAddress);
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public LinkMode getLinkMode() {
+        return mConfig.linkMode;
+    }
+
+    @Override
+    public LinkStats getLinkStats() {
+        return mLinkStats;
+    }
+
+    @Override
+    public UartWriter getUartWriter() {
+        return mUartWriter;
+    }
+
+    @Override
+    public boolean supportsPriority() {
+        return mConfig.linkMode == LinkMode.HIGH_THROUGHPUT;
+    }
+
+    /**
+     * Longer intervals for lower priorities, roughly as Android: BALANCED three times
+     * and LOW_POWER eight times the interval at HIGH.
+     */
+    @Override
+    public void requestPriority(final int priority) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                switch (priority) {
+                    case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                        mModel.setIntervalMillis(mConfig.intervalMillis);
+                        break;
+                    case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                        mModel.setIntervalMillis(8 * mConfig.intervalMillis);
+                        break;
+                    default:
+                        mModel.setIntervalMillis(3 * mConfig.intervalMillis);
+                        break;
+                }
+            }
+        });
+    }
+
+    /**
+     * Samples not sent because the Micro:bit buffer was full.
+     */
+    long getDroppedSampleCount() {
+        return mModel.getDroppedSampleCount();
+    }
+
+    @Override
+    public void connect(final Listener listener) {
+        mClosed = false;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                mListener = listener;
+                startConnect();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
+                mUartWriter.clear();
+                if (mListener != null) {
+                    mListener.onStateChanged(GattSession.State.DISCONNECTED);
+                }
+            }
+        });
+    }
+
+    /**
+     * Simulate a link loss, the transport reconnects as after a real one.
+     */
+    void dropLink() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed || !mConnected) {
+                    return;
+                }
+                disconnect();
+                mListener.onStateChanged(GattSession.State.DISCONNECTED);
+                if (Metrics.LOG) {
+                    Log.i("SimulatedMicrobit", mAddress + ": link lost");
+                }
+                mHandler.postDelayed(mReconnect, CONNECT_DELAY);
+            }
+        });
+    }
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            if (!mClosed) {
+                Metrics.RECONNECTS.increment();
+                mModel.advance(CONNECT_DELAY);
+                startConnect();
+            }
+        }
+    };
+
+    // on the handler thread
+    private void startConnect() {
+        mGeneration++;
+        mLinkStats.reset();
+        mListener.onStateChanged(GattSession.State.CONNECTING);
+        mHandler.postDelayed(mReady, CONNECT_DELAY);
+    }
+
+    private final Runnable mReady = new Runnable() {
+        @Override
+        public void run() {
+            if (mClosed) {
+                return;
+            }
+            if (mConfig.linkMode == LinkMode.HIGH_THROUGHPUT) {
+                mLinkStats.setMtu(mConfig.mtu);
+            }
+            mModel.advance(CONNECT_DELAY);
+            mModel.linkUp(mLinkStats.getMaxPayload());
+            mConnected = true;
+            mUartWriter.attach(SimulatedMicrobit.this, mLinkStats.getMaxPayload());
+            mListener.onStateChanged(GattSession.State.READY);
+            mHandler.postDelayed(mConnectionEvent, mModel.nextEventDelay());
+        }
+    };
+
+    // on the handler thread
+    private void disconnect() {
+        mGeneration++;
+        mConnected = false;
+        mHandler.removeCallbacks(mReady);
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.removeCallbacks(mConnectionEvent);
+        mUartWriter.detach();
+        mModel.linkDown();
+        mWrite = null;
+        mWriteInEvent = false;
+    }
+
+    /**
+     * A chunk from the UartWriter, from any thread.
+     */
+    @Override
+    public void write(byte[] chunk) {
+        final byte[] copy = chunk.clone();
+        final int generation = mGeneration;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration && mConnected) {
+                    mWrite = copy;
+                    takeWrite();
+                }
+            }
+        });
+    }
+
+    // on the handler thread, hands the waiting write to the model if it has room
+    private void takeWrite() {
+        if (mWrite == null || !mModel.acceptsWrite()) {
+            return;
+        }
+        mModel.write(mWrite);
+        mWrite = null;
+        if (mModel.isNotifying()) {
+            mUartWriter.onWriteComplete(this, BluetoothGatt.GATT_SUCCESS);
+        } else {
+            mWriteInEvent = true;
+        }
+    }
+
+    private final MicrobitModel.PacketListener mPacketListener =
+            new MicrobitModel.PacketListener() {
+                @Override
+                public void onPacket(byte[] packet) {
+                    mListener.onPacket(System.nanoTime(), packet);
+                }
+            };
+
+    private final Runnable mConnectionEvent = new Runnable() {
+        @Override
+        public void run() {
+            if (!mConnected) {
+                return;
+            }
+            mModel.connectionEvent(mPacketListener);
+            if (mWriteInEvent) {
+                mWriteInEvent = false;
+                mUartWriter.onWriteComplete(SimulatedMicrobit.this, BluetoothGatt.GATT_SUCCESS);
+            }
+            takeWrite();
+            mHandler.postDelayed(this, mModel.nextEventDelay());
+        }
+    };
+}
@@ -0,0 +1,52 @@
+package se.kth.anderslm.microbituart;
+
+/**
+ * Parses integers from a line of text, e.g. "x:12 y:-980 z:40" or "12,-980,40".
+ * Any non-digit characters separate the numbers; values are clamped to the int16 range.
+ * Nothing is allocated when parsing.
+ */
+class TextSampleCodec implements SampleDecoder {
+
+    static final int TYPE_TEXT = 0;
+
+    private final SampleListener mListener;
+    private final short[] mSamples = new short[SensorCodec.MAX_SAMPLES];
+
+    TextSampleCodec(SampleListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public boolean decode(byte[] buffer, int offset, int length) {
+        int count = 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end && count < mSamples.length) {
+            boolean negative = false;
+            if (buffer[i] == '-' && i + 1 < end && isDigit(buffer[i + 1])) {
+                negative = true;
+                i++;
+            }
+            if (!isDigit(buffer[i])) {
+                i++;
+                continue;
+            }
+            int value = 0;
+            while (i < end && isDigit(buffer[i])) {
+                value = Math.min(value * 10 + buffer[i] - '0', 1 << 16);
+                i++;
+            }
+            value = negative ? -value : value;
+            mSamples[count++] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+        if (count == 0) {
+            return false;
+        }
+        mListener.onSamples(TYPE_TEXT, mSamples, count);
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
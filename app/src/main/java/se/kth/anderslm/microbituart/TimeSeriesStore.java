@@ -0,0 +1,241 @@
+package se.kth.anderslm.microbituart;
+
+/**
+ * Fixed memory history of one numeric channel, e.g. the x axis of an accelerometer,
+ * for sessions of any length. Samples are kept in parallel primitive ring buffers at
+ * several resolutions: level 0 holds the latest samples as received, level k holds
+ * min/max aggregates of FACTOR^k samples. An entry takes 16 bytes (time, min, max), so
+ * the defaults, 4096 entries per level and 4 levels, take 4 * 4096 * 16 bytes = 256 kB.
+ * 100 Hz data is then kept at full resolution for 41 s, and as min/max of 16, 256 and
+ * 4096 samples for 11 minutes, 2.9 hours and 46 hours.
+ * <p>
+ * A query for a time window uses the finest level that covers the window without
+ * reading more than FACTOR entries per point returned, and reduces the entries to
+ * min/max pairs per bucket. The cost of a query depends on the number of points asked
+ * for, not on the length of the session. Coarse levels lag behind by less than one
+ * aggregate, i.e. less than one bucket of the window.
+ * <p>
+ * The store is synchronized, one thread may append while others query.
+ */
+class TimeSeriesStore {
+
+    static final int DEFAULT_CAPACITY = 4096;
+    static final int DEFAULT_LEVELS = 4;
+    static final int FACTOR = 16;
+
+    /**
+     * One resolution: a ring of (time of first sample, min, max).
+     */
+    private static final class Level {
+        final long[] time;
+        final float[] min;
+        final float[] max;
+        final int mask;
+        long count = 0; // entries ever added, the newest is at (count - 1) & mask
+
+        // aggregate being built from the level below
+        int pendingSamples = 0;
+        long pendingTime;
+        float pendingMin;
+        float pendingMax;
+
+        Level(int capacity) {
+            time = new long[capacity];
+            min = new float[capacity];
+            max = new float[capacity];
+            mask = capacity - 1;
+        }
+
+        int size() {
+            return (int) Math.min(count, time.length);
+        }
+
+        // index of entry i, 0 is the oldest entry kept
+        int index(int i) {
+            return (int) ((count - size() + i) & mask);
+        }
+
+        void add(long t, float lo, float hi) {
+            int i = (int) (count & mask);
+            time[i] = t;
+            min[i] = lo;
+            max[i] = hi;
+            count++;
+        }
+
+        /**
+         * @return number of entries with time before t, by binary search
+         */
+        int countBefore(long t) {
+            int lo = 0;
+            int hi = size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (time[index(mid)] < t) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private final Level[] mLevels;
+    private long mSampleCount = 0;
+
+    TimeSeriesStore() {
+        this(DEFAULT_CAPACITY, DEFAULT_LEVELS);
+    }
+
+    /**
+     * @param capacity entries per level, rounded up to a power of two
+     * @param levels   number of resolutions, at least 1
+     */
+    TimeSeriesStore(int capacity, int levels) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2 * FACTOR) - 1) << 1;
+        mLevels = new Level[Math.max(levels, 1)];
+        for (int i = 0; i < mLevels.length; i++) {
+            mLevels[i] = new Level(size);
+        }
+    }
+
+    /**
+     * Add a sample, times must not decrease.
+     */
+    synchronized void append(long timeNanos, float value) {
+        mSampleCount++;
+        mLevels[0].add(timeNanos, value, value);
+        long t = timeNanos;
+        float lo = value;
+        float hi = value;
+        for (int k = 1; k < mLevels.length; k++) {
+            Level level = mLevels[k];
+            if (level.pendingSamples == 0) {
+                level.pendingTime = t;
+                level.pendingMin = lo;
+                level.pendingMax = hi;
+            } else {
+                level.pendingMin = Math.min(level.pendingMin, lo);
+                level.pendingMax = Math.max(level.pendingMax, hi);
+            }
+            if (++level.pendingSamples < FACTOR) {
+                return;
+            }
+            level.pendingSamples = 0;
+            level.add(level.pendingTime, level.pendingMin, level.pendingMax);
+            t = level.pendingTime;
+            lo = level.pendingMin;
+            hi = level.pendingMax;
+        }
+    }
+
+    synchronized void clear() {
+        mSampleCount = 0;
+        for (Level level : mLevels) {
+            level.count = 0;
+            level.pendingSamples = 0;
+        }
+    }
+
+    /**
+     * Downsampled samples in [fromNanos, toNanos). Each bucket of the window gives its
+     * min and max, in time order, so peaks are never lost by the downsampling.
+     *
+     * @param maxPoints at most this many points are returned, an even number >= 2
+     * @param times     receives the sample times, at least maxPoints long
+     * @param values    receives the sample values, at least maxPoints long
+     * @return number of points written to times and values
+     */
+    synchronized int query(long fromNanos, long toNanos, int maxPoints,
+                           long[] times, float[] values) {
+        int buckets = Math.max(maxPoints / 2, 1);
+        // the finest level that holds fromNanos and has at most FACTOR entries per bucket,
+        // else the coarsest level
+        Level level = mLevels[0];
+        int first = 0;
+        int last = 0;
+        for (int k = 0; k < mLevels.length; k++) {
+            level = mLevels[k];
+            first = level.countBefore(fromNanos);
+            last = level.countBefore(toNanos);
+            boolean covers = level.count == level.size()
+                    || level.time[level.index(0)] <= fromNanos;
+            if (covers && last - first <= buckets * FACTOR) {
+                break;
+            }
+        }
+        return reduce(level, first, last, buckets, times, values);
+    }
+
+    private static int reduce(Level level, int first, int last, int buckets,
+                              long[] times, float[] values) {
+        int entries = last - first;
+        if (entries <= 0) {
+            return 0;
+        }
+        int n = 0;
+        if (entries <= buckets) {
+            // sparse enough, no reduction needed
+            for (int i = first; i < last; i++) {
+                int j = level.index(i);
+                times[n] = level.time[j];
+                values[n++] = level.min[j];
+                if (level.max[j] != level.min[j] && n < 2 * buckets) {
+                    times[n] = level.time[j];
+                    values[n++] = level.max[j];
+                }
+            }
+            return n;
+        }
+        for (int b = 0; b < buckets; b++) {
+            int start = first + (int) ((long) entries * b / buckets);
+            int end = first + (int) ((long) entries * (b + 1) / buckets);
+            if (start == end) {
+                continue;
+            }
+            int minIndex = level.index(start);
+            int maxIndex = minIndex;
+            for (int i = start + 1; i < end; i++) {
+                int j = level.index(i);
+                if (level.min[j] < level.min[minIndex]) {
+                    minIndex = j;
+                }
+                if (level.max[j] > level.max[maxIndex]) {
+                    maxIndex = j;
+                }
+            }
+            boolean minFirst = level.time[minIndex] <= level.time[maxIndex];
+            int a = minFirst ? minIndex : maxIndex;
+            int c = minFirst ? maxIndex : minIndex;
+            times[n] = level.time[a];
+            values[n++] = minFirst ? level.min[a] : level.max[a];
+            times[n] = level.time[c];
+            values[n++] = minFirst ? level.max[c] : level.min[c];
+        }
+        return n;
+    }
+
+    synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Time of the oldest sample still covered, by the coarsest level.
+     */
+    synchronized long getOldestTime() {
+        for (int k = mLevels.length - 1; k >= 0; k--) {
+            if (mLevels[k].size() > 0) {
+                return mLevels[k].time[mLevels[k].index(0)];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Memory used by the ring buffers, in bytes.
+     */
+    int getMemoryBytes() {
+        return mLevels.length * mLevels[0].time.length * (8 + 4 + 4);
+    }
+}
@@ -0,0 +1,358 @@
+package se.kth.anderslm.microbituart;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Local TCP server forwarding the merged UART stream to desktop tools, e.g. through
+ * "adb forward tcp:7777 tcp:7777". One selector thread serves all clients; every frame
+ * is copied to each client's bounded output buffer, and a client whose buffer is full,
+ * i.e. that does not keep up, is disconnected. Clients may also send data to the
+ * Micro:bits (the UART RX characteristic).
+ * <p>
+ * Framing, per server:
+ * <ul>
+ * <li>FRAMING_LINE: to clients "AA:BB:CC:DD:EE:FF frame\n"; from clients, each line
+ * (including '\n') is sent to all devices. Text only: frames of BINARY sessions may
+ * hold '\n' and are not forwarded, but counted, see getRejectedFrameCount</li>
+ * <li>FRAMING_LENGTH: both ways length (u16 LE, of what follows), device address
+ * (6 bytes), payload; from clients the address 00:00:00:00:00:00 means all devices</li>
+ * </ul>
+ * Frames come from a FrameStream subscription (BUFFER) executed on the selector thread,
+ * so a slow bridge drops frames there instead of stalling the GATT callbacks.
+ */
+class UartBridge {
+
+    static final int DEFAULT_PORT = 7777;
+    static final int FRAMING_LINE = 0;
+    static final int FRAMING_LENGTH = 1;
+
+    // output buffer per client, a client that falls this far behind is disconnected
+    private static final int CLIENT_BUFFER = 64 * 1024;
+    private static final int INPUT_BUFFER = 4 * 1024;
+    // frames queued between the stream and the selector thread
+    private static final int STREAM_CAPACITY = 4096;
+    private static final int ADDRESS_SIZE = 6;
+
+    private static final class Client {
+        final SocketChannel channel;
+        final ByteBuffer out = ByteBuffer.allocate(CLIENT_BUFFER);
+        final ByteBuffer in = ByteBuffer.allocate(INPUT_BUFFER);
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            in.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private final ConnectionManager mConnectionManager;
+    private final int mFraming;
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+    private final FrameStream.Subscription mSubscription;
+    private final Thread mThread;
+    private volatile boolean mStopped = false;
+
+    // statistics
+    private volatile int mClientCount = 0;
+    private volatile long mStalledCount = 0;
+    private volatile long mRejectedCount = 0;
+
+    // runs tasks, e.g. frame deliveries, on the selector thread
+    private final Executor mSelectorExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            mTasks.add(task);
+            if (mWakeupPending.compareAndSet(false, true)) {
+                mSelector.wakeup();
+            }
+        }
+    };
+
+    /**
+     * Start serving on the loopback interface.
+     */
+    UartBridge(ConnectionManager connectionManager, int port, int framing) throws IOException {
+        mConnectionManager = connectionManager;
+        mFraming = framing;
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(null), port));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+
+        mSubscription = connectionManager.getFrameStream().subscribe(mSubscriber,
+                FrameStream.Strategy.BUFFER, STREAM_CAPACITY, 0, mSelectorExecutor);
+        mThread = new Thread("UartBridge") {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        };
+        mThread.start();
+    }
+
+    void close() {
+        mStopped = true;
+        mSubscription.cancel();
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    int getClientCount() {
+        return mClientCount;
+    }
+
+    /**
+     * Clients disconnected for not keeping up.
+     */
+    long getStalledCount() {
+        return mStalledCount;
+    }
+
+    /**
+     * Frames of BINARY sessions, not forwarded with FRAMING_LINE.
+     */
+    long getRejectedFrameCount() {
+        return mRejectedCount;
+    }
+
+    long getDroppedFrameCount() {
+        return mSubscription.getDroppedCount();
+    }
+
+    private final FrameStream.Subscriber mSubscriber = new FrameStream.Subscriber() {
+        @Override
+        public void onSubscribe(FrameStream.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(FrameStream.Frame frame) {
+            fanOut(frame);
+        }
+    };
+
+    private void selectLoop() {
+        try {
+            while (!mStopped) {
+                mSelector.select();
+                mWakeupPending.set(false);
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Client client = (Client) key.attachment();
+                        if (key.isReadable()) {
+                            read(key, client);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key, client);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (Metrics.LOG) {
+                Log.i("UartBridge", "stopped: " + e);
+            }
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(mSelector, SelectionKey.OP_READ, new Client(channel));
+        mClientCount++;
+        if (Metrics.LOG) {
+            Log.i("UartBridge", "client connected: " + channel.socket().getRemoteSocketAddress());
+        }
+    }
+
+    // on the selector thread, copy the frame to all clients
+    private void fanOut(FrameStream.Frame frame) {
+        if (mFraming == FRAMING_LINE && frame.session.getDataFormat() == DataFormat.BINARY) {
+            mRejectedCount++;
+            return;
+        }
+        String address = frame.session.getAddress();
+        int size = mFraming == FRAMING_LINE
+                ? address.length() + 1 + frame.data.length + 1
+                : 2 + ADDRESS_SIZE + frame.data.length;
+        for (SelectionKey key : mSelector.keys()) {
+            if (!(key.attachment() instanceof Client) || !key.isValid()) {
+                continue;
+            }
+            Client client = (Client) key.attachment();
+            ByteBuffer out = client.out;
+            if (out.remaining() < size) {
+                // the client does not keep up
+                mStalledCount++;
+                Metrics.BRIDGE_CLIENTS_STALLED.increment();
+                if (Metrics.LOG) {
+                    Log.i("UartBridge", "client stalled, disconnecting");
+                }
+                closeQuietly(key);
+                continue;
+            }
+            if (mFraming == FRAMING_LINE) {
+                for (int i = 0; i < address.length(); i++) {
+                    out.put((byte) address.charAt(i));
+                }
+                out.put((byte) ' ');
+                out.put(frame.data);
+                out.put((byte) '\n');
+            } else {
+                out.putShort((short) (ADDRESS_SIZE + frame.data.length));
+                for (int i = 0; i < ADDRESS_SIZE; i++) {
+                    out.put((byte) (Character.digit(address.charAt(3 * i), 16) << 4
+                            | Character.digit(address.charAt(3 * i + 1), 16)));
+                }
+                out.put(frame.data);
+            }
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        Metrics.BRIDGE_FAN_OUT.recordNanos(System.nanoTime() - frame.timestampNanos);
+    }
+
+    private void write(SelectionKey key, Client client) {
+        ByteBuffer out = client.out;
+        out.flip();
+        try {
+            int n = client.channel.write(out);
+            Metrics.BRIDGE_BYTES_OUT.add(n);
+        } catch (IOException e) {
+            closeQuietly(key);
+            return;
+        } finally {
+            out.compact();
+        }
+        if (out.position() == 0) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void read(SelectionKey key, Client client) {
+        ByteBuffer in = client.in;
+        try {
+            if (client.channel.read(in) < 0) {
+                closeQuietly(key);
+                return;
+            }
+        } catch (IOException e) {
+            closeQuietly(key);
+            return;
+        }
+        in.flip();
+        if (mFraming == FRAMING_LINE) {
+            readLines(in);
+        } else {
+            readLengthPrefixed(in);
+        }
+        if (in.position() == 0 && in.limit() == in.capacity()) {
+            // a line or frame longer than the buffer, drop it
+            in.clear();
+        } else {
+            in.compact();
+        }
+    }
+
+    private void readLines(ByteBuffer in) {
+        for (int i = in.position(); i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                byte[] line = new byte[i + 1 - in.position()];
+                in.get(line);
+                mConnectionManager.broadcast(line);
+            }
+        }
+    }
+
+    private void readLengthPrefixed(ByteBuffer in) {
+        while (in.remaining() >= 2) {
+            int length = in.getShort(in.position()) & 0xffff;
+            if (length < ADDRESS_SIZE || length > in.capacity() - 2) {
+                in.position(in.limit()); // out of sync, drop what we have
+                return;
+            }
+            if (in.remaining() < 2 + length) {
+                return;
+            }
+            in.getShort();
+            long address = 0;
+            for (int i = 0; i < ADDRESS_SIZE; i++) {
+                address = address << 8 | (in.get() & 0xff);
+            }
+            byte[] data = new byte[length - ADDRESS_SIZE];
+            in.get(data);
+            if (address == 0) {
+                mConnectionManager.broadcast(data);
+            } else {
+                mConnectionManager.send(String.format(Locale.US, "%02X:%02X:%02X:%02X:%02X:%02X",
+                        address >> 40 & 0xff, address >> 32 & 0xff, address >> 24 & 0xff,
+                        address >> 16 & 0xff, address >> 8 & 0xff, address & 0xff), data);
+            }
+        }
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        boolean wasValid = key.isValid();
+        key.cancel();
+        if (wasValid && key.attachment() instanceof Client) {
+            mClientCount--;
+        }
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package se.kth.anderslm.microbituart;
+
+import android.os.Handler;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Command/response calls to one Micro:bit over the UART, with several calls in flight.
+ * A call is sent as a line "#id command\n", and the Micro:bit answers "#id reply\n",
+ * in any order; the id correlates the reply with its call. Lines that are not replies
+ * to a pending call are left to the stream (onFrame returns false).
+ * <p>
+ * Each call has a timeout, and gives a Future for the reply, and optionally a callback.
+ * Text data format only, see DataFormat.
+ */
+class UartRpc {
+
+    static final long DEFAULT_TIMEOUT = 2000; // ms
+    static final int MAX_PENDING = 32;
+    private static final int MAX_ID = 9999;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    interface Callback {
+        /**
+         * Called on the BLE thread, or on the calling thread if the call could not
+         * be sent.
+         *
+         * @param reply the reply, null if the call failed
+         * @param error the failure, null if there is a reply
+         */
+        void onResult(Call call, String reply, Exception error);
+    }
+
+    /**
+     * A call in flight, or completed.
+     */
+    final class Call implements Future<String>, Runnable {
+        final int id;
+        final String command;
+        private final Callback mCallback;
+        private final long mStartNanos = System.nanoTime();
+        // guarded by this
+        private boolean mDone = false;
+        private String mReply = null;
+        private Exception mError = null;
+        private long mLatencyNanos = 0;
+
+        private Call(int id, String command, Callback callback) {
+            this.id = id;
+            this.command = command;
+            mCallback = callback;
+        }
+
+        /**
+         * Time from call to reply.
+         */
+        synchronized long getLatencyNanos() {
+            return mLatencyNanos;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return fail(this, new IOException("cancelled"));
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mError != null && "cancelled".equals(mError.getMessage());
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        @Override
+        public synchronized String get() throws InterruptedException, ExecutionException {
+            while (!mDone) {
+                wait();
+            }
+            return result();
+        }
+
+        @Override
+        public synchronized String get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!mDone) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return result();
+        }
+
+        // the timeout
+        @Override
+        public void run() {
+            Metrics.RPC_TIMEOUTS.increment();
+            fail(this, new TimeoutException("no reply to #" + id));
+        }
+
+        // called with the lock held
+        private String result() throws ExecutionException {
+            if (mError != null) {
+                throw new ExecutionException(mError);
+            }
+            return mReply;
+        }
+
+        // @return false if already done
+        private boolean complete(String reply, Exception error) {
+            synchronized (this) {
+                if (mDone) {
+                    return false;
+                }
+                mDone = true;
+                mReply = reply;
+                mError = error;
+                mLatencyNanos = System.nanoTime() - mStartNanos;
+                notifyAll();
+            }
+            if (mCallback != null) {
+                mCallback.onResult(this, reply, error);
+            }
+            return true;
+        }
+    }
+
+    private final GattSession mSession;
+    private final Handler mHandler;
+    // calls by id, guarded by this
+    private final HashMap<Integer, Call> mPending = new HashMap<>();
+    private int mNextId = 1;
+    private long mCallCount = 0;
+
+    /**
+     * @param handler used for timeouts
+     */
+    UartRpc(GattSession session, Handler handler) {
+        mSession = session;
+        mHandler = handler;
+    }
+
+    Call call(String command, Callback callback) {
+        return call(command, DEFAULT_TIMEOUT, callback);
+    }
+
+    /**
+     * Send a command, without waiting for the reply.
+     *
+     * @param command   one line, without '\n'
+     * @param timeoutMs fail the call if there is no reply in this time
+     * @param callback  may be null
+     * @return the call, failed at once if it could not be sent
+     */
+    Call call(String command, long timeoutMs, Callback callback) {
+        Call call;
+        boolean full;
+        synchronized (this) {
+            call = new Call(mNextId, command, callback);
+            full = mPending.size() >= MAX_PENDING;
+            if (!full) {
+                mNextId = mNextId % MAX_ID + 1;
+                mPending.put(call.id, call);
+                mCallCount++;
+            }
+        }
+        if (full) {
+            call.complete(null, new IOException("too many calls in flight"));
+            return call;
+        }
+        mHandler.postDelayed(call, timeoutMs);
+        byte[] line = ("#" + call.id + " " + command + "\n").getBytes(UTF8);
+        if (mSession.getState() != GattSession.State.READY || !mSession.offer(line)) {
+            fail(call, new IOException("not sent, " + mSession.getState()));
+        }
+        return call;
+    }
+
+    /**
+     * Called for each frame received; completes the call if the frame is a reply.
+     *
+     * @return true if the frame was a reply, and consumed
+     */
+    boolean onFrame(byte[] buffer, int offset, int length) {
+        if (length < 2 || buffer[offset] != '#') {
+            return false;
+        }
+        int id = 0;
+        int i = offset + 1;
+        int end = offset + length;
+        while (i < end && buffer[i] >= '0' && buffer[i] <= '9' && id <= MAX_ID) {
+            id = id * 10 + buffer[i] - '0';
+            i++;
+        }
+        if (i == offset + 1 || (i < end && buffer[i] != ' ')) {
+            return false;
+        }
+        Call call;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                return false;
+            }
+            call = mPending.remove(id);
+        }
+        if (call == null) {
+            return false;
+        }
+        mHandler.removeCallbacks(call);
+        int start = Math.min(i + 1, end);
+        call.complete(new String(buffer, start, end - start, UTF8), null);
+        Metrics.RPC_LATENCY.recordNanos(call.getLatencyNanos());
+        return true;
+    }
+
+    /**
+     * Fail all calls in flight, e.g. when disconnected.
+     */
+    void failAll(String reason) {
+        ArrayList<Call> calls;
+        synchronized (this) {
+            calls = new ArrayList<>(mPending.values());
+        }
+        for (Call call : calls) {
+            fail(call, new IOException(reason));
+        }
+    }
+
+    synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    synchronized long getCallCount() {
+        return mCallCount;
+    }
+
+    private boolean fail(Call call, Exception error) {
+        synchronized (this) {
+            if (mPending.get(call.id) == call) {
+                mPending.remove(call.id);
+            }
+        }
+        mHandler.removeCallbacks(call);
+        return call.complete(null, error);
+    }
+}
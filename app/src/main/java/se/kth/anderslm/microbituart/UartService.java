@@ -0,0 +1,159 @@
+package se.kth.anderslm.microbituart;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Foreground service owning the GATT sessions (the ConnectionManager), so that the
+ * connections, decoders and sample history survive the activities: data keeps flowing
+ * when the user switches apps, and DeviceActivity catches up from the history when it
+ * binds again. The service is started when the first device is connected, and stopped
+ * when the user leaves DeviceActivity (back), which disconnects all devices.
+ * <p>
+ * Activities bind to the service, see LocalBinder, and attach to the stream with
+ * ConnectionManager.addStreamListener.
+ */
+public class UartService extends Service {
+
+    private static final String CHANNEL_ID = "uart";
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * Binder for activities in this process.
+     */
+    class LocalBinder extends Binder {
+        ConnectionManager getConnectionManager() {
+            return mConnectionManager;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private ConnectionManager mConnectionManager;
+    private Handler mHandler;
+
+    /**
+     * Start the service, and keep it running in the foreground until stop is called.
+     */
+    static void start(Context context) {
+        ContextCompat.startForegroundService(context, new Intent(context, UartService.class));
+    }
+
+    /**
+     * Disconnect all devices and stop the service.
+     */
+    static void stop(Context context) {
+        context.stopService(new Intent(context, UartService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
+        mConnectionManager = ConnectionManager.getInstance(this);
+        mConnectionManager.addStreamListener(mStreamListener);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.service_channel_name), NotificationManager.IMPORTANCE_LOW);
+            NotificationManager manager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(channel);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mNotificationUpdater);
+        mConnectionManager.removeStreamListener(mStreamListener);
+        mConnectionManager.stopBridge();
+        mConnectionManager.disconnectAll();
+        try {
+            mConnectionManager.stopRecording();
+        } catch (IOException e) {
+            if (Metrics.LOG) {
+                Log.i("UartService", "stopRecording failed: " + e);
+            }
+        }
+        mConnectionManager.getHistory().clear();
+        stopForeground(true);
+    }
+
+    private Notification buildNotification() {
+        List<GattSession> sessions = mConnectionManager.getSessions();
+        int ready = 0;
+        for (GattSession session : sessions) {
+            if (session.getState() == GattSession.State.READY) {
+                ready++;
+            }
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, DeviceActivity.class), 0);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.devices_msg, sessions.size(), ready))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+
+    private final Runnable mNotificationUpdater = new Runnable() {
+        @Override
+        public void run() {
+            NotificationManager manager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.notify(NOTIFICATION_ID, buildNotification());
+        }
+    };
+
+    // keeps the notification up to date, frames and samples are left to the activities
+    private final ConnectionManager.StreamListener mStreamListener =
+            new ConnectionManager.StreamListener() {
+                @Override
+                public void onFrame(GattSession session, long timestampNanos,
+                                    byte[] buffer, int offset, int length) {
+                }
+
+                @Override
+                public void onSamples(GattSession session, long timestampNanos, int type,
+                                      short[] samples, int count) {
+                }
+
+                @Override
+                public void onSessionStateChanged(GattSession session,
+                                                  GattSession.State state) {
+                    mHandler.removeCallbacks(mNotificationUpdater);
+                    mHandler.post(mNotificationUpdater);
+                }
+
+                @Override
+                public void onSessionError(GattSession session, String message) {
+                }
+            };
+}
@@ -0,0 +1,77 @@
+package se.kth.anderslm.microbituart;
+
+/**
+ * The link under a GattSession: connects to a Micro:bit, delivers the packets received
+ * on its UART TX characteristic and writes outbound data through a UartWriter. The GATT
+ * connection (GattTransport) and a simulated Micro:bit (SimulatedMicrobit) are
+ * interchangeable, so the decoding, stream, calls and transfers above can be run and
+ * measured without hardware.
+ * <p>
+ * A transport is driven by the BLE thread, see ConnectionManager: the listener is
+ * called there, and after a link loss the transport reconnects by itself until closed.
+ */
+interface UartTransport {
+
+    interface Listener {
+        /**
+         * The link state, READY when data flows both ways. Called on the BLE thread.
+         */
+        void onStateChanged(GattSession.State state);
+
+        /**
+         * A received packet, on the BLE thread. The array is not reused.
+         *
+         * @param timestampNanos receive time, System.nanoTime()
+         */
+        void onPacket(long timestampNanos, byte[] value);
+
+        /**
+         * Setting up the link failed, e.g. the UART service is missing. The transport
+         * disconnects and retries, as after a link loss. Called on the BLE thread.
+         */
+        void onError(String message);
+    }
+
+    /**
+     * Device address, e.g. "AA:BB:CC:DD:EE:FF".
+     */
+    String getAddress();
+
+    /**
+     * Device name, null if unknown.
+     */
+    String getName();
+
+    LinkMode getLinkMode();
+
+    /**
+     * Link parameters: the MTU is set by the transport, packets are counted by the
+     * session.
+     */
+    LinkStats getLinkStats();
+
+    /**
+     * Outbound data, attached to the link while ready.
+     */
+    UartWriter getUartWriter();
+
+    /**
+     * Connect, from any thread.
+     */
+    void connect(Listener listener);
+
+    /**
+     * Disconnect and stop reconnecting, from any thread.
+     */
+    void close();
+
+    /**
+     * Whether the connection priority can be changed, see PriorityController.
+     */
+    boolean supportsPriority();
+
+    /**
+     * Request a connection priority, e.g. BluetoothGatt.CONNECTION_PRIORITY_HIGH.
+     */
+    void requestPriority(int priority);
+}
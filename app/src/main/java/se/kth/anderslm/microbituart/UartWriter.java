@@ -0,0 +1,317 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Outbound data to the Micro:bit, written to the UART RX characteristic.
+ * Payloads are queued, split into chunks that fit the negotiated MTU and written one
+ * at a time through the GattOperationQueue; the next chunk is enqueued when the previous
+ * write completes, i.e. from onCharacteristicWrite. Write-without-response
+ * is used if the characteristic supports it (Android still calls onCharacteristicWrite
+ * when the stack has accepted the packet, which gives us flow control).
+ * <p>
+ * Other transports, e.g. SimulatedMicrobit, attach a Sink of their own.
+ * <p>
+ * The queue is bounded in bytes: offer returns false and send blocks when it is full,
+ * so callers can not flood the BLE stack.
+ */
+class UartWriter {
+
+    static final int DEFAULT_CAPACITY = 4096; // bytes
+
+    private static final int MAX_RETRIES = 3;
+
+    /**
+     * Where the chunks go. One chunk is written at a time; the sink calls
+     * onWriteComplete when it is done, later and not from within write.
+     */
+    interface Sink {
+        /**
+         * The array is only valid until the write completes.
+         */
+        void write(byte[] chunk);
+    }
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<byte[]> mQueue = new ArrayDeque<>();
+    private final int mCapacity;
+
+    // guarded by mLock
+    private Sink mSink = null;
+    private int mMaxChunk = LinkStats.DEFAULT_MTU - 3;
+    private byte[] mChunk = new byte[mMaxChunk];
+    private int mQueuedBytes = 0;
+    private byte[] mCurrent = null;
+    private int mCurrentOffset = 0;
+    private boolean mInFlight = false;
+    private int mInFlightLength = 0;
+    private int mRetries = 0;
+
+    // statistics, guarded by mLock
+    private long mBytesSent = 0;
+    private long mChunksSent = 0;
+    private long mRejected = 0;
+    private long mErrors = 0;
+    private long mWindowStartNanos = 0;
+    private long mWindowBytes = 0;
+    private double mBytesPerSecond = 0;
+
+    /**
+     * @param capacity max number of queued bytes
+     */
+    UartWriter(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Start writing to rxCharac, e.g. when notifications for UART data are enabled.
+     *
+     * @param maxChunk max payload per packet, i.e. MTU - 3
+     */
+    void attach(GattOperationQueue gattQueue, BluetoothGattCharacteristic rxCharac,
+                int maxChunk) {
+        attach(new GattSink(gattQueue, rxCharac), maxChunk);
+    }
+
+    /**
+     * Start writing to sink.
+     *
+     * @param maxChunk max payload per write
+     */
+    void attach(Sink sink, int maxChunk) {
+        synchronized (mLock) {
+            mSink = sink;
+            mMaxChunk = maxChunk;
+            mChunk = new byte[maxChunk];
+            mInFlight = false;
+        }
+        pump();
+    }
+
+    /**
+     * Stop writing, e.g. on disconnect. Queued data is kept and sent on the next attach,
+     * starting with the chunk that was in flight.
+     */
+    void detach() {
+        synchronized (mLock) {
+            mSink = null;
+            mInFlight = false;
+        }
+    }
+
+    /**
+     * Drop all queued data and wake up blocked senders.
+     */
+    void clear() {
+        synchronized (mLock) {
+            mQueue.clear();
+            mCurrent = null;
+            mQueuedBytes = 0;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue data without blocking. The array must not be modified after this call.
+     *
+     * @return false if the queue is full
+     */
+    boolean offer(byte[] data) {
+        checkSize(data);
+        synchronized (mLock) {
+            if (mQueuedBytes + data.length > mCapacity) {
+                mRejected++;
+                return false;
+            }
+            enqueue(data);
+        }
+        pump();
+        return true;
+    }
+
+    /**
+     * Queue data, blocks while the queue is full. Do not call on the ui thread.
+     * The array must not be modified after this call.
+     */
+    void send(byte[] data) throws InterruptedException {
+        checkSize(data);
+        synchronized (mLock) {
+            while (mQueuedBytes + data.length > mCapacity) {
+                mLock.wait();
+            }
+            enqueue(data);
+        }
+        pump();
+    }
+
+    /**
+     * The write to sink is done, status BluetoothGatt.GATT_SUCCESS or an error.
+     */
+    void onWriteComplete(Sink sink, int status) {
+        synchronized (mLock) {
+            if (!mInFlight || sink != mSink) {
+                // completion of a write from before the last detach
+                return;
+            }
+            mInFlight = false;
+            if (mCurrent == null) {
+                // cleared while the write was in flight
+                mRetries = 0;
+            } else if (status == BluetoothGatt.GATT_SUCCESS) {
+                chunkDone(true);
+            } else {
+                mErrors++;
+                if (++mRetries > MAX_RETRIES) {
+                    chunkDone(false);
+                }
+            }
+        }
+        pump();
+    }
+
+    int getQueuedBytes() {
+        synchronized (mLock) {
+            return mQueuedBytes;
+        }
+    }
+
+    int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueue.size() + (mCurrent == null ? 0 : 1);
+        }
+    }
+
+    long getBytesSent() {
+        synchronized (mLock) {
+            return mBytesSent;
+        }
+    }
+
+    long getChunksSent() {
+        synchronized (mLock) {
+            return mChunksSent;
+        }
+    }
+
+    long getRejectedCount() {
+        synchronized (mLock) {
+            return mRejected;
+        }
+    }
+
+    long getErrorCount() {
+        synchronized (mLock) {
+            return mErrors;
+        }
+    }
+
+    /**
+     * Updates bytes/sec with the data sent since the previous call.
+     */
+    void sample(long nowNanos) {
+        synchronized (mLock) {
+            if (mWindowStartNanos != 0 && nowNanos > mWindowStartNanos) {
+                mBytesPerSecond = mWindowBytes * 1e9 / (nowNanos - mWindowStartNanos);
+            }
+            mWindowStartNanos = nowNanos;
+            mWindowBytes = 0;
+        }
+    }
+
+    double getBytesPerSecond() {
+        synchronized (mLock) {
+            return mBytesPerSecond;
+        }
+    }
+
+    private void checkSize(byte[] data) {
+        if (data.length > mCapacity) {
+            throw new IllegalArgumentException("payload larger than queue capacity");
+        }
+    }
+
+    // called with mLock held
+    private void enqueue(byte[] data) {
+        if (data.length > 0) {
+            mQueue.add(data);
+            mQueuedBytes += data.length;
+        }
+    }
+
+    // called with mLock held
+    private void chunkDone(boolean sent) {
+        int length = sent ? mInFlightLength : mCurrent.length - mCurrentOffset;
+        if (sent) {
+            mBytesSent += length;
+            Metrics.BYTES_SENT.add(length);
+            mWindowBytes += length;
+            mChunksSent++;
+        }
+        mCurrentOffset += length;
+        mQueuedBytes -= length;
+        mRetries = 0;
+        if (mCurrentOffset >= mCurrent.length) {
+            mCurrent = null;
+        }
+        mLock.notifyAll();
+    }
+
+    private void pump() {
+        synchronized (mLock) {
+            if (mInFlight || mSink == null) {
+                return;
+            }
+            if (mCurrent == null) {
+                mCurrent = mQueue.poll();
+                mCurrentOffset = 0;
+                if (mCurrent == null) {
+                    return;
+                }
+            }
+            int length = Math.min(mMaxChunk, mCurrent.length - mCurrentOffset);
+            byte[] chunk;
+            if (length == mMaxChunk) {
+                // only one chunk is in flight, so full chunks reuse a buffer
+                chunk = mChunk;
+                System.arraycopy(mCurrent, mCurrentOffset, chunk, 0, length);
+            } else {
+                chunk = Arrays.copyOfRange(mCurrent, mCurrentOffset, mCurrentOffset + length);
+            }
+            mInFlight = true;
+            mInFlightLength = length;
+            mSink.write(chunk);
+        }
+    }
+
+    // writes through the GattOperationQueue, completed from onCharacteristicWrite
+    private class GattSink implements Sink, GattOperationQueue.OperationListener {
+
+        private final GattOperationQueue mGattQueue;
+        private final GattOperationQueue.CharacteristicWrite mWriteOperation;
+
+        GattSink(GattOperationQueue gattQueue, BluetoothGattCharacteristic rxCharac) {
+            mGattQueue = gattQueue;
+            mWriteOperation = new GattOperationQueue.CharacteristicWrite(rxCharac,
+                    BleLogger.hasProperty(rxCharac,
+                            BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) ?
+                            BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE :
+                            BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT,
+                    this);
+        }
+
+        @Override
+        public void write(byte[] chunk) {
+            mWriteOperation.setValue(chunk);
+            mGattQueue.enqueue(mWriteOperation);
+        }
+
+        @Override
+        public void onOperationComplete(GattOperationQueue.Operation operation, int status) {
+            onWriteComplete(this, status);
+        }
+    }
+}
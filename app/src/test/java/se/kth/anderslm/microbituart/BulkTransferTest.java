@@ -0,0 +1,139 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Blobs sent to a simulated Micro:bit, which checks their CRC-32: over a clean link,
+ * over a lossy one that drops writes and acks alike, and across a link loss.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BulkTransferTest {
+
+    private static final int SIZE = 16 * 1024;
+    // probability of losing a packet or write, high enough to lose start packets
+    private static final double LOSS = 0.3;
+
+    private SimulatedSessions mSessions;
+
+    // written on the BLE thread
+    private boolean mComplete = false;
+    private String mError = null;
+
+    private final BulkTransfer.Listener mListener = new BulkTransfer.Listener() {
+        @Override
+        public void onProgress(BulkTransfer transfer, long ackedBytes, long totalBytes,
+                               double bytesPerSecond) {
+        }
+
+        @Override
+        public void onComplete(BulkTransfer transfer, String error) {
+            mComplete = true;
+            mError = error;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mSessions = new SimulatedSessions();
+    }
+
+    @After
+    public void tearDown() {
+        mSessions.tearDown();
+    }
+
+    private SimulatedMicrobit connect(double loss, long seed) {
+        SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+        config.loss = loss;
+        config.seed = seed;
+        SimulatedMicrobit microbit = mSessions.create(config);
+        mSessions.connect(microbit, DataFormat.TEXT);
+        mSessions.run(1000);
+        return microbit;
+    }
+
+    private static byte[] blob(long seed) {
+        byte[] data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // run the BLE thread until the transfer completes, at most millis of simulated time
+    private long send(GattSession session, byte[] data, long millis) {
+        mComplete = false;
+        mError = null;
+        session.getBulkTransfer().start(data, mListener);
+        return runUntilComplete(millis);
+    }
+
+    private long runUntilComplete(long millis) {
+        long t = 0;
+        while (!mComplete && t < millis) {
+            mSessions.run(10);
+            t += 10;
+        }
+        return t;
+    }
+
+    @Test
+    public void blobArrivesOverACleanLink() {
+        connect(0, 1);
+        GattSession session = mSessions.getManager().getSessions().get(0);
+        long millis = send(session, blob(1), 30000);
+        assertTrue(mComplete);
+        assertNull(mError);
+        BulkTransfer transfer = session.getBulkTransfer();
+        assertEquals(SIZE, transfer.getAckedBytes());
+        assertEquals(0, transfer.getRetransmitCount());
+        assertFalse(transfer.isActive());
+        System.out.println(String.format(Locale.US, "clean link: %d bytes in %d ms",
+                SIZE, millis));
+    }
+
+    @Test
+    public void blobArrivesOverALossyLink() {
+        // the seeds decide which packets are lost, among them start packets and acks
+        for (long seed = 1; seed <= 10; seed++) {
+            connect(LOSS, seed);
+            GattSession session = mSessions.getManager().getSessions().get(0);
+            long millis = send(session, blob(seed), 60000);
+            BulkTransfer transfer = session.getBulkTransfer();
+            System.out.println(String.format(Locale.US,
+                    "%.0f%% loss, seed %2d: %s in %5d ms, %3d retransmits", LOSS * 100, seed,
+                    mComplete ? (mError == null ? "ok" : mError) : "not done", millis,
+                    transfer.getRetransmitCount()));
+            assertTrue("seed " + seed, mComplete);
+            assertNull("seed " + seed, mError);
+            assertTrue(transfer.getRetransmitCount() > 0);
+            mSessions.tearDown();
+        }
+    }
+
+    @Test
+    public void transferResumesAfterALinkLoss() {
+        SimulatedMicrobit microbit = connect(0, 1);
+        GattSession session = mSessions.getManager().getSessions().get(0);
+        mComplete = false;
+        session.getBulkTransfer().start(blob(1), mListener);
+        mSessions.run(100);
+        long acked = session.getBulkTransfer().getAckedBytes();
+        assertTrue(acked > 0 && acked < SIZE);
+        microbit.dropLink();
+        mSessions.run(5000);
+        runUntilComplete(30000);
+        assertTrue(mComplete);
+        assertNull(mError);
+    }
+}
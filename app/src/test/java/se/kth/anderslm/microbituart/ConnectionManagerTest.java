@@ -0,0 +1,219 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * N simulated Micro:bits merged into one stream. The scaling test prints the aggregate
+ * frames per second, both in simulated time (what the links deliver, it must grow with
+ * N) and in processing time on this machine (the BLE thread's headroom). The stress
+ * test blocks the main thread while the BLE thread runs, and checks that the BLE thread
+ * does not notice.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConnectionManagerTest {
+
+    private static final int RATE = 50; // samples per second per device
+
+    private SimulatedSessions mSessions;
+    private ConnectionManager mManager;
+    private final Map<String, Integer> mFramesBySession = new HashMap<>();
+    private final List<GattSession> mReady = new ArrayList<>();
+
+    private final ConnectionManager.StreamListener mListener =
+            new ConnectionManager.StreamListener() {
+                @Override
+                public void onFrame(GattSession session, long timestampNanos,
+                                    byte[] buffer, int offset, int length) {
+                    Integer count = mFramesBySession.get(session.getAddress());
+                    mFramesBySession.put(session.getAddress(), count == null ? 1 : count + 1);
+                }
+
+                @Override
+                public void onSamples(GattSession session, long timestampNanos, int type,
+                                      short[] samples, int count) {
+                }
+
+                @Override
+                public void onSessionStateChanged(GattSession session,
+                                                  GattSession.State state) {
+                    if (state == GattSession.State.READY) {
+                        mReady.add(session);
+                    }
+                }
+
+                @Override
+                public void onSessionError(GattSession session, String message) {
+                }
+            };
+
+    @Before
+    public void setUp() {
+        mSessions = new SimulatedSessions();
+        mManager = mSessions.getManager();
+        mManager.addStreamListener(mListener);
+    }
+
+    @After
+    public void tearDown() {
+        mSessions.tearDown();
+        mManager.removeStreamListener(mListener);
+    }
+
+    private void connect(int n) {
+        connect(n, DataFormat.TEXT);
+    }
+
+    private void connect(int n, DataFormat dataFormat) {
+        for (int i = 0; i < n; i++) {
+            SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+            config.dataFormat = dataFormat;
+            config.rate = RATE;
+            config.seed = i;
+            config.noiseSeed = 1000 + i;
+            mSessions.connect(config);
+        }
+    }
+
+    private long totalFrames() {
+        long total = 0;
+        for (int count : mFramesBySession.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Test
+    public void everyDeviceIsInTheMergedStream() {
+        connect(5);
+        mSessions.run(1000); // connected and streaming
+        assertEquals(5, mReady.size());
+        mFramesBySession.clear();
+        mSessions.run(2000);
+        assertEquals(5, mFramesBySession.size());
+        for (int count : mFramesBySession.values()) {
+            // 2 s at RATE, give or take the frames in flight
+            assertTrue("frames " + count, Math.abs(count - 2 * RATE) <= 5);
+        }
+        assertTrue(mManager.getFrameCount() >= totalFrames());
+    }
+
+    @Test
+    public void aggregateRateScalesWithDevices() {
+        int connected = 0;
+        for (int n : new int[]{1, 5, 10, 20, 30}) {
+            connect(n - connected);
+            connected = n;
+            mSessions.run(1000);
+            assertEquals(n, mManager.size());
+            mFramesBySession.clear();
+            long nanos = mSessions.run(5000);
+            double simulated = totalFrames() / 5.0;
+            double processed = totalFrames() * 1e9 / nanos;
+            System.out.println(String.format(Locale.US,
+                    "%2d devices: %6.0f frames/s simulated, %8.0f frames/s processed",
+                    n, simulated, processed));
+            // every device delivers its full rate, nothing is lost to the others
+            assertEquals(n, mFramesBySession.size());
+            assertTrue("aggregate " + simulated, simulated >= 0.95 * n * RATE);
+        }
+    }
+
+    @Test
+    public void blockedMainThreadDoesNotStallTheBleThread() throws Exception {
+        // the hand-off of DeviceActivity: the latest samples to a RenderScheduler, which
+        // renders on the main thread, and every sample to a SampleRing, as for PlotView
+        final List<String> rendered = new ArrayList<>();
+        final RenderScheduler scheduler = new RenderScheduler(1, new RenderScheduler.Renderer() {
+            @Override
+            public void render(CharSequence text) {
+                rendered.add(text.toString());
+            }
+        });
+        final SampleRing ring = new SampleRing(4096);
+        // longest time between two deliveries, real time
+        final AtomicLong maxGapNanos = new AtomicLong();
+        ConnectionManager.StreamListener handoff = new ConnectionManager.StreamListener() {
+            private long mLastNanos = 0; // BLE thread only
+
+            @Override
+            public void onFrame(GattSession session, long timestampNanos,
+                                byte[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void onSamples(GattSession session, long timestampNanos, int type,
+                                  short[] samples, int count) {
+                long now = System.nanoTime();
+                if (mLastNanos != 0 && now - mLastNanos > maxGapNanos.get()) {
+                    maxGapNanos.set(now - mLastNanos);
+                }
+                mLastNanos = now;
+                ring.append(timestampNanos, samples[0]);
+                scheduler.publishSamples(session.getLabel(), type, samples, count,
+                        timestampNanos);
+            }
+
+            @Override
+            public void onSessionStateChanged(GattSession session, GattSession.State state) {
+            }
+
+            @Override
+            public void onSessionError(GattSession session, String message) {
+            }
+        };
+        connect(10, DataFormat.BINARY);
+        mSessions.run(1000); // connected and streaming
+        mFramesBySession.clear();
+        mManager.addStreamListener(handoff);
+        try {
+            // the BLE thread runs on its own for 2 s, while this thread, the main thread,
+            // is blocked and does not run its looper, as in a long layout or disk read
+            mSessions.runFreely(2000).join();
+            mSessions.idle();
+        } finally {
+            mManager.removeStreamListener(handoff);
+        }
+        System.out.println(String.format(Locale.US,
+                "blocked main thread: %d samples handed off, %d coalesced, longest gap %d ms",
+                ring.getCount(), scheduler.getCoalescedCount(),
+                maxGapNanos.get() / 1000000));
+        // nothing was rendered, but every device kept its rate and nothing was lost
+        assertEquals(0, rendered.size());
+        assertEquals(10, mFramesBySession.size());
+        for (int count : mFramesBySession.values()) {
+            assertTrue("frames " + count, Math.abs(count - 2 * RATE) <= 5);
+        }
+        for (GattSession session : mManager.getSessions()) {
+            assertEquals(0, session.getLostFrameCount());
+        }
+        // the deliveries went on throughout
+        assertTrue(maxGapNanos.get() < TimeUnit.MILLISECONDS.toNanos(200));
+        // the scheduler kept the latest value only, the ring every sample
+        assertTrue(ring.getCount() >= 10 * (2 * RATE - 5));
+        assertEquals(ring.getCount() - 1, scheduler.getCoalescedCount());
+
+        // unblocked: the next frame renders the latest value, the plot has the samples
+        ShadowLooper.idleMainLooper(20, TimeUnit.MILLISECONDS);
+        assertEquals(1, rendered.size());
+        long[] times = new long[ring.getCapacity()];
+        float[] values = new float[ring.getCapacity()];
+        assertEquals(Math.min(ring.getCount(), ring.getCapacity()),
+                ring.snapshot(0, times, values));
+    }
+}
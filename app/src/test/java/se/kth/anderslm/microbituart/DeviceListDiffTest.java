@@ -0,0 +1,190 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothAdapter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The diff applied to rows the way a RecyclerView applies it: inserted and changed rows
+ * are bound, moved and removed rows are not. After every update the rows must show the
+ * new list, and the bind count must be the number of new or changed devices.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DeviceListDiffTest {
+
+    private static final Comparator<ScanEntry> BY_RSSI = new Comparator<ScanEntry>() {
+        @Override
+        public int compare(ScanEntry e1, ScanEntry e2) {
+            return e2.getRssi() - e1.getRssi();
+        }
+    };
+
+    // a row view, showing what it was bound to, null until bound
+    private static class Row {
+        String text;
+    }
+
+    private final List<Row> mRows = new ArrayList<>();
+    private List<ScanEntry> mShown = new ArrayList<>();
+    private int mMoves = 0;
+
+    private final DeviceListDiff.Callback mCallback = new DeviceListDiff.Callback() {
+        @Override
+        public void onRemoved(int position) {
+            mRows.remove(position);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mRows.add(toPosition, mRows.remove(fromPosition));
+            mMoves++;
+        }
+
+        @Override
+        public void onInserted(int position) {
+            mRows.add(position, new Row());
+        }
+
+        @Override
+        public void onChanged(int position) {
+            mRows.get(position).text = null;
+        }
+    };
+
+    private static ScanEntry entry(int device, int rssi) {
+        String address = String.format(Locale.US, "AA:BB:CC:DD:%02X:%02X",
+                device / 256, device % 256);
+        return new ScanEntry(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address),
+                "BBC micro:bit " + device, rssi, 0);
+    }
+
+    private static String text(ScanEntry entry) {
+        return entry.getName() + ", " + entry.getAddress() + ", " + entry.getRssi();
+    }
+
+    // @return binds by this update
+    private int update(ScanEntry... entries) {
+        List<ScanEntry> sorted = new ArrayList<>();
+        Collections.addAll(sorted, entries);
+        Collections.sort(sorted, BY_RSSI);
+        mMoves = 0;
+        DeviceListDiff.dispatch(mShown, sorted, mCallback);
+        mShown = sorted;
+        int binds = 0;
+        assertEquals(sorted.size(), mRows.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            Row row = mRows.get(i);
+            if (row.text == null) {
+                row.text = text(sorted.get(i));
+                binds++;
+            }
+            assertEquals(text(sorted.get(i)), row.text);
+        }
+        return binds;
+    }
+
+    @Test
+    public void firstUpdateBindsEveryRow() {
+        assertEquals(3, update(entry(1, -50), entry(2, -60), entry(3, -70)));
+    }
+
+    @Test
+    public void unchangedListBindsNothing() {
+        update(entry(1, -50), entry(2, -60), entry(3, -70));
+        assertEquals(0, update(entry(1, -50), entry(2, -60), entry(3, -70)));
+    }
+
+    @Test
+    public void rssiChangeRebindsOnlyThatRow() {
+        update(entry(1, -50), entry(2, -60), entry(3, -70));
+        assertEquals(1, update(entry(1, -50), entry(2, -65), entry(3, -70)));
+        assertEquals(0, mMoves);
+    }
+
+    @Test
+    public void reorderMovesOneRowAndRebindsOnlyTheChangedOne() {
+        update(entry(1, -50), entry(2, -60), entry(3, -70), entry(4, -80));
+        // 4 passes all the others, they keep their rows
+        assertEquals(1, update(entry(1, -50), entry(2, -60), entry(3, -70), entry(4, -40)));
+        assertEquals(1, mMoves);
+    }
+
+    @Test
+    public void insertBindsOnlyTheNewRow() {
+        update(entry(1, -50), entry(2, -60), entry(3, -70));
+        assertEquals(1, update(entry(1, -50), entry(2, -60), entry(5, -55), entry(3, -70)));
+        assertEquals(0, mMoves);
+    }
+
+    @Test
+    public void removalBindsNothing() {
+        update(entry(1, -50), entry(2, -60), entry(3, -70));
+        assertEquals(0, update(entry(1, -50), entry(3, -70)));
+    }
+
+    @Test
+    public void increasingRunKeepsTheLongestRun() {
+        boolean[] run = DeviceListDiff.increasingRun(new int[]{3, 0, 1, 2});
+        assertEquals("[false, true, true, true]", Arrays.toString(run));
+        run = DeviceListDiff.increasingRun(new int[]{});
+        assertEquals(0, run.length);
+    }
+
+    @Test
+    public void bindsPerUpdateWhileScanning() {
+        // 300 devices, a few percent change rssi, appear or disappear every update
+        Random random = new Random(1);
+        int[] rssi = new int[300];
+        boolean[] present = new boolean[rssi.length];
+        for (int i = 0; i < rssi.length; i++) {
+            rssi[i] = -40 - random.nextInt(60);
+            present[i] = random.nextInt(4) != 0;
+        }
+        long binds = 0;
+        long rows = 0;
+        int updates = 100;
+        for (int u = 0; u <= updates; u++) {
+            int expected = 0;
+            List<ScanEntry> entries = new ArrayList<>();
+            for (int i = 0; i < rssi.length; i++) {
+                boolean shown = present[i];
+                int before = rssi[i];
+                if (u > 0 && random.nextInt(50) == 0) {
+                    present[i] = !present[i];
+                }
+                if (u > 0 && random.nextInt(20) == 0) {
+                    rssi[i] = -40 - random.nextInt(60);
+                }
+                if (present[i]) {
+                    entries.add(entry(i, rssi[i]));
+                    if (u == 0 || !shown || before != rssi[i]) {
+                        expected++;
+                    }
+                }
+            }
+            int bound = update(entries.toArray(new ScanEntry[0]));
+            assertEquals(expected, bound);
+            if (u > 0) {
+                binds += bound;
+                rows += entries.size();
+            }
+        }
+        System.out.println(String.format(Locale.US,
+                "%.1f binds per update, %.1f rows per update", (double) binds / updates,
+                (double) rows / updates));
+        assertTrue(binds < rows / 5);
+    }
+}
@@ -0,0 +1,142 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBluetoothAdapter;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+import org.robolectric.shadows.ShadowBluetoothLeScanner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class DeviceScannerTest {
+
+    private static final String MICRO_BIT = "BBC micro:bit";
+
+    private BluetoothAdapter mAdapter;
+    private DeviceScanner mScanner;
+    private final List<List<ScanEntry>> mDelivered = new ArrayList<>();
+    private int mStopped = 0;
+
+    @Before
+    public void setUp() {
+        mAdapter = BluetoothAdapter.getDefaultAdapter();
+        ((ShadowBluetoothAdapter) Shadow.extract(mAdapter)).setEnabled(true);
+        mScanner = new DeviceScanner(mAdapter, MICRO_BIT, new DeviceScanner.Listener() {
+            @Override
+            public void onScanResults(List<ScanEntry> entries) {
+                mDelivered.add(entries);
+            }
+
+            @Override
+            public void onScanStopped() {
+                mStopped++;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mScanner.quit();
+        for (Looper looper : scanLoopers()) {
+            looper.getThread().join(1000);
+        }
+    }
+
+    private static List<Looper> scanLoopers() {
+        List<Looper> loopers = new ArrayList<>();
+        for (Looper looper : ShadowLooper.getAllLoopers()) {
+            if (looper.getThread().getName().equals("DeviceScanner")
+                    && looper.getThread().isAlive()) {
+                loopers.add(looper);
+            }
+        }
+        return loopers;
+    }
+
+    private ScanCallback callback() {
+        ShadowBluetoothLeScanner scanner = Shadow.extract(mAdapter.getBluetoothLeScanner());
+        return scanner.getScanCallbacks().iterator().next();
+    }
+
+    private void result(String address, String name, int rssi) {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        ((ShadowBluetoothDevice) Shadow.extract(device)).setName(name);
+        callback().onScanResult(0, new ScanResult(device, null, rssi, 0));
+    }
+
+    // runs the scan thread, then the ui thread
+    private void idle() {
+        for (Looper looper : scanLoopers()) {
+            ((ShadowLooper) Shadow.extract(looper)).idle();
+        }
+        ShadowLooper.idleMainLooper();
+    }
+
+    @Test
+    public void stopDeliversPendingResults() {
+        mScanner.start(10000);
+        result("AA:BB:CC:DD:EE:01", MICRO_BIT + " [zavep]", -50);
+        result("AA:BB:CC:DD:EE:02", "Headphones", -60);
+        // stopped before the first delivery period
+        mScanner.stop();
+        idle();
+        assertEquals(1, mStopped);
+        assertEquals(1, mDelivered.size());
+        assertEquals(1, mDelivered.get(0).size());
+        assertEquals("AA:BB:CC:DD:EE:01", mDelivered.get(0).get(0).getAddress());
+        assertEquals(-50, mDelivered.get(0).get(0).getRssi());
+    }
+
+    @Test
+    public void startForgetsPendingResultsOfThePreviousScan() {
+        mScanner.start(10000);
+        result("AA:BB:CC:DD:EE:01", MICRO_BIT + " [zavep]", -50);
+        // stopped and restarted before the scan thread drained anything
+        mScanner.stop();
+        mScanner.start(10000);
+        result("AA:BB:CC:DD:EE:03", MICRO_BIT + " [gotiv]", -70);
+        ShadowLooper.idleMainLooper(DeviceScanner.DELIVERY_PERIOD, TimeUnit.MILLISECONDS);
+        idle();
+        assertTrue(mDelivered.size() >= 1);
+        List<ScanEntry> latest = mDelivered.get(mDelivered.size() - 1);
+        assertEquals(1, latest.size());
+        assertEquals("AA:BB:CC:DD:EE:03", latest.get(0).getAddress());
+    }
+
+    @Test
+    public void snapshotOfThePreviousScanIsDropped() {
+        mScanner.start(10000);
+        result("AA:BB:CC:DD:EE:01", MICRO_BIT + " [zavep]", -50);
+        mScanner.stop();
+        // the scan thread drains, the snapshot is still on its way to the ui
+        for (Looper looper : scanLoopers()) {
+            ((ShadowLooper) Shadow.extract(looper)).idle();
+        }
+        mScanner.start(10000);
+        idle();
+        assertEquals(0, mDelivered.size());
+        result("AA:BB:CC:DD:EE:03", MICRO_BIT + " [gotiv]", -70);
+        ShadowLooper.idleMainLooper(DeviceScanner.DELIVERY_PERIOD, TimeUnit.MILLISECONDS);
+        idle();
+        assertEquals(1, mDelivered.size());
+        assertEquals(1, mDelivered.get(0).size());
+        assertEquals("AA:BB:CC:DD:EE:03", mDelivered.get(0).get(0).getAddress());
+    }
+}
@@ -0,0 +1,160 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameDecoderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<byte[]> mFrames = new ArrayList<>();
+
+    private final FrameDecoder.FrameListener mListener = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            mFrames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+    };
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF8);
+    }
+
+    private void feed(FrameDecoder decoder, byte[] data) {
+        decoder.feed(data, 0, data.length);
+    }
+
+    private void assertFrames(String... expected) {
+        assertEquals(expected.length, mFrames.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], new String(mFrames.get(i), UTF8));
+        }
+    }
+
+    @Test
+    public void delimitedSplitsLinesInOnePacket() {
+        FrameDecoder decoder = FrameDecoder.delimited((byte) '\n', 64, mListener);
+        feed(decoder, bytes("12,34\r\n-5,6\n\n"));
+        assertFrames("12,34", "-5,6", "");
+        assertEquals(3, decoder.getFrameCount());
+    }
+
+    @Test
+    public void delimitedJoinsSplitPackets() {
+        FrameDecoder decoder = FrameDecoder.delimited((byte) '\n', 64, mListener);
+        feed(decoder, bytes("hel"));
+        feed(decoder, bytes("lo\nwo"));
+        assertFrames("hello");
+        feed(decoder, bytes("rld"));
+        feed(decoder, bytes("\n"));
+        assertFrames("hello", "world");
+    }
+
+    @Test
+    public void framesWrapAroundTheRing() {
+        // capacity 16: the frames walk the head around the ring several times
+        FrameDecoder decoder = FrameDecoder.delimited((byte) '\n', 16, mListener);
+        assertEquals(16, decoder.getCapacity());
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String line = "frame " + i;
+            expected.add(line);
+            byte[] data = bytes(line + "\n");
+            // two packets per frame, so frames also start and end mid-packet
+            decoder.feed(data, 0, 3);
+            decoder.feed(data, 3, data.length - 3);
+        }
+        assertFrames(expected.toArray(new String[0]));
+        assertEquals(0, decoder.getOverflowCount());
+    }
+
+    @Test
+    public void oversizeDelimitedFrameIsDroppedWhole() {
+        FrameDecoder decoder = FrameDecoder.delimited((byte) '\n', 16, mListener);
+        feed(decoder, bytes("ok\n"));
+        feed(decoder, bytes("0123456789abcdef"));
+        feed(decoder, bytes("ghijklmnopqrstuv"));
+        feed(decoder, bytes("wxyz\nnext\n"));
+        assertFrames("ok", "next");
+        assertEquals(1, decoder.getOverflowCount());
+    }
+
+    @Test
+    public void oneBytePrefix() {
+        FrameDecoder decoder = FrameDecoder.lengthPrefixed(1, 64, mListener);
+        feed(decoder, new byte[]{3, 'a', 'b', 'c', 0, 2, 'd'});
+        feed(decoder, new byte[]{'e'});
+        assertEquals(3, mFrames.size());
+        assertArrayEquals(bytes("abc"), mFrames.get(0));
+        assertArrayEquals(new byte[0], mFrames.get(1));
+        assertArrayEquals(bytes("de"), mFrames.get(2));
+    }
+
+    @Test
+    public void twoBytePrefixIsLittleEndianAndMaySplit() {
+        FrameDecoder decoder = FrameDecoder.lengthPrefixed(2, 512, mListener);
+        byte[] payload = new byte[300];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        byte[] frame = new byte[payload.length + 2];
+        frame[0] = (byte) 300;
+        frame[1] = (byte) (300 >> 8);
+        System.arraycopy(payload, 0, frame, 2, payload.length);
+        // the prefix itself is split over two packets, then 20 byte packets
+        decoder.feed(frame, 0, 1);
+        for (int offset = 1; offset < frame.length; offset += 20) {
+            decoder.feed(frame, offset, Math.min(20, frame.length - offset));
+        }
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(payload, mFrames.get(0));
+    }
+
+    @Test
+    public void lengthPrefixedFramesWrapAroundTheRing() {
+        FrameDecoder decoder = FrameDecoder.lengthPrefixed(1, 16, mListener);
+        for (int i = 0; i < 50; i++) {
+            byte[] frame = {5, (byte) i, 1, 2, 3, (byte) -i};
+            feed(decoder, frame);
+        }
+        assertEquals(50, mFrames.size());
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(new byte[]{(byte) i, 1, 2, 3, (byte) -i}, mFrames.get(i));
+        }
+    }
+
+    @Test
+    public void oversizeLengthPrefixedFrameIsSkipped() {
+        FrameDecoder decoder = FrameDecoder.lengthPrefixed(2, 16, mListener);
+        byte[] big = new byte[2 + 40];
+        big[0] = 40;
+        Arrays.fill(big, 2, big.length, (byte) 7);
+        decoder.feed(big, 0, 10);
+        decoder.feed(big, 10, big.length - 10);
+        feed(decoder, new byte[]{2, 0, 'o', 'k'});
+        assertEquals(1, decoder.getOverflowCount());
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(bytes("ok"), mFrames.get(0));
+    }
+
+    @Test
+    public void resetDiscardsPartialFrame() {
+        FrameDecoder decoder = FrameDecoder.delimited((byte) '\n', 64, mListener);
+        feed(decoder, bytes("partial"));
+        decoder.reset();
+        feed(decoder, bytes("whole\n"));
+        assertFrames("whole");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void prefixMustBeOneOrTwoBytes() {
+        FrameDecoder.lengthPrefixed(3, 64, mListener);
+    }
+}
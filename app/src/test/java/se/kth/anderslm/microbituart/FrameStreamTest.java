@@ -0,0 +1,219 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Delivery order and drop counts of each strategy, bounded demand, and cancelling from
+ * inside onNext. Most subscribers run on the publishing thread, so that delivery is
+ * deterministic; SAMPLE runs on the sample timer.
+ */
+public class FrameStreamTest {
+
+    // runs the subscriber on the calling thread
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // period of SAMPLE subscriptions, 20 ms
+    private static final long PERIOD = 20;
+
+    private final FrameStream mStream = new FrameStream();
+    private final List<Integer> mReceived =
+            Collections.synchronizedList(new ArrayList<Integer>());
+    private FrameStream.Subscription mSubscription;
+
+    // requests initialDemand on subscribe, records every frame
+    private class Recorder implements FrameStream.Subscriber {
+        private final long mInitialDemand;
+
+        Recorder(long initialDemand) {
+            mInitialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(FrameStream.Subscription subscription) {
+            mSubscription = subscription;
+            subscription.request(mInitialDemand);
+        }
+
+        @Override
+        public void onNext(FrameStream.Frame frame) {
+            mReceived.add((int) frame.data[0]);
+        }
+    }
+
+    private FrameStream.Subscription subscribe(FrameStream.Strategy strategy, int capacity,
+                                               long initialDemand) {
+        return mStream.subscribe(new Recorder(initialDemand), strategy, capacity, PERIOD,
+                DIRECT);
+    }
+
+    private void publish(int first, int last) {
+        for (int i = first; i <= last; i++) {
+            mStream.publish(null, i, new byte[]{(byte) i}, 0, 1);
+        }
+    }
+
+    private void assertReceived(Integer... expected) {
+        assertEquals(Arrays.asList(expected), new ArrayList<>(mReceived));
+    }
+
+    // wait for the sample timer
+    private static void await(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 100 * PERIOD;
+        while (!condition.holds() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(condition.holds());
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    @Test
+    public void bufferDropsNewFramesWhenFull() {
+        FrameStream.Subscription subscription = subscribe(FrameStream.Strategy.BUFFER, 3, 0);
+        publish(0, 4);
+        assertEquals(2, subscription.getDroppedCount());
+        assertEquals(3, subscription.getQueuedCount());
+        subscription.request(10);
+        assertReceived(0, 1, 2);
+        publish(5, 5);
+        assertReceived(0, 1, 2, 5);
+        assertEquals(4, subscription.getDeliveredCount());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestFrames() {
+        FrameStream.Subscription subscription =
+                subscribe(FrameStream.Strategy.DROP_OLDEST, 3, 0);
+        publish(0, 4);
+        assertEquals(2, subscription.getDroppedCount());
+        subscription.request(10);
+        assertReceived(2, 3, 4);
+    }
+
+    @Test
+    public void latestKeepsOnlyTheLastFrame() {
+        FrameStream.Subscription subscription = subscribe(FrameStream.Strategy.LATEST, 3, 0);
+        publish(0, 4);
+        assertEquals(4, subscription.getDroppedCount());
+        assertEquals(1, subscription.getQueuedCount());
+        subscription.request(10);
+        assertReceived(4);
+    }
+
+    @Test
+    public void sampleDeliversTheLatestFramePerPeriod() throws InterruptedException {
+        final FrameStream.Subscription subscription =
+                subscribe(FrameStream.Strategy.SAMPLE, 0, 1);
+        publish(0, 4);
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return subscription.getDeliveredCount() == 1;
+            }
+        });
+        assertReceived(4);
+        // skipped frames are not dropped ones
+        assertEquals(0, subscription.getDroppedCount());
+        // no demand: a sample waits for a request, and is dropped for the next one
+        publish(5, 5);
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return subscription.getQueuedCount() == 1;
+            }
+        });
+        publish(6, 6);
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return subscription.getDroppedCount() == 1;
+            }
+        });
+        subscription.request(1);
+        assertReceived(4, 6);
+        subscription.cancel();
+    }
+
+    @Test
+    public void demandBoundsDelivery() {
+        FrameStream.Subscription subscription = subscribe(FrameStream.Strategy.BUFFER, 10, 2);
+        publish(0, 4);
+        assertReceived(0, 1);
+        assertEquals(3, subscription.getQueuedCount());
+        subscription.request(2);
+        assertReceived(0, 1, 2, 3);
+        assertEquals(1, subscription.getQueuedCount());
+        assertEquals(0, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void cancelFromOnNextStopsDelivery() {
+        mStream.subscribe(new Recorder(Long.MAX_VALUE) {
+            @Override
+            public void onNext(FrameStream.Frame frame) {
+                super.onNext(frame);
+                if (frame.data[0] == 1) {
+                    mSubscription.cancel();
+                }
+            }
+        }, FrameStream.Strategy.BUFFER, 10, 0, DIRECT);
+        publish(0, 4);
+        assertReceived(0, 1);
+        assertFalse(mStream.hasSubscribers());
+        assertEquals(0, mSubscription.getQueuedCount());
+    }
+
+    @Test
+    public void throwingSubscriberIsCancelled() throws InterruptedException {
+        final CountDownLatch thrown = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        // on a thread of its own
+        mStream.subscribe(new Recorder(Long.MAX_VALUE) {
+            @Override
+            public void onSubscribe(FrameStream.Subscription subscription) {
+                threads.add(Thread.currentThread());
+                super.onSubscribe(subscription);
+            }
+
+            @Override
+            public void onNext(FrameStream.Frame frame) {
+                super.onNext(frame);
+                if (frame.data[0] == 1) {
+                    thrown.countDown();
+                    throw new IllegalStateException("broken subscriber");
+                }
+            }
+        }, FrameStream.Strategy.BUFFER, 10, 0, null);
+        publish(0, 1);
+        assertTrue(thrown.await(1, TimeUnit.SECONDS));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return !mStream.hasSubscribers();
+            }
+        });
+        publish(2, 4);
+        assertReceived(0, 1);
+        assertTrue(threads.get(0).isDaemon());
+        assertTrue(threads.get(0).getName().startsWith("FrameStream.subscriber-"));
+    }
+}
@@ -0,0 +1,95 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class GattSessionTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private SimulatedSessions mSessions;
+    private int mSampleFrames = 0;
+    private int mTimestampedFrames = 0;
+    private int mBadFrames = 0;
+
+    private final ConnectionManager.StreamListener mListener =
+            new ConnectionManager.StreamListener() {
+                @Override
+                public void onFrame(GattSession session, long timestampNanos,
+                                    byte[] buffer, int offset, int length) {
+                    if (ClockSync.timestampLength(buffer, offset, length) > 0) {
+                        mTimestampedFrames++;
+                    }
+                }
+
+                @Override
+                public void onSamples(GattSession session, long timestampNanos, int type,
+                                      short[] samples, int count) {
+                    mSampleFrames++;
+                    // x, y and z, no timestamp; asserted on the test thread
+                    boolean bad = count != 3;
+                    for (int i = 0; i < count; i++) {
+                        bad |= Math.abs(samples[i]) > 1100;
+                    }
+                    if (bad) {
+                        mBadFrames++;
+                    }
+                }
+
+                @Override
+                public void onSessionStateChanged(GattSession session,
+                                                  GattSession.State state) {
+                }
+
+                @Override
+                public void onSessionError(GattSession session, String message) {
+                }
+            };
+
+    @Before
+    public void setUp() {
+        mSessions = new SimulatedSessions();
+        mSessions.getManager().addStreamListener(mListener);
+    }
+
+    @After
+    public void tearDown() {
+        mSessions.tearDown();
+        mSessions.getManager().removeStreamListener(mListener);
+    }
+
+    private static int timestampLength(String frame) {
+        byte[] bytes = ("x" + frame).getBytes(UTF8);
+        return ClockSync.timestampLength(bytes, 1, bytes.length - 1);
+    }
+
+    @Test
+    public void timestampLength() {
+        assertEquals(8, timestampLength("@123456 12,-980,40"));
+        assertEquals(3, timestampLength("@12"));
+        assertEquals(0, timestampLength("@ 12"));
+        assertEquals(0, timestampLength("12,-980,40"));
+        assertEquals(0, timestampLength("@"));
+    }
+
+    @Test
+    public void timestampIsNotDecodedAsASample() {
+        SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+        config.timestamps = true;
+        mSessions.connect(config);
+        // the simulated clock is well past 1100 ms
+        mSessions.run(3000);
+        assertTrue(mTimestampedFrames > 0);
+        assertEquals(mTimestampedFrames, mSampleFrames);
+        assertEquals(0, mBadFrames);
+    }
+}
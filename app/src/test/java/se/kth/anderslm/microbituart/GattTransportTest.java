@@ -0,0 +1,132 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+import org.robolectric.shadows.ShadowBluetoothGatt;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Failures while setting up the link are reported, and the transport reconnects.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GattTransportTest {
+
+    private final List<GattSession.State> mStates = new ArrayList<>();
+    private final List<String> mErrors = new ArrayList<>();
+
+    private final UartTransport.Listener mListener = new UartTransport.Listener() {
+        @Override
+        public void onStateChanged(GattSession.State state) {
+            mStates.add(state);
+        }
+
+        @Override
+        public void onPacket(long timestampNanos, byte[] value) {
+        }
+
+        @Override
+        public void onError(String message) {
+            mErrors.add(message);
+        }
+    };
+
+    private BluetoothDevice mDevice;
+    private ShadowBluetoothDevice mShadowDevice;
+    private GattTransport mTransport;
+
+    @Before
+    public void setUp() {
+        mDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("AA:BB:CC:DD:EE:FF");
+        mShadowDevice = Shadow.extract(mDevice);
+        mTransport = new GattTransport(RuntimeEnvironment.getApplication(), mDevice,
+                LinkMode.COMPATIBLE, DataFormat.TEXT, new Handler(Looper.getMainLooper()));
+        mTransport.connect(mListener);
+        ShadowLooper.idleMainLooper();
+    }
+
+    private BluetoothGatt lastGatt() {
+        List<BluetoothGatt> gatts = mShadowDevice.getBluetoothGatts();
+        return gatts.get(gatts.size() - 1);
+    }
+
+    private BluetoothGattCallback connected() {
+        BluetoothGatt gatt = lastGatt();
+        BluetoothGattCallback callback = ((ShadowBluetoothGatt) Shadow.extract(gatt))
+                .getGattCallback();
+        callback.onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                BluetoothProfile.STATE_CONNECTED);
+        return callback;
+    }
+
+    private void assertFailedAndReconnects(String error) {
+        BluetoothGatt failed = lastGatt();
+        assertEquals(1, mErrors.size());
+        assertTrue(mErrors.get(0), mErrors.get(0).startsWith(error));
+        assertEquals(GattSession.State.DISCONNECTED, mStates.get(mStates.size() - 1));
+        assertTrue(((ShadowBluetoothGatt) Shadow.extract(failed)).isClosed());
+        // the first retry after the backoff delay
+        ShadowLooper.idleMainLooper(500, TimeUnit.MILLISECONDS);
+        assertEquals(2, mShadowDevice.getBluetoothGatts().size());
+        assertEquals(GattSession.State.CONNECTING, mStates.get(mStates.size() - 1));
+    }
+
+    @Test
+    public void missingUartServiceFailsAndReconnects() {
+        BluetoothGattCallback callback = connected();
+        assertEquals(GattSession.State.DISCOVERING, mStates.get(mStates.size() - 1));
+        callback.onServicesDiscovered(lastGatt(), BluetoothGatt.GATT_SUCCESS);
+        assertFailedAndReconnects("Uart-data characteristic not found");
+    }
+
+    @Test
+    public void failedDiscoveryFailsAndReconnects() {
+        BluetoothGattCallback callback = connected();
+        callback.onServicesDiscovered(lastGatt(), BluetoothGatt.GATT_FAILURE);
+        assertFailedAndReconnects("Service discovery failed");
+    }
+
+    @Test
+    public void failedSubscriptionFailsAndReconnects() {
+        BluetoothGattService service = new BluetoothGattService(
+                GattTransport.UARTSERVICE_SERVICE_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        BluetoothGattCharacteristic tx = new BluetoothGattCharacteristic(
+                GattTransport.UART_TX_CHARACTERISTIC_UUID,
+                BluetoothGattCharacteristic.PROPERTY_INDICATE, 0);
+        BluetoothGattDescriptor cccd = new BluetoothGattDescriptor(
+                GattTransport.CLIENT_CHARACTERISTIC_CONFIG,
+                BluetoothGattDescriptor.PERMISSION_WRITE);
+        tx.addDescriptor(cccd);
+        service.addCharacteristic(tx);
+        // discovered when connected
+        ((ShadowBluetoothGatt) Shadow.extract(lastGatt())).addDiscoverableService(service);
+        BluetoothGattCallback callback = connected();
+        assertEquals(GattSession.State.SUBSCRIBING, mStates.get(mStates.size() - 1));
+        callback.onDescriptorWrite(lastGatt(), cccd, BluetoothGatt.GATT_FAILURE);
+        ShadowLooper.idleMainLooper();
+        assertFailedAndReconnects("Enabling uart data failed");
+    }
+}
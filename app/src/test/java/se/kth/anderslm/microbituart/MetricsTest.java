@@ -0,0 +1,67 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = Metrics.Histogram.bucketOf(micros);
+            assertTrue(micros + " in " + bucket, micros < Metrics.Histogram.upperBoundOf(bucket));
+            if (bucket > 0) {
+                assertTrue(micros >= Metrics.Histogram.upperBoundOf(bucket - 1));
+            }
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinOneSubBucket() {
+        Metrics.Histogram histogram = new Metrics.Histogram("test");
+        Random random = new Random(1);
+        long[] micros = new long[10000];
+        for (int i = 0; i < micros.length; i++) {
+            // log-uniform, 10 us to 100 ms
+            micros[i] = (long) Math.pow(10, 1 + 4 * random.nextDouble());
+            histogram.recordNanos(micros[i] * 1000);
+        }
+        Arrays.sort(micros);
+        for (double p : new double[]{0.5, 0.9, 0.99}) {
+            double exact = micros[(int) Math.ceil(p * micros.length) - 1] / 1000.0;
+            double estimate = histogram.getPercentileMillis(p);
+            assertTrue(p + ": " + estimate + " < " + exact, estimate >= exact);
+            assertTrue(p + ": " + estimate + " > " + exact, estimate <= exact * 1.125);
+        }
+    }
+
+    @Test
+    public void percentileIsAtMostTheMax() {
+        Metrics.Histogram histogram = new Metrics.Histogram("test");
+        histogram.recordNanos(1000000);
+        assertEquals(1.0, histogram.getPercentileMillis(0.99), 0);
+    }
+
+    @Test
+    public void snapshotsKeepTheirOwnBaseline() {
+        Metrics.Snapshot overlay = new Metrics.Snapshot();
+        Metrics.Snapshot dump = new Metrics.Snapshot();
+        Metrics.RPC_TIMEOUTS.add(5);
+        overlay.take();
+        // the overlay refresh does not reset what the dump reports
+        String line = null;
+        for (String l : dump.take().split("\n")) {
+            if (l.startsWith("rpc timeouts: ")) {
+                line = l;
+            }
+        }
+        assertTrue(line, !line.endsWith("(0.0/s)"));
+        assertTrue(overlay.take().contains("rpc timeouts: " + Metrics.RPC_TIMEOUTS.get()
+                + " (0.0/s)"));
+    }
+}
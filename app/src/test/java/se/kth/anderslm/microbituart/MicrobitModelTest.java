@@ -0,0 +1,152 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MicrobitModelTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // packets of each event, an empty list for an event without packets
+    private static List<List<byte[]>> run(SimulatedMicrobit.Config config, int events) {
+        MicrobitModel model = new MicrobitModel(config, "test");
+        model.linkUp(config.mtu - 3);
+        final List<List<byte[]>> result = new ArrayList<>();
+        for (int i = 0; i < events; i++) {
+            final List<byte[]> packets = new ArrayList<>();
+            model.nextEventDelay();
+            model.connectionEvent(new MicrobitModel.PacketListener() {
+                @Override
+                public void onPacket(byte[] packet) {
+                    packets.add(packet);
+                }
+            });
+            result.add(packets);
+        }
+        return result;
+    }
+
+    private static boolean same(List<List<byte[]>> a, List<List<byte[]>> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i).size() != b.get(i).size()) {
+                return false;
+            }
+            for (int j = 0; j < a.get(i).size(); j++) {
+                if (!Arrays.equals(a.get(i).get(j), b.get(i).get(j))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static List<Integer> packetCounts(List<List<byte[]>> events) {
+        List<Integer> counts = new ArrayList<>();
+        for (List<byte[]> packets : events) {
+            counts.add(packets.size());
+        }
+        return counts;
+    }
+
+    private static SimulatedMicrobit.Config lossyConfig() {
+        SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+        config.mtu = 23;
+        config.rate = 200;
+        config.loss = 0.2;
+        return config;
+    }
+
+    @Test
+    public void sameConfigGivesSamePackets() {
+        assertTrue(same(run(lossyConfig(), 500), run(lossyConfig(), 500)));
+    }
+
+    @Test
+    public void noiseDoesNotChangeLinkDecisions() {
+        // binary frames, the length of a text line depends on the samples
+        SimulatedMicrobit.Config config = lossyConfig();
+        config.dataFormat = DataFormat.BINARY;
+        SimulatedMicrobit.Config other = lossyConfig();
+        other.dataFormat = DataFormat.BINARY;
+        other.noiseSeed = 99;
+        List<List<byte[]>> a = run(config, 500);
+        List<List<byte[]>> b = run(other, 500);
+        assertFalse(same(a, b));
+        // same jitter and losses, so as many packets get through in each event
+        assertEquals(packetCounts(a), packetCounts(b));
+    }
+
+    @Test
+    public void samplesFollowSimulatedTime() {
+        SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+        config.jitterMillis = 0;
+        config.intervalMillis = 10;
+        config.rate = 100;
+        // 100 events of 10 ms are one second of stream, 100 lines
+        int lines = 0;
+        for (List<byte[]> packets : run(config, 100)) {
+            for (byte[] packet : packets) {
+                for (byte b : packet) {
+                    if (b == '\n') {
+                        lines++;
+                    }
+                }
+            }
+        }
+        assertEquals(100, lines);
+    }
+
+    @Test
+    public void pingIsAnsweredWithTheSimulatedClock() {
+        SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+        config.jitterMillis = 0;
+        config.intervalMillis = 10;
+        config.rate = 0;
+        MicrobitModel model = new MicrobitModel(config, "test");
+        model.advance(500);
+        model.linkUp(config.mtu - 3);
+        final StringBuilder received = new StringBuilder();
+        MicrobitModel.PacketListener listener = new MicrobitModel.PacketListener() {
+            @Override
+            public void onPacket(byte[] packet) {
+                received.append(new String(packet, UTF8));
+            }
+        };
+        model.nextEventDelay();
+        model.connectionEvent(listener);
+        assertTrue(model.acceptsWrite());
+        model.write("#7 ping\n".getBytes(UTF8));
+        model.nextEventDelay();
+        model.connectionEvent(listener);
+        assertEquals("#7 520\n", received.toString());
+    }
+
+    @Test
+    public void notifyingAcceptsSeveralWritesPerEvent() {
+        SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+        MicrobitModel model = new MicrobitModel(config, "test");
+        model.linkUp(config.mtu - 3);
+        for (int i = 0; i < MicrobitModel.PACKETS_PER_EVENT; i++) {
+            assertTrue(model.acceptsWrite());
+            model.write(new byte[]{'\n'});
+        }
+        assertFalse(model.acceptsWrite());
+
+        config.notify = false;
+        model = new MicrobitModel(config, "test");
+        model.linkUp(config.mtu - 3);
+        model.write(new byte[]{'\n'});
+        assertFalse(model.acceptsWrite());
+    }
+}
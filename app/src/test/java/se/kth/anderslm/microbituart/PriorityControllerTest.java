@@ -0,0 +1,120 @@
+package se.kth.anderslm.microbituart;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLog;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The priority of a session over a simulated link, step by step. The Micro:bit sends no
+ * samples; the traffic is calls from the phone, which it echoes, so the bytes per second
+ * in + out are twice those written.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PriorityControllerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // step of the traffic, a call written per step, 100 ms
+    private static final long STEP = 100;
+    // bytes per call: 3000 bytes/s, above HIGH_ENTER
+    private static final int BURST = 150;
+    // bytes per call: 500 bytes/s, below HIGH_EXIT and above LOW_ENTER
+    private static final int LIGHT = 25;
+
+    private SimulatedSessions mSessions;
+    private GattSession mSession;
+    private PriorityController mController;
+
+    @Before
+    public void setUp() {
+        mSessions = new SimulatedSessions();
+        SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+        config.rate = 0;
+        mSession = mSessions.connect(config);
+        mController = mSession.getPriorityController();
+        mSessions.run(500);
+    }
+
+    @After
+    public void tearDown() {
+        mSessions.tearDown();
+    }
+
+    // write a call of size bytes per step, for millis of simulated time
+    private void traffic(int size, long millis) {
+        char[] padding = new char[size - "#1 \n".length()];
+        Arrays.fill(padding, 'x');
+        byte[] call = ("#1 " + new String(padding) + "\n").getBytes(UTF8);
+        for (long t = 0; t < millis; t += STEP) {
+            mSessions.run(STEP / 2);
+            assertTrue(mSession.offer(call));
+            mSessions.run(STEP / 2);
+        }
+    }
+
+    private void assertPriority(int priority, long transitions) {
+        assertEquals(PriorityController.priorityName(priority),
+                PriorityController.priorityName(mController.getPriority()));
+        assertEquals(transitions, mController.getTransitionCount());
+    }
+
+    @Test
+    public void priorityFollowsTheTraffic() {
+        // HIGH while setting up
+        assertPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH, 0);
+        mSessions.run(4000);
+        assertPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, 1);
+        mSessions.run(6000);
+        assertPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, 2);
+
+        // a burst moves up
+        traffic(BURST, 2000);
+        assertPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH, 3);
+        // a brief dip does not move down
+        mSessions.run(1000);
+        traffic(BURST, 2000);
+        assertPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH, 3);
+
+        // sustained light traffic does
+        traffic(LIGHT, 5000);
+        assertPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, 4);
+        mSessions.run(7000);
+        assertPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, 5);
+    }
+
+    @Test
+    public void longOutboundQueueMovesUpAtOnce() {
+        mSessions.run(10000);
+        assertPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, 2);
+        assertTrue(mSession.offer(new byte[1024]));
+        // before the next period
+        mSessions.run(10);
+        assertPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH, 3);
+    }
+
+    @Test
+    public void effectOfATransitionIsLogged() {
+        mSessions.getManager().setPinging(true);
+        mSessions.run(4000 + 3000);
+        assertPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, 1);
+        if (Metrics.LOG) {
+            boolean logged = false;
+            for (ShadowLog.LogItem item : ShadowLog.getLogsForTag("PriorityController")) {
+                logged |= item.msg.contains("HIGH -> BALANCED effect")
+                        && item.msg.contains(", round trip ")
+                        && !item.msg.contains("not measured");
+            }
+            assertTrue(logged);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class RenderSchedulerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<String> mRendered = new ArrayList<>();
+    private RenderScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new RenderScheduler(2, new RenderScheduler.Renderer() {
+            @Override
+            public void render(CharSequence text) {
+                mRendered.add(text.toString());
+            }
+        });
+    }
+
+    private void publish(String line) {
+        byte[] bytes = line.getBytes(UTF8);
+        mScheduler.publishText("mb", bytes, 0, bytes.length, System.nanoTime(), 0, null);
+    }
+
+    private void nextFrame() {
+        ShadowLooper.idleMainLooper(20, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void onlyTheLatestValueIsRendered() {
+        for (int i = 0; i < 100; i++) {
+            publish("line " + i);
+        }
+        nextFrame();
+        assertEquals(1, mRendered.size());
+        assertEquals("mb: line 99", mRendered.get(0));
+        assertEquals(1, mScheduler.getRenderedCount());
+        assertEquals(99, mScheduler.getCoalescedCount());
+    }
+
+    @Test
+    public void tailHoldsTheRenderedValues() {
+        publish("a");
+        nextFrame();
+        publish("b");
+        nextFrame();
+        publish("c");
+        nextFrame();
+        assertEquals("mb: b\nmb: c", mRendered.get(2));
+        assertEquals(0, mScheduler.getCoalescedCount());
+        // nothing new, nothing rendered
+        nextFrame();
+        assertEquals(3, mRendered.size());
+    }
+
+    @Test
+    public void samplesAreFormattedWhenRendered() {
+        short[] samples = {12, -980, 40};
+        mScheduler.publishSamples("mb", SensorCodec.TYPE_ACCELEROMETER, samples, 3, 0);
+        // the publisher may reuse its array at once
+        samples[0] = 0;
+        nextFrame();
+        assertEquals("mb: 1 | 12 -980 40", mRendered.get(0));
+    }
+
+    @Test
+    public void longLinesAreCopiedWhole() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+        publish(line.toString());
+        nextFrame();
+        assertEquals("mb: " + line, mRendered.get(0));
+    }
+
+    @Test
+    public void stopDropsThePendingValue() {
+        publish("dropped");
+        mScheduler.stop();
+        publish("ignored");
+        mScheduler.start();
+        nextFrame();
+        assertEquals(0, mRendered.size());
+        publish("shown");
+        nextFrame();
+        assertEquals("mb: shown", mRendered.get(0));
+    }
+}
@@ -0,0 +1,190 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Binary frames, sequence numbers, and a comparison with text: bytes per sample and
+ * decoded samples per second of both codecs.
+ */
+public class SensorCodecTest {
+
+    private static final short[] XYZ = {12, -980, 40};
+
+    private final List<String> mDecoded = new ArrayList<>();
+    private SensorCodec mCodec;
+    private final byte[] mFrame = new byte[1 + SensorCodec.OVERHEAD + 2 * SensorCodec.MAX_SAMPLES];
+
+    @Before
+    public void setUp() {
+        mCodec = new SensorCodec(new SampleDecoder.SampleListener() {
+            @Override
+            public void onSamples(int type, short[] samples, int count) {
+                mDecoded.add(type + " " + Arrays.toString(Arrays.copyOf(samples, count)));
+            }
+        });
+    }
+
+    // decode a frame with this sequence number, without its length prefix
+    private boolean decode(int sequence) {
+        int length = SensorCodec.encode(SensorCodec.TYPE_ACCELEROMETER, sequence, XYZ, 3,
+                mFrame, 0);
+        return mCodec.decode(mFrame, 1, length - 1);
+    }
+
+    @Test
+    public void encodedFrameDecodes() {
+        int length = SensorCodec.encode(SensorCodec.TYPE_ACCELEROMETER, 0, XYZ, 3, mFrame, 0);
+        assertEquals(1 + SensorCodec.OVERHEAD + 6, length);
+        assertEquals(length - 1, mFrame[0]);
+        assertTrue(mCodec.decode(mFrame, 1, length - 1));
+        assertEquals("1 [12, -980, 40]", mDecoded.get(0));
+    }
+
+    @Test
+    public void corruptFrameIsRejected() {
+        int length = SensorCodec.encode(SensorCodec.TYPE_ACCELEROMETER, 0, XYZ, 3, mFrame, 0);
+        mFrame[4] ^= 0x10;
+        assertFalse(mCodec.decode(mFrame, 1, length - 1));
+        assertFalse(mCodec.decode(mFrame, 1, 2));
+        assertEquals(2, mCodec.getErrorCount());
+        assertEquals(0, mDecoded.size());
+    }
+
+    @Test
+    public void gapIsCountedAsLost() {
+        decode(10);
+        decode(11);
+        decode(15);
+        assertEquals(3, mDecoded.size());
+        assertEquals(3, mCodec.getLostCount());
+    }
+
+    @Test
+    public void sequenceWrapsAround() {
+        decode(254);
+        decode(255);
+        decode(0);
+        decode(2);
+        assertEquals(1, mCodec.getLostCount());
+    }
+
+    @Test
+    public void duplicateIsDroppedNotLost() {
+        decode(10);
+        decode(11);
+        assertFalse(decode(11));
+        assertTrue(decode(12));
+        assertEquals(3, mDecoded.size());
+        assertEquals(0, mCodec.getLostCount());
+        assertEquals(1, mCodec.getStaleCount());
+    }
+
+    @Test
+    public void reorderedFrameIsDroppedNotLost() {
+        decode(10);
+        decode(12); // 11 is late
+        assertFalse(decode(11));
+        decode(13);
+        assertEquals(1, mCodec.getLostCount());
+        assertEquals(1, mCodec.getStaleCount());
+        assertEquals(3, mDecoded.size());
+    }
+
+    @Test
+    public void restartedSenderIsFollowed() {
+        decode(100);
+        decode(101);
+        // the Micro:bit was reset, its sequence starts over
+        assertFalse(decode(0));
+        assertTrue(decode(1));
+        assertTrue(decode(2));
+        assertEquals(0, mCodec.getLostCount());
+        assertEquals(4, mDecoded.size());
+    }
+
+    @Test
+    public void sequencesArePerType() {
+        decode(10);
+        int length = SensorCodec.encode(SensorCodec.TYPE_TEMPERATURE, 200, XYZ, 1, mFrame, 0);
+        assertTrue(mCodec.decode(mFrame, 1, length - 1));
+        decode(11);
+        assertEquals(0, mCodec.getLostCount());
+        assertEquals(0, mCodec.getStaleCount());
+    }
+
+    @Test
+    public void binaryComparedToText() {
+        Charset utf8 = Charset.forName("UTF-8");
+        // accelerometer data, as the Micro:bit sends it
+        int frames = 1000;
+        byte[][] binary = new byte[frames][];
+        byte[][] text = new byte[frames][];
+        long binaryBytes = 0;
+        long textBytes = 0;
+        short[] xyz = new short[3];
+        for (int i = 0; i < frames; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                xyz[axis] = (short) (1023 * Math.sin(i * 0.05 + axis));
+            }
+            int length = SensorCodec.encode(SensorCodec.TYPE_ACCELEROMETER, i, xyz, 3,
+                    mFrame, 0);
+            binary[i] = Arrays.copyOfRange(mFrame, 1, length);
+            binaryBytes += length;
+            text[i] = String.format(Locale.US, "%d,%d,%d", xyz[0], xyz[1], xyz[2])
+                    .getBytes(utf8);
+            textBytes += text[i].length + 1; // and the newline
+        }
+        final long[] samples = new long[1];
+        SampleDecoder.SampleListener counter = new SampleDecoder.SampleListener() {
+            @Override
+            public void onSamples(int type, short[] values, int count) {
+                samples[0] += count;
+            }
+        };
+        SensorCodec sensorCodec = new SensorCodec(counter);
+        TextSampleCodec textCodec = new TextSampleCodec(counter);
+
+        double binaryRate = 0;
+        double textRate = 0;
+        for (int round = 0; round < 5; round++) { // the first rounds warm up
+            samples[0] = 0;
+            long start = System.nanoTime();
+            for (int repeat = 0; repeat < 200; repeat++) {
+                sensorCodec.reset();
+                for (byte[] frame : binary) {
+                    sensorCodec.decode(frame, 0, frame.length);
+                }
+            }
+            binaryRate = samples[0] * 1e9 / (System.nanoTime() - start);
+            assertEquals(200 * 3 * frames, samples[0]);
+
+            samples[0] = 0;
+            start = System.nanoTime();
+            for (int repeat = 0; repeat < 200; repeat++) {
+                for (byte[] frame : text) {
+                    textCodec.decode(frame, 0, frame.length);
+                }
+            }
+            textRate = samples[0] * 1e9 / (System.nanoTime() - start);
+            assertEquals(200 * 3 * frames, samples[0]);
+        }
+        double binaryPerSample = binaryBytes / (3.0 * frames);
+        double textPerSample = textBytes / (3.0 * frames);
+        System.out.println(String.format(Locale.US,
+                "binary: %.2f bytes/sample, %.0f samples/s; text: %.2f bytes/sample, "
+                        + "%.0f samples/s", binaryPerSample, binaryRate, textPerSample,
+                textRate));
+        assertTrue(binaryPerSample < 0.8 * textPerSample);
+    }
+}
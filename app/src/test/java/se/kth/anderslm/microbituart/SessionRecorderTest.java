@@ -0,0 +1,217 @@
+package se.kth.anderslm.microbituart;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recordings replay through the sessions of a ConnectionManager, with the decoding of
+ * their data format, at the original speed or faster. The throughput test prints the
+ * sustained write rate, and the file size per hour of a classroom session.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SessionRecorderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    // spacing of the paced recording, 100 ms
+    private static final long PERIOD = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SimulatedSessions mSessions;
+    // written on the BLE thread
+    private final List<String> mFrames = new ArrayList<>();
+    private final List<Long> mFrameMillis = new ArrayList<>(); // SystemClock.uptimeMillis
+    private final List<String> mSamples = new ArrayList<>();
+    private long mPacketCount = -1;
+
+    private final ConnectionManager.StreamListener mListener =
+            new ConnectionManager.StreamListener() {
+                @Override
+                public void onFrame(GattSession session, long timestampNanos,
+                                    byte[] buffer, int offset, int length) {
+                    mFrames.add(session.getAddress() + " "
+                            + new String(buffer, offset, length, UTF8));
+                    mFrameMillis.add(SystemClock.uptimeMillis());
+                }
+
+                @Override
+                public void onSamples(GattSession session, long timestampNanos, int type,
+                                      short[] samples, int count) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int i = 0; i < count; i++) {
+                        sb.append(i > 0 ? "," : "").append(samples[i]);
+                    }
+                    mSamples.add(sb.toString());
+                }
+
+                @Override
+                public void onSessionStateChanged(GattSession session,
+                                                  GattSession.State state) {
+                }
+
+                @Override
+                public void onSessionError(GattSession session, String message) {
+                }
+            };
+
+    @Before
+    public void setUp() {
+        mSessions = new SimulatedSessions();
+        mSessions.getManager().addStreamListener(mListener);
+    }
+
+    @After
+    public void tearDown() {
+        mSessions.tearDown();
+        mSessions.getManager().removeStreamListener(mListener);
+    }
+
+    // replay through the sessions, until finished
+    private void replay(File file, double speed) throws Exception {
+        ConnectionManager manager = mSessions.getManager();
+        SessionReplayer replayer = new SessionReplayer(file, speed, manager.getHandler(),
+                new SessionReplayer.Listener() {
+                    @Override
+                    public void onReplayFinished(long packetCount) {
+                        mPacketCount = packetCount;
+                    }
+                });
+        replayer.connect(manager);
+        for (long t = 0; !replayer.isFinished() && t < 60000; t += 5) {
+            mSessions.run(5);
+        }
+        assertTrue(replayer.isFinished());
+    }
+
+    private void replay(File file) throws Exception {
+        replay(file, 0);
+    }
+
+    // packets "0\n" to "10\n", PERIOD ms apart
+    private File recordPaced() throws Exception {
+        File file = mFolder.newFile();
+        SessionRecorder recorder = new SessionRecorder(file, DataFormat.TEXT);
+        long start = System.nanoTime();
+        for (int i = 0; i <= 10; i++) {
+            byte[] packet = (i + "\n").getBytes(UTF8);
+            recorder.record(ADDRESS, start + i * PERIOD * 1000000L, packet, 0, packet.length);
+        }
+        recorder.close();
+        return file;
+    }
+
+    private long replayedSpanMillis() {
+        return mFrameMillis.get(mFrameMillis.size() - 1) - mFrameMillis.get(0);
+    }
+
+    @Test
+    public void textRecordingReplaysLines() throws Exception {
+        File file = mFolder.newFile();
+        SessionRecorder recorder = new SessionRecorder(file, DataFormat.TEXT);
+        byte[] packet = "12,-980\n40,".getBytes(UTF8);
+        recorder.record(ADDRESS, System.nanoTime(), packet, 0, packet.length);
+        packet = "3\n".getBytes(UTF8);
+        recorder.record(ADDRESS, System.nanoTime(), packet, 0, packet.length);
+        recorder.close();
+        replay(file);
+        assertEquals(2, mPacketCount);
+        assertEquals(2, mFrames.size());
+        assertEquals(ADDRESS + " 12,-980", mFrames.get(0));
+        assertEquals(ADDRESS + " 40,3", mFrames.get(1));
+        // and decoded, as live data
+        assertEquals(2, mSamples.size());
+        assertEquals("12,-980", mSamples.get(0));
+        assertEquals("40,3", mSamples.get(1));
+    }
+
+    @Test
+    public void binaryRecordingReplaysLengthPrefixedFrames() throws Exception {
+        File file = mFolder.newFile();
+        SessionRecorder recorder = new SessionRecorder(file, DataFormat.BINARY);
+        // a newline inside a binary frame is data, not a delimiter
+        byte[] packet = {3, 'a', '\n', 'b', 2, 'c'};
+        recorder.record(ADDRESS, System.nanoTime(), packet, 0, packet.length);
+        packet = new byte[]{'d'};
+        recorder.record(ADDRESS, System.nanoTime(), packet, 0, packet.length);
+        recorder.close();
+        replay(file);
+        assertEquals(2, mFrames.size());
+        assertEquals(ADDRESS + " a\nb", mFrames.get(0));
+        assertEquals(ADDRESS + " cd", mFrames.get(1));
+    }
+
+    @Test
+    public void sustainedWriteThroughput() throws Exception {
+        File file = mFolder.newFile();
+        SessionRecorder recorder = new SessionRecorder(file, DataFormat.TEXT);
+        // a 20 byte notification, one line of accelerometer data
+        byte[] packet = "-1023,-1023,-1023\r\n".getBytes(UTF8);
+        int packets = 500000;
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            // the staging buffer is full when the writer falls behind, wait for it
+            while (!recorder.record(ADDRESS, System.nanoTime(), packet, 0, packet.length)) {
+                Thread.yield();
+            }
+        }
+        recorder.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(SessionRecorder.HEADER_SIZE
+                        + (long) packets * (SessionRecorder.RECORD_HEADER_SIZE + packet.length),
+                file.length());
+        replay(file);
+        assertEquals(packets, mPacketCount);
+        assertEquals(packets, mFrames.size());
+
+        double rate = packets / seconds;
+        // 30 devices, 50 notifications per second each
+        double classroomRate = 30 * 50;
+        double bytesPerHour = classroomRate * 3600
+                * (SessionRecorder.RECORD_HEADER_SIZE + packet.length);
+        System.out.println(String.format(Locale.US,
+                "%.0f packets/s, %.1f MB/s sustained; %.0f packets/s: %.0f MB per hour",
+                rate, rate * (SessionRecorder.RECORD_HEADER_SIZE + packet.length) / 1e6,
+                classroomRate, bytesPerHour / 1e6));
+        assertTrue("packets/s " + rate, rate > 10 * classroomRate);
+    }
+
+    @Test
+    public void replayKeepsTheOriginalSpacing() throws Exception {
+        replay(recordPaced(), 1);
+        assertEquals(11, mFrames.size());
+        assertEquals(ADDRESS + " 10", mFrames.get(10));
+        assertEquals(10 * PERIOD, replayedSpanMillis(), 10);
+    }
+
+    @Test
+    public void fasterReplayDividesTheSpacing() throws Exception {
+        replay(recordPaced(), 10);
+        assertEquals(11, mFrames.size());
+        assertEquals(PERIOD, replayedSpanMillis(), 10);
+    }
+
+    @Test
+    public void replayAsFastAsPossibleIgnoresTheSpacing() throws Exception {
+        replay(recordPaced(), 0);
+        assertEquals(11, mFrames.size());
+        assertEquals(0, replayedSpanMillis());
+    }
+}
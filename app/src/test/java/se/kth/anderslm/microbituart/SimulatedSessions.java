@@ -0,0 +1,101 @@
+package se.kth.anderslm.microbituart;
+
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Robolectric fixture of the tests with simulated Micro:bits: the ConnectionManager,
+ * and its BLE thread run in simulated time. Create it in setUp, call tearDown in tearDown.
+ */
+class SimulatedSessions {
+
+    // step of run, in simulated time, 5 ms
+    private static final long STEP = 5;
+
+    private final ConnectionManager mManager;
+    private final ShadowLooper mBleLooper;
+
+    SimulatedSessions() {
+        mManager = ConnectionManager.getInstance(RuntimeEnvironment.getApplication());
+        mBleLooper = Shadow.extract(mManager.getHandler().getLooper());
+    }
+
+    ConnectionManager getManager() {
+        return mManager;
+    }
+
+    /**
+     * A simulated Micro:bit on the BLE thread, not connected.
+     */
+    SimulatedMicrobit create(SimulatedMicrobit.Config config) {
+        return new SimulatedMicrobit(config, mManager.getHandler());
+    }
+
+    /**
+     * Connect a simulated Micro:bit in config.dataFormat.
+     */
+    GattSession connect(SimulatedMicrobit.Config config) {
+        return mManager.connect(create(config), config.dataFormat);
+    }
+
+    GattSession connect(UartTransport transport, DataFormat dataFormat) {
+        return mManager.connect(transport, dataFormat);
+    }
+
+    /**
+     * Run the BLE thread for millis of simulated time, in steps, as fast as it goes.
+     *
+     * @return the processing time, ns
+     */
+    long run(long millis) {
+        long start = System.nanoTime();
+        for (long t = 0; t < millis; t += STEP) {
+            mBleLooper.idleFor(Math.min(STEP, millis - t), TimeUnit.MILLISECONDS);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Run the BLE thread for millis of simulated time on its own, at about the pace of
+     * real time: a clock thread advances the simulated clock, and the calling thread,
+     * e.g. the main thread, is free to block meanwhile. Join the returned thread, then
+     * idle.
+     */
+    Thread runFreely(final long millis) {
+        Thread clock = new Thread("SimulatedClock") {
+            @Override
+            public void run() {
+                try {
+                    for (long t = 0; t < millis; t++) {
+                        ShadowSystemClock.advanceBy(Duration.ofMillis(1));
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException e) {
+                    // stopped early
+                }
+            }
+        };
+        clock.start();
+        return clock;
+    }
+
+    /**
+     * Wait for the BLE thread to finish what is due.
+     */
+    void idle() {
+        mBleLooper.idle();
+    }
+
+    /**
+     * Disconnect all sessions, and let them close.
+     */
+    void tearDown() {
+        mManager.disconnectAll();
+        mBleLooper.idle();
+    }
+}
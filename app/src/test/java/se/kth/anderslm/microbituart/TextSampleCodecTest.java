@@ -0,0 +1,80 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TextSampleCodecTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<String> mDecoded = new ArrayList<>();
+    private TextSampleCodec mCodec;
+
+    @Before
+    public void setUp() {
+        mCodec = new TextSampleCodec(new SampleDecoder.SampleListener() {
+            @Override
+            public void onSamples(int type, short[] samples, int count) {
+                assertEquals(TextSampleCodec.TYPE_TEXT, type);
+                mDecoded.add(Arrays.toString(Arrays.copyOf(samples, count)));
+            }
+        });
+    }
+
+    private boolean decode(String line) {
+        byte[] bytes = ("##" + line + "##").getBytes(UTF8);
+        // not at the start of the buffer
+        return mCodec.decode(bytes, 2, bytes.length - 4);
+    }
+
+    @Test
+    public void commaSeparated() {
+        assertTrue(decode("12,-980,40"));
+        assertEquals("[12, -980, 40]", mDecoded.get(0));
+    }
+
+    @Test
+    public void labelled() {
+        assertTrue(decode("x:12 y:-980 z:40"));
+        assertEquals("[12, -980, 40]", mDecoded.get(0));
+    }
+
+    @Test
+    public void minusWithoutDigitsSeparates() {
+        assertTrue(decode("5 - 3-"));
+        assertEquals("[5, 3]", mDecoded.get(0));
+    }
+
+    @Test
+    public void valuesAreClamped() {
+        assertTrue(decode("40000,-40000,99999999999"));
+        assertEquals("[32767, -32768, 32767]", mDecoded.get(0));
+    }
+
+    @Test
+    public void lineWithoutNumbersIsNotDecoded() {
+        assertFalse(decode("hello"));
+        assertFalse(decode(""));
+        assertEquals(0, mDecoded.size());
+    }
+
+    @Test
+    public void atMostMaxSamples() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 2 * SensorCodec.MAX_SAMPLES; i++) {
+            line.append(i).append(' ');
+        }
+        assertTrue(decode(line.toString()));
+        assertEquals(SensorCodec.MAX_SAMPLES,
+                mDecoded.get(0).split(",").length);
+    }
+}
@@ -0,0 +1,111 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ring wraparound at every level, and the memory bound and retention of the defaults.
+ */
+public class TimeSeriesStoreTest {
+
+    private static final long MS = 1000000L;
+    private static final long PERIOD = 10 * MS; // 100 Hz
+
+    private final long[] mTimes = new long[1024];
+    private final float[] mValues = new float[1024];
+
+    @Test
+    public void latestSamplesAreExactAfterWraparound() {
+        TimeSeriesStore store = new TimeSeriesStore(32, 2);
+        for (int i = 0; i < 1000; i++) {
+            store.append(i * PERIOD, i);
+        }
+        // the last 20 samples, from level 0 which wrapped around 31 times
+        int n = store.query(980 * PERIOD, 1000 * PERIOD, 100, mTimes, mValues);
+        assertEquals(20, n);
+        for (int i = 0; i < n; i++) {
+            assertEquals((980 + i) * PERIOD, mTimes[i]);
+            assertEquals(980 + i, mValues[i], 0);
+        }
+    }
+
+    @Test
+    public void olderSamplesComeFromTheCoarseLevel() {
+        TimeSeriesStore store = new TimeSeriesStore(32, 2);
+        for (int i = 0; i < 1000; i++) {
+            store.append(i * PERIOD, i % 16 == 5 ? -i : i);
+        }
+        // level 0 holds the last 32 samples, level 1 the last 32 aggregates of 16
+        assertEquals(30 * 16 * PERIOD, store.getOldestTime());
+        int n = store.query(500 * PERIOD, 600 * PERIOD, 100, mTimes, mValues);
+        assertTrue(n > 0);
+        for (int i = 1; i < n; i++) {
+            assertTrue(mTimes[i] >= mTimes[i - 1]);
+        }
+        // the negative peaks survive the aggregation
+        for (int peak = 517; peak < 592; peak += 16) {
+            boolean found = false;
+            for (int i = 0; i < n; i++) {
+                found |= mValues[i] == -peak;
+            }
+            assertTrue("peak " + peak, found);
+        }
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        TimeSeriesStore store = new TimeSeriesStore(32, 2);
+        for (int i = 0; i < 100; i++) {
+            store.append(i * PERIOD, i);
+        }
+        store.clear();
+        assertEquals(0, store.query(0, 100 * PERIOD, 100, mTimes, mValues));
+        store.append(PERIOD, 7);
+        assertEquals(1, store.query(0, 100 * PERIOD, 100, mTimes, mValues));
+        assertEquals(7, mValues[0], 0);
+    }
+
+    @Test
+    public void defaultsTake256kBAndKeep46Hours() {
+        TimeSeriesStore store = new TimeSeriesStore();
+        assertEquals(4 * 4096 * 16, store.getMemoryBytes());
+        long hours50 = 50 * 3600 * 100L;
+        for (long i = 0; i < hours50; i++) {
+            store.append(i * PERIOD, (float) Math.sin(i * 0.01));
+        }
+        assertEquals(hours50, store.getSampleCount());
+        assertEquals(4 * 4096 * 16, store.getMemoryBytes());
+        double retainedHours = (hours50 * PERIOD - store.getOldestTime()) / 3600e9;
+        // 4096 * 4096 samples at 100 Hz
+        assertEquals(46.6, retainedHours, 0.1);
+        // the full resolution level holds the last 41 s
+        int n = store.query((hours50 - 4096) * PERIOD, hours50 * PERIOD, 8192,
+                new long[8192], new float[8192]);
+        assertEquals(4096, n);
+    }
+
+    @Test
+    public void appendDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        // HotSpot only
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        TimeSeriesStore store = new TimeSeriesStore();
+        for (int i = 0; i < 100000; i++) { // warm up
+            store.append(i * PERIOD, i);
+        }
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 100000; i < 1100000; i++) {
+            store.append(i * PERIOD, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        assertTrue("allocated " + allocated, allocated < 10000);
+    }
+}
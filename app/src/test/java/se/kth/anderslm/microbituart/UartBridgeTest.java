@@ -0,0 +1,357 @@
+package se.kth.anderslm.microbituart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The bridge under load, on the loopback interface: simulated Micro:bits stream as fast
+ * as the BLE thread can run them, TCP clients read everything. Prints the frames and
+ * bytes per second that reached a client, and the fan-out latency with many clients.
+ * A client that stops reading is disconnected, and client data reaches the Micro:bits.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UartBridgeTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int RATE = 100; // samples per second per device
+    // run step when pacing the BLE thread to the clients, 100 ms
+    private static final long STEP = 100;
+
+    private SimulatedSessions mSessions;
+    private ConnectionManager mManager;
+    private final List<Client> mClients = new ArrayList<>();
+
+    /**
+     * A client, reading on a thread of its own unless stalled.
+     */
+    private static final class Client {
+        final Socket socket;
+        final AtomicLong frames = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        // frames that are calls, "AA:BB:CC:DD:EE:FF #id ...", written on the reader thread
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        Thread reader = null;
+
+        Client(Socket socket) {
+            this.socket = socket;
+        }
+
+        void read(final int framing) throws IOException {
+            final InputStream in = socket.getInputStream();
+            reader = new Thread("BridgeClient") {
+                @Override
+                public void run() {
+                    try {
+                        if (framing == UartBridge.FRAMING_LINE) {
+                            readLines(in);
+                        } else {
+                            readLengthPrefixed(in);
+                        }
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            };
+            reader.start();
+        }
+
+        private void readLines(InputStream in) throws IOException {
+            BufferedReader lines = new BufferedReader(new InputStreamReader(in, UTF8));
+            String line;
+            while ((line = lines.readLine()) != null) {
+                frames.incrementAndGet();
+                bytes.addAndGet(line.length() + 1);
+                if (line.indexOf('#') > 0) {
+                    calls.add(line);
+                }
+            }
+        }
+
+        private void readLengthPrefixed(InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            byte[] frame = new byte[0xffff];
+            while (true) {
+                int length = data.readUnsignedByte() | data.readUnsignedByte() << 8;
+                data.readFully(frame, 0, length);
+                frames.incrementAndGet();
+                bytes.addAndGet(2 + length);
+                if (length > 6 && frame[6] == '#') {
+                    calls.add(String.format(Locale.US, "%02X:%02X:%02X:%02X:%02X:%02X %s",
+                            frame[0], frame[1], frame[2], frame[3], frame[4], frame[5],
+                            new String(frame, 6, length - 6, UTF8)));
+                }
+            }
+        }
+
+        void write(byte[] data) throws IOException {
+            socket.getOutputStream().write(data);
+            socket.getOutputStream().flush();
+        }
+
+        void close() throws InterruptedException, IOException {
+            socket.close();
+            if (reader != null) {
+                reader.join(1000);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mSessions = new SimulatedSessions();
+        mManager = mSessions.getManager();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Client client : mClients) {
+            client.close();
+        }
+        mManager.stopBridge();
+        mSessions.tearDown();
+    }
+
+    private void connect(int n, DataFormat dataFormat) {
+        for (int i = 0; i < n; i++) {
+            SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+            config.rate = RATE;
+            config.dataFormat = dataFormat;
+            config.seed = i;
+            mSessions.connect(config);
+        }
+    }
+
+    // a client counting the frames it receives; a stalled one never reads
+    private Client startClient(int framing, boolean stalled) throws IOException {
+        Socket socket = new Socket();
+        if (stalled) {
+            // fills up soon
+            socket.setReceiveBufferSize(1024);
+        }
+        socket.connect(new InetSocketAddress(InetAddress.getByName(null),
+                mManager.getBridge().getPort()));
+        Client client = new Client(socket);
+        mClients.add(client);
+        if (!stalled) {
+            client.read(framing);
+        }
+        // accepted by the selector thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mManager.getBridge().getClientCount() < mClients.size()
+                && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(mClients.size(), mManager.getBridge().getClientCount());
+        return client;
+    }
+
+    private Client startClient(int framing) throws IOException {
+        return startClient(framing, false);
+    }
+
+    // wait for the client to receive this many frames
+    private static void awaitFrames(Client client, long frames) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (client.frames.get() < frames && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    // run the BLE thread in steps, each time until the clients have received what it sent
+    private long runPaced(long millis, List<Client> clients) throws InterruptedException {
+        long before = mManager.getFrameCount();
+        long[] received = new long[clients.size()];
+        for (int i = 0; i < received.length; i++) {
+            received[i] = clients.get(i).frames.get();
+        }
+        for (long t = 0; t < millis; t += STEP) {
+            mSessions.run(STEP);
+            for (int i = 0; i < received.length; i++) {
+                awaitFrames(clients.get(i), received[i] + mManager.getFrameCount() - before);
+            }
+        }
+        return mManager.getFrameCount() - before;
+    }
+
+    private void load(int devices, DataFormat dataFormat, int framing) throws Exception {
+        // any free port
+        mManager.startBridge(0, framing);
+        Client client = startClient(framing);
+        connect(devices, dataFormat);
+        long before = mManager.getFrameCount();
+        long start = System.nanoTime();
+        mSessions.run(10000);
+        long published = mManager.getFrameCount() - before;
+        awaitFrames(client, published);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.US,
+                "%s, %d devices: %d frames in %.2f s, %.0f frames/s, %.0f kB/s to the client",
+                dataFormat, devices, client.frames.get(), seconds,
+                client.frames.get() / seconds, client.bytes.get() / seconds / 1000));
+        UartBridge bridge = mManager.getBridge();
+        assertEquals(0, bridge.getDroppedFrameCount());
+        assertEquals(0, bridge.getStalledCount());
+        assertTrue("published " + published, published >= 0.9 * devices * RATE * 10);
+        assertEquals(published, client.frames.get());
+    }
+
+    // the device addresses as in a FRAMING_LENGTH frame
+    private static byte[] addressBytes(String address) {
+        byte[] bytes = new byte[6];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(address.substring(3 * i, 3 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    // run until the client has this many calls echoed, at most 5 s of simulated time
+    private void awaitCalls(Client client, int calls) throws InterruptedException {
+        for (long t = 0; client.calls.size() < calls && t < 5000; t += 10) {
+            // the selector thread reads the client meanwhile
+            Thread.sleep(1);
+            mSessions.run(10);
+        }
+    }
+
+    @Test
+    public void everyTextFrameReachesTheClient() throws Exception {
+        load(20, DataFormat.TEXT, UartBridge.FRAMING_LINE);
+    }
+
+    @Test
+    public void everyBinaryFrameReachesTheClient() throws Exception {
+        load(20, DataFormat.BINARY, UartBridge.FRAMING_LENGTH);
+    }
+
+    @Test
+    public void lineFramingRejectsBinaryFrames() throws Exception {
+        mManager.startBridge(0, UartBridge.FRAMING_LINE);
+        Client client = startClient(UartBridge.FRAMING_LINE);
+        connect(1, DataFormat.BINARY);
+        long before = mManager.getFrameCount();
+        mSessions.run(2000);
+        long published = mManager.getFrameCount() - before;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mManager.getBridge().getRejectedFrameCount() < published
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(published > 0);
+        assertEquals(published, mManager.getBridge().getRejectedFrameCount());
+        assertEquals(0, client.frames.get());
+    }
+
+    @Test
+    public void everyClientReceivesEveryFrame() throws Exception {
+        int clients = 8;
+        mManager.startBridge(0, UartBridge.FRAMING_LINE);
+        for (int i = 0; i < clients; i++) {
+            startClient(UartBridge.FRAMING_LINE);
+        }
+        connect(10, DataFormat.TEXT);
+        long published = runPaced(5000, mClients);
+        assertTrue("published " + published, published >= 0.9 * 10 * RATE * 4);
+        for (Client client : mClients) {
+            assertEquals(published, client.frames.get());
+        }
+        // the histogram spans all frames fanned out by the tests so far
+        Metrics.Histogram fanOut = Metrics.BRIDGE_FAN_OUT;
+        System.out.println(String.format(Locale.US,
+                "%d clients: fan out p50 %.2f ms, p99 %.2f ms, of %d frames in all",
+                clients, fanOut.getPercentileMillis(0.5), fanOut.getPercentileMillis(0.99),
+                fanOut.getCount()));
+        assertTrue(fanOut.getCount() >= published);
+        assertEquals(0, mManager.getBridge().getStalledCount());
+    }
+
+    @Test
+    public void clientThatStopsReadingIsDisconnected() throws Exception {
+        mManager.startBridge(0, UartBridge.FRAMING_LINE);
+        List<Client> reading = new ArrayList<>();
+        reading.add(startClient(UartBridge.FRAMING_LINE));
+        startClient(UartBridge.FRAMING_LINE, true);
+        reading.add(startClient(UartBridge.FRAMING_LINE));
+        connect(20, DataFormat.TEXT);
+        UartBridge bridge = mManager.getBridge();
+        long published = 0;
+        // until the socket buffers and the bridge's output buffer are full
+        for (long t = 0; bridge.getStalledCount() == 0 && t < 60000; t += 1000) {
+            published += runPaced(1000, reading);
+        }
+        published += runPaced(1000, reading);
+        assertEquals(1, bridge.getStalledCount());
+        assertEquals(2, bridge.getClientCount());
+        for (Client client : reading) {
+            assertEquals(published, client.frames.get());
+        }
+        assertEquals(0, bridge.getDroppedFrameCount());
+    }
+
+    @Test
+    public void clientLinesReachTheDevices() throws Exception {
+        mManager.startBridge(0, UartBridge.FRAMING_LINE);
+        Client client = startClient(UartBridge.FRAMING_LINE);
+        connect(2, DataFormat.TEXT);
+        mSessions.run(1000);
+        // a call the Micro:bits echo, no one waits for the reply: streamed to the client
+        client.write("#900 hello\n".getBytes(UTF8));
+        awaitCalls(client, 2);
+        List<String> expected = new ArrayList<>();
+        for (GattSession session : mManager.getSessions()) {
+            expected.add(session.getAddress() + " #900 hello");
+        }
+        List<String> calls = new ArrayList<>(client.calls);
+        Collections.sort(expected);
+        Collections.sort(calls);
+        assertEquals(expected, calls);
+    }
+
+    @Test
+    public void clientFramesReachTheAddressedDevice() throws Exception {
+        mManager.startBridge(0, UartBridge.FRAMING_LENGTH);
+        Client client = startClient(UartBridge.FRAMING_LENGTH);
+        connect(2, DataFormat.TEXT);
+        mSessions.run(1000);
+        String address = mManager.getSessions().get(1).getAddress();
+        byte[] payload = "#901 only\n".getBytes(UTF8);
+        ByteBuffer frame = ByteBuffer.allocate(2 + 6 + payload.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        frame.putShort((short) (6 + payload.length)).put(addressBytes(address)).put(payload);
+        client.write(frame.array());
+        // and to all devices
+        payload = "#902 all\n".getBytes(UTF8);
+        frame = ByteBuffer.allocate(2 + 6 + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+        frame.putShort((short) (6 + payload.length)).put(new byte[6]).put(payload);
+        client.write(frame.array());
+        awaitCalls(client, 3);
+        List<String> calls = new ArrayList<>(client.calls);
+        assertEquals(3, calls.size());
+        assertTrue(calls.contains(address + " #901 only"));
+        for (GattSession session : mManager.getSessions()) {
+            assertTrue(calls.contains(session.getAddress() + " #902 all"));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package se.kth.anderslm.microbituart;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Calls to a simulated Micro:bit, which echoes them at its next connection event.
+ * The benchmark compares calls one at a time with pipelined calls: latency percentiles
+ * and calls per second, in simulated time.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UartRpcTest {
+
+    private static final int CALLS = 400;
+
+    private SimulatedSessions mSessions;
+    private GattSession mSession;
+
+    // completed calls, latency in simulated ms, written on the BLE thread
+    private final List<Long> mLatencies = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Exception> mErrors =
+            Collections.synchronizedList(new ArrayList<Exception>());
+
+    @Before
+    public void setUp() {
+        mSessions = new SimulatedSessions();
+        mSession = mSessions.connect(new SimulatedMicrobit.Config());
+        mSessions.run(1000);
+        assertEquals(GattSession.State.READY, mSession.getState());
+    }
+
+    @After
+    public void tearDown() {
+        mSessions.tearDown();
+    }
+
+    private UartRpc.Call call(final String command) {
+        final long start = SystemClock.uptimeMillis();
+        return mSession.getRpc().call(command, new UartRpc.Callback() {
+            @Override
+            public void onResult(UartRpc.Call call, String reply, Exception error) {
+                if (error != null) {
+                    mErrors.add(error);
+                } else {
+                    assertEquals(command, reply);
+                    mLatencies.add(SystemClock.uptimeMillis() - start);
+                }
+            }
+        });
+    }
+
+    private long percentile(double p) {
+        List<Long> sorted = new ArrayList<>(mLatencies);
+        Collections.sort(sorted);
+        return sorted.get((int) Math.ceil(p * sorted.size()) - 1);
+    }
+
+    // @return calls per second
+    private double run(int window) {
+        mLatencies.clear();
+        long start = SystemClock.uptimeMillis();
+        int sent = 0;
+        while (mLatencies.size() + mErrors.size() < CALLS) {
+            while (sent < CALLS && mSession.getRpc().getPendingCount() < window) {
+                call("echo " + sent++);
+            }
+            mSessions.run(1);
+        }
+        double seconds = (SystemClock.uptimeMillis() - start) / 1000.0;
+        System.out.println(String.format(Locale.US,
+                "window %2d: p50 %3d ms, p99 %3d ms, %6.1f calls/s", window, percentile(0.5),
+                percentile(0.99), CALLS / seconds));
+        assertEquals(0, mErrors.size());
+        return CALLS / seconds;
+    }
+
+    @Test
+    public void replyCompletesTheCall() throws Exception {
+        UartRpc.Call call = call("hello");
+        mSessions.run(100);
+        assertTrue(call.isDone());
+        assertEquals("hello", call.get());
+        assertEquals(0, mSession.getRpc().getPendingCount());
+    }
+
+    @Test
+    public void pipelinedCallsOutrunSerialCalls() {
+        double serial = run(1);
+        double pipelined = run(8);
+        run(UartRpc.MAX_PENDING);
+        // several calls share a connection event
+        assertTrue(pipelined > 3 * serial);
+    }
+}
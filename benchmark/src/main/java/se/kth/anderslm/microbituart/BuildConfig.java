@@ -0,0 +1,9 @@
+package se.kth.anderslm.microbituart;
+
+/**
+ * Stands in for the BuildConfig the Android build generates, as a release build so
+ * nothing is logged while measuring.
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
@@ -0,0 +1,249 @@
+package se.kth.anderslm.microbituart;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The receive pipeline, driven by a simulated Micro:bit (MicrobitModel):
+ * <ul>
+ * <li>decode: a packet through the FrameDecoder and the sample decoder.</li>
+ * <li>dispatch: a packet through a GattSession to its listener, with the statistics,
+ * the call and transfer checks and the decoding on the way.</li>
+ * <li>endToEnd: a connection event, from the samples generated on the Micro:bit to the
+ * consumer, sample time gives the latency distribution.</li>
+ * </ul>
+ * The packets for decode and dispatch are recorded from the model in the setup, one
+ * second of stream; the model is seeded, so every run measures the same data.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReceiveBenchmark {
+
+    // samples per second, enough to fill the packets
+    private static final int RATE = 2000;
+
+    // a DataFormat, the generated code can not see the enum
+    @Param({"TEXT", "BINARY"})
+    public String format;
+
+    @Param({"23", "247"})
+    public int mtu;
+
+    private DataFormat mFormat;
+    private byte[][] mPackets;
+    private int mNext = 0;
+
+    private FrameDecoder mFrameDecoder;
+    private SampleDecoder mSampleDecoder;
+    private Blackhole mBlackhole;
+
+    private UartTransport.Listener mSessionInput;
+    private MicrobitModel mModel;
+
+    private final SampleDecoder.SampleListener mSampleListener =
+            new SampleDecoder.SampleListener() {
+                @Override
+                public void onSamples(int type, short[] samples, int count) {
+                    mBlackhole.consume(samples[count - 1]);
+                }
+            };
+
+    private final FrameDecoder.FrameListener mFrameListener = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            mSampleDecoder.decode(buffer, offset, length);
+        }
+    };
+
+    private final GattSession.SessionListener mSessionListener =
+            new GattSession.SessionListener() {
+                @Override
+                public void onStateChanged(GattSession session, GattSession.State state) {
+                }
+
+                @Override
+                public void onPacket(GattSession session, long timestampNanos, byte[] value) {
+                }
+
+                @Override
+                public void onFrame(GattSession session, long timestampNanos,
+                                    byte[] buffer, int offset, int length) {
+                    mBlackhole.consume(length);
+                }
+
+                @Override
+                public void onSamples(GattSession session, long timestampNanos, int type,
+                                      short[] samples, int count) {
+                    mBlackhole.consume(samples[count - 1]);
+                    mBlackhole.consume(timestampNanos);
+                }
+
+                @Override
+                public void onError(GattSession session, String message) {
+                }
+            };
+
+    private final MicrobitModel.PacketListener mModelOutput = new MicrobitModel.PacketListener() {
+        @Override
+        public void onPacket(byte[] packet) {
+            mSessionInput.onPacket(System.nanoTime(), packet);
+        }
+    };
+
+    private SimulatedMicrobit.Config config() {
+        SimulatedMicrobit.Config config = new SimulatedMicrobit.Config();
+        config.dataFormat = mFormat;
+        config.mtu = mtu;
+        config.rate = RATE;
+        return config;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mFormat = DataFormat.valueOf(format);
+        SimulatedMicrobit.Config config = config();
+
+        MicrobitModel recorder = new MicrobitModel(config, "recorder");
+        recorder.linkUp(mtu - 3);
+        final List<byte[]> packets = new ArrayList<>();
+        MicrobitModel.PacketListener record = new MicrobitModel.PacketListener() {
+            @Override
+            public void onPacket(byte[] packet) {
+                packets.add(packet);
+            }
+        };
+        long elapsed = 0;
+        while (elapsed < 1000) {
+            elapsed += recorder.nextEventDelay();
+            recorder.connectionEvent(record);
+        }
+        mPackets = packets.toArray(new byte[packets.size()][]);
+
+        if (mFormat == DataFormat.BINARY) {
+            mSampleDecoder = new SensorCodec(mSampleListener);
+            mFrameDecoder = FrameDecoder.lengthPrefixed(1, FrameDecoder.DEFAULT_CAPACITY,
+                    mFrameListener);
+        } else {
+            mSampleDecoder = new TextSampleCodec(mSampleListener);
+            mFrameDecoder = FrameDecoder.delimited(FrameDecoder.DEFAULT_DELIMITER,
+                    FrameDecoder.DEFAULT_CAPACITY, mFrameListener);
+        }
+
+        // a session over a transport that hands the packets straight in, on this thread
+        BenchTransport transport = new BenchTransport(config);
+        GattSession session = new GattSession(transport, mFormat, null, mSessionListener);
+        session.connect();
+        mSessionInput = transport.mListener;
+        mSessionInput.onStateChanged(GattSession.State.CONNECTING);
+        mSessionInput.onStateChanged(GattSession.State.READY);
+
+        mModel = new MicrobitModel(config, "device");
+        mModel.linkUp(mtu - 3);
+    }
+
+    private byte[] nextPacket() {
+        byte[] packet = mPackets[mNext];
+        mNext = mNext + 1 == mPackets.length ? 0 : mNext + 1;
+        return packet;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void decode() {
+        byte[] packet = nextPacket();
+        mFrameDecoder.feed(packet, 0, packet.length);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void dispatch() {
+        mSessionInput.onPacket(System.nanoTime(), nextPacket());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void endToEnd() {
+        mModel.nextEventDelay();
+        mModel.connectionEvent(mModelOutput);
+    }
+
+    /**
+     * A transport without a link: the benchmark feeds the listener.
+     */
+    private static class BenchTransport implements UartTransport {
+
+        private final SimulatedMicrobit.Config mConfig;
+        private final LinkStats mLinkStats = new LinkStats();
+        private final UartWriter mUartWriter = new UartWriter(UartWriter.DEFAULT_CAPACITY);
+        Listener mListener;
+
+        BenchTransport(SimulatedMicrobit.Config config) {
+            mConfig = config;
+            mLinkStats.setMtu(config.mtu);
+        }
+
+        @Override
+        public String getAddress() {
+            return "5E:11:00:00:00:00";
+        }
+
+        @Override
+        public String getName() {
+            return "Benchmark";
+        }
+
+        @Override
+        public LinkMode getLinkMode() {
+            return mConfig.linkMode;
+        }
+
+        @Override
+        public LinkStats getLinkStats() {
+            return mLinkStats;
+        }
+
+        @Override
+        public UartWriter getUartWriter() {
+            return mUartWriter;
+        }
+
+        @Override
+        public void connect(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean supportsPriority() {
+            return false;
+        }
+
+        @Override
+        public void requestPriority(int priority) {
+        }
+    }
+}